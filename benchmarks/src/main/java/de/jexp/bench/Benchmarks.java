@@ -0,0 +1,23 @@
+package de.jexp.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Runs the benchmarks (all or the ones matching the JMH command line) with the GC profiler, which reports the allocation rate per operation.
+ * {@code java -jar target/benchmarks.jar ExecutionResultMessagePack -p rows=nodes}
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,108 @@
+package de.jexp.bench;
+
+import de.jexp.msgpack.ExecutionResultMessagePack;
+import de.jexp.msgpack.MessagePackResultSerializer;
+import de.jexp.serialize.ResultOptions;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.cypher.javacompat.ExecutionResult;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Measures the serialization of query results, {@link #serialize} encodes rows that were pulled from the result beforehand,
+ * {@link #executeAndPack} the whole path of a request including the Cypher execution.
+ * Both return the bytes of all frames, run with the GC profiler for the allocations per result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+// thread scope, the setup opens the thread bound transaction on the benchmark thread
+@State(Scope.Thread)
+public class ExecutionResultMessagePackBenchmark {
+
+    @Param({"scalars", "nodes", "relationships", "paths", "arrays"})
+    public String rows;
+
+    @Param({"plain", "dedup", "dictionary", "batch"})
+    public String mode;
+
+    private GraphDatabaseService db;
+    private Transaction tx;
+    private ExecutionEngine engine;
+    private String query;
+    private ResultOptions options;
+    private final MessagePackResultSerializer serializer = new MessagePackResultSerializer();
+    private List<String> columns;
+    private List<Map<String, Object>> materialized;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = TestGraph.create();
+        tx = db.beginTx();
+        engine = new ExecutionEngine(db);
+        query = TestGraph.query(rows);
+        options = new ResultOptions().withDedup("dedup".equals(mode)).withDictionary("dictionary".equals(mode));
+        if ("batch".equals(mode)) options.withBatch(1000, 65536);
+
+        final ExecutionResult result = engine.execute(query);
+        columns = result.columns();
+        materialized = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> row : result) materialized.add(row);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tx.finish();
+        db.shutdown();
+    }
+
+    @Benchmark
+    public long serialize() {
+        long bytes = 0;
+        serializer.start(options);
+        serializer.reset();
+        serializer.writeColumns(columns);
+        bytes += serializer.toByteArray().length;
+        final int size = materialized.size();
+        int row = 0;
+        while (row < size) {
+            serializer.reset();
+            if (options.isBatch()) {
+                serializer.beginBatch();
+                int count = 0;
+                do {
+                    serializer.writeRow(columns, materialized.get(row++));
+                    count++;
+                } while (count < options.getBatchRows() && serializer.size() < options.getBatchBytes() && row < size);
+                serializer.endBatch(count);
+            } else {
+                serializer.writeRow(columns, materialized.get(row++));
+            }
+            bytes += serializer.toByteArray().length;
+        }
+        serializer.reset();
+        serializer.writeInfo(Collections.<String, Object>emptyMap());
+        return bytes + serializer.toByteArray().length;
+    }
+
+    @Benchmark
+    public long executeAndPack() {
+        final ExecutionResultMessagePack messagePack = new ExecutionResultMessagePack(serializer, options, engine.execute(query), false, null);
+        long bytes = 0;
+        while (messagePack.hasNext()) {
+            bytes += messagePack.next().length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+package de.jexp.bench;
+
+import de.jexp.msgpack.MessagePackResultSerializer;
+import de.jexp.serialize.ResultOptions;
+import de.jexp.zmq.RequestDecoder;
+import net.asdfa.msgpack.MsgPack;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.BufferPacker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Compares the MessagePack codecs on the same rows of plain Java values (entities already converted to maps, arrays to lists),
+ * each row packed as one frame: net.asdfa msgpack-lite, org.msgpack and the reused {@link MessagePackResultSerializer}.
+ * The request benchmarks decode a query with a list of 100 ids as params, generically and with the server's {@link RequestDecoder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessagePackCodecBenchmark {
+    private static final int ROWS = 1000;
+
+    @Param({"scalars", "entities", "lists"})
+    public String rows;
+
+    private List<String> columns;
+    private List<Map<String, Object>> maps;
+    private List<List<Object>> values;
+    private final MessagePack msgpack = new MessagePack();
+    private final MessagePackResultSerializer serializer = new MessagePackResultSerializer();
+    private List<byte[]> packed;
+    private byte[] request;
+    private final RequestDecoder decoder = new RequestDecoder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        columns = Arrays.asList("a", "b", "c", "d");
+        maps = new ArrayList<Map<String, Object>>(ROWS);
+        values = new ArrayList<List<Object>>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            final Map<String, Object> row = new LinkedHashMap<String, Object>();
+            for (String column : columns) row.put(column, value(random, i));
+            maps.add(row);
+            values.add(new ArrayList<Object>(row.values()));
+        }
+        serializer.start(new ResultOptions());
+        packed = new ArrayList<byte[]>(ROWS);
+        for (List<Object> row : values) packed.add(MsgPack.pack(row));
+        final List<Object> ids = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) ids.add((long) random.nextInt(1 << 20));
+        final Map<String, Object> requestData = new HashMap<String, Object>();
+        requestData.put("query", "match (n) where id(n) in {ids} return n.name");
+        requestData.put("params", Collections.singletonMap("ids", ids));
+        requestData.put("stats", false);
+        request = MsgPack.pack(requestData);
+    }
+
+    private Object value(Random random, int i) {
+        if ("scalars".equals(rows)) {
+            switch (random.nextInt(4)) {
+                case 0: return "value " + i;
+                case 1: return (long) random.nextInt(100000);
+                case 2: return random.nextDouble();
+                default: return random.nextBoolean();
+            }
+        }
+        if ("entities".equals(rows)) {
+            final Map<String, Object> data = new LinkedHashMap<String, Object>();
+            for (int p = 0; p < 15; p++) data.put("prop" + p, p % 2 == 0 ? "value " + random.nextInt(1000) : (Object) random.nextLong());
+            final Map<String, Object> node = new LinkedHashMap<String, Object>();
+            node.put("id", (long) i);
+            node.put("data", data);
+            return node;
+        }
+        final List<Object> list = new ArrayList<Object>(32);
+        for (int a = 0; a < 32; a++) list.add((long) random.nextInt(1 << 20));
+        return list;
+    }
+
+    @Benchmark
+    public long asdfaPack() {
+        long bytes = 0;
+        for (List<Object> row : values) bytes += MsgPack.pack(row).length;
+        return bytes;
+    }
+
+    @Benchmark
+    public long msgpackPack() throws IOException {
+        long bytes = 0;
+        for (List<Object> row : values) {
+            final BufferPacker packer = msgpack.createBufferPacker();
+            packer.write(row);
+            bytes += packer.toByteArray().length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long serializerPack() {
+        long bytes = 0;
+        for (Map<String, Object> row : maps) {
+            serializer.reset();
+            serializer.writeRow(columns, row);
+            bytes += serializer.toByteArray().length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int asdfaUnpack() {
+        int count = 0;
+        for (byte[] frame : packed) count += ((List) MsgPack.unpack(frame, MsgPack.UNPACK_RAW_AS_STRING)).size();
+        return count;
+    }
+
+    @Benchmark
+    public Object asdfaUnpackRequest() {
+        return MsgPack.unpack(request, MsgPack.UNPACK_RAW_AS_STRING);
+    }
+
+    @Benchmark
+    public Object decodeRequest() {
+        return decoder.decode(request);
+    }
+
+    @Benchmark
+    public int msgpackUnpack() throws IOException {
+        int count = 0;
+        for (byte[] frame : packed) count += msgpack.read(frame).asArrayValue().size();
+        return count;
+    }
+}
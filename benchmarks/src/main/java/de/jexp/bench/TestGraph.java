@@ -0,0 +1,95 @@
+package de.jexp.bench;
+
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Random;
+
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * In-memory graph with realistic rows: people with many properties of all types and primitive arrays,
+ * KNOWS relationships with properties and a chain of NEXT relationships for long paths.
+ */
+public class TestGraph {
+    public static final int PEOPLE = 1000;
+    public static final int FRIENDS = 5;
+    public static final int CHAIN = 50;
+
+    /**
+     * the rows of each shape, all return PEOPLE rows except paths which returns CHAIN - 1 paths of growing length
+     */
+    public static String query(String rows) {
+        if ("scalars".equals(rows)) return "match (n:Person) return n.name as name, n.age as age, n.score as score, n.active as active";
+        if ("nodes".equals(rows)) return "match (n:Person) return n";
+        if ("relationships".equals(rows)) return "match (n:Person)-[r:KNOWS]->() where r.rank = 0 return r";
+        if ("paths".equals(rows)) return "match p=(a:Chain {pos:0})-[:NEXT*]->() return p";
+        if ("arrays".equals(rows)) return "match (n:Person) return n.scores as scores, n.weights as weights, n.tags as tags";
+        throw new IllegalArgumentException("Unknown rows " + rows);
+    }
+
+    public static GraphDatabaseService create() {
+        // don't collide with a server running on the default port
+        final GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(cypher_remoting_address, ":15555").newGraphDatabase();
+        final Random random = new Random(42);
+        final Label person = DynamicLabel.label("Person");
+        final RelationshipType knows = DynamicRelationshipType.withName("KNOWS");
+        final Transaction tx = db.beginTx();
+        try {
+            final Node[] people = new Node[PEOPLE];
+            for (int i = 0; i < PEOPLE; i++) {
+                final Node node = db.createNode(person);
+                node.setProperty("name", "Person " + i);
+                node.setProperty("email", "person" + i + "@example.com");
+                node.setProperty("city", "City " + random.nextInt(100));
+                node.setProperty("age", 18 + random.nextInt(60));
+                node.setProperty("score", random.nextDouble() * 100);
+                node.setProperty("active", random.nextBoolean());
+                node.setProperty("created", System.currentTimeMillis() - random.nextInt(1000000));
+                for (int p = 0; p < 12; p++) {
+                    node.setProperty("prop" + p, p % 2 == 0 ? "value " + random.nextInt(1000) : (Object) random.nextLong());
+                }
+                final long[] scores = new long[32];
+                final double[] weights = new double[32];
+                for (int a = 0; a < scores.length; a++) {
+                    scores[a] = random.nextInt(1 << 20);
+                    weights[a] = random.nextDouble();
+                }
+                node.setProperty("scores", scores);
+                node.setProperty("weights", weights);
+                node.setProperty("tags", new String[]{"tag" + random.nextInt(10), "tag" + random.nextInt(10), "tag" + random.nextInt(10)});
+                people[i] = node;
+            }
+            for (int i = 0; i < PEOPLE; i++) {
+                for (int f = 0; f < FRIENDS; f++) {
+                    final Relationship rel = people[i].createRelationshipTo(people[random.nextInt(PEOPLE)], knows);
+                    rel.setProperty("rank", f);
+                    rel.setProperty("since", 1990 + random.nextInt(30));
+                    rel.setProperty("weight", random.nextDouble());
+                }
+            }
+            Node previous = null;
+            for (int i = 0; i < CHAIN; i++) {
+                final Node node = db.createNode(DynamicLabel.label("Chain"));
+                node.setProperty("pos", i);
+                node.setProperty("name", "Chain " + i);
+                if (previous != null) previous.createRelationshipTo(node, DynamicRelationshipType.withName("NEXT")).setProperty("pos", i);
+                previous = node;
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        return db;
+    }
+}
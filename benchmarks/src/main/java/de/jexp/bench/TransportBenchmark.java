@@ -0,0 +1,120 @@
+package de.jexp.bench;
+
+import de.jexp.shm.SharedMemoryClient;
+import net.asdfa.msgpack.MsgPack;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.*;
+import org.zeromq.ZMQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static de.jexp.zmq.CypherServer.PARAMS;
+import static de.jexp.zmq.CypherServer.QUERY;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Round trip of a small query through the server over the {@code tcp://}, {@code ipc://} and {@code shm://} transports,
+ * the sample time shows the latency percentiles, the throughput scales with the client threads, e.g.
+ * {@code java -jar target/benchmarks.jar Transport -t 4 -p threads=4}. Note that jeromq emulates ipc:// over loopback TCP.
+ */
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private static final byte[] REQUEST = MsgPack.pack(map(QUERY, "return {i} as i", PARAMS, map("i", 1)));
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"tcp", "ipc", "shm"})
+        public String transport;
+
+        // server threads
+        @Param({"1"})
+        public String threads;
+
+        private GraphDatabaseService db;
+        private File file;
+        String address;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            final String bind;
+            if ("tcp".equals(transport)) {
+                bind = ":15556";
+                address = "tcp://localhost:15556";
+            } else if ("ipc".equals(transport)) {
+                bind = address = "ipc://cypher-benchmark";
+            } else {
+                file = File.createTempFile("cypher-benchmark", ".shm");
+                bind = address = "shm://" + file.getPath();
+            }
+            db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                    .setConfig(cypher_remoting_address, bind).setConfig(cypher_remoting_threads, threads).newGraphDatabase();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            db.shutdown();
+            if (file != null) file.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private ZMQ.Context context;
+        private ZMQ.Socket socket;
+        private SharedMemoryClient sharedMemory;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            if ("shm".equals(server.transport)) {
+                sharedMemory = new SharedMemoryClient(server.address);
+            } else {
+                context = ZMQ.context(1);
+                socket = context.socket(ZMQ.REQ);
+                socket.setLinger(0);
+                socket.connect(server.address);
+            }
+        }
+
+        /**
+         * @return the bytes of the response
+         */
+        int request(byte[] request) {
+            int bytes = 0;
+            if (sharedMemory != null) {
+                for (byte[] frame : sharedMemory.request(request)) bytes += frame.length;
+                return bytes;
+            }
+            socket.send(request, 0);
+            do {
+                bytes += socket.recv(0).length;
+            } while (socket.hasReceiveMore());
+            return bytes;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            if (sharedMemory != null) {
+                sharedMemory.close();
+            } else {
+                socket.close();
+                context.term();
+            }
+        }
+    }
+
+    @Benchmark
+    public int smallQuery(Client client) {
+        return client.request(REQUEST);
+    }
+}
@@ -0,0 +1,141 @@
+package de.jexp.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * LRU cache of serialized response frames (header and rows, without footer) of read-only queries, keyed by query, params and result flags.
+ * Bounded by the number of entries and their total bytes, shared by all worker threads.
+ * Cleared on committed writes by the {@link ResultCacheInvalidator}, results computed before an invalidation are not stored, see {@link #generation()}.
+ */
+public class ResultCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private long bytes;
+    private long generation;
+    private long hits, misses, evictions;
+
+    public static class Entry {
+        public final List<byte[]> frames;
+        public final int rows;
+        public final long bytes;
+
+        Entry(List<byte[]> frames, int rows) {
+            this.frames = frames;
+            this.rows = rows;
+            long size = 0;
+            for (byte[] frame : frames) size += frame.length;
+            this.bytes = size;
+        }
+    }
+
+    public ResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public static Object key(String query, Map params, Object... flags) {
+        return Arrays.asList(query, comparable(params), Arrays.asList(flags));
+    }
+
+    /**
+     * decoded params can hold primitive arrays, which are compared by identity, they are replaced by lists
+     */
+    private static Object comparable(Object value) {
+        if (value instanceof Map) {
+            final Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), comparable(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List) {
+            final List<Object> copy = new ArrayList<Object>(((List) value).size());
+            for (Object element : (List) value) {
+                copy.add(comparable(element));
+            }
+            return copy;
+        }
+        if (value instanceof long[]) {
+            final List<Object> copy = new ArrayList<Object>();
+            for (long element : (long[]) value) copy.add(element);
+            return copy;
+        }
+        if (value instanceof double[]) {
+            final List<Object> copy = new ArrayList<Object>();
+            for (double element : (double[]) value) copy.add(element);
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * @return the cached entry or null, counts hits and misses
+     */
+    public synchronized Entry get(Object key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) misses++;
+        else hits++;
+        return entry;
+    }
+
+    /**
+     * the generation to pass to {@link #put} for a result that is computed afterwards
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * stores the frames unless the cache was invalidated since {@code generation} or the frames alone exceed the byte limit
+     */
+    public synchronized boolean put(Object key, List<byte[]> frames, int rows, long generation) {
+        if (generation != this.generation) return false;
+        final Entry entry = new Entry(frames, rows);
+        if (entry.bytes > maxBytes) return false;
+        final Entry old = entries.put(key, entry);
+        if (old != null) bytes -= old.bytes;
+        bytes += entry.bytes;
+        evict();
+        return true;
+    }
+
+    private void evict() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * adds the counters to a footer
+     */
+    public synchronized void addStats(Map<String, Object> info) {
+        info.put("cache_hits", hits);
+        info.put("cache_misses", misses);
+        info.put("cache_evictions", evictions);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+}
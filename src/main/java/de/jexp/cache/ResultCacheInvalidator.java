@@ -0,0 +1,101 @@
+package de.jexp.cache;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Clears the {@link ResultCache} after each committed write. With labels only writes that touch nodes with one of the labels
+ * (or relationships of such nodes) invalidate, that check runs before commit while the labels can still be read.
+ * Deleted nodes always invalidate as their labels are no longer accessible.
+ * The TransactionData of Neo4j 2.0 doesn't report label changes, so writes that only add or remove labels don't invalidate.
+ */
+public class ResultCacheInvalidator implements TransactionEventHandler<Boolean> {
+    private final ResultCache cache;
+    private final Set<String> labels;
+
+    /**
+     * @param labels the labels to restrict invalidation to, null or empty for every write
+     */
+    public ResultCacheInvalidator(ResultCache cache, Collection<String> labels) {
+        this.cache = cache;
+        this.labels = labels == null || labels.isEmpty() ? null : new HashSet<String>(labels);
+    }
+
+    @Override
+    public Boolean beforeCommit(TransactionData data) throws Exception {
+        if (labels == null) return hasChanges(data);
+        return affectsLabels(data);
+    }
+
+    /**
+     * read-only transactions are committed too
+     */
+    private static boolean hasChanges(TransactionData data) {
+        return data.createdNodes().iterator().hasNext() || data.deletedNodes().iterator().hasNext()
+                || data.createdRelationships().iterator().hasNext() || data.deletedRelationships().iterator().hasNext()
+                || data.assignedNodeProperties().iterator().hasNext() || data.removedNodeProperties().iterator().hasNext()
+                || data.assignedRelationshipProperties().iterator().hasNext() || data.removedRelationshipProperties().iterator().hasNext();
+    }
+
+    private boolean affectsLabels(TransactionData data) {
+        if (data.deletedNodes().iterator().hasNext()) return true;
+        for (Node node : data.createdNodes()) {
+            if (hasLabel(node)) return true;
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (hasLabel(entry.entity())) return true;
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (hasLabel(entry.entity())) return true;
+        }
+        for (Relationship rel : data.createdRelationships()) {
+            if (hasLabel(rel)) return true;
+        }
+        for (Relationship rel : data.deletedRelationships()) {
+            if (hasLabel(rel)) return true;
+        }
+        for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+            if (hasLabel(entry.entity())) return true;
+        }
+        for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+            if (hasLabel(entry.entity())) return true;
+        }
+        return false;
+    }
+
+    private boolean hasLabel(PropertyContainer entity) {
+        if (entity instanceof Relationship) {
+            final Relationship rel = (Relationship) entity;
+            return hasLabel(rel.getStartNode()) || hasLabel(rel.getEndNode());
+        }
+        try {
+            for (Label label : ((Node) entity).getLabels()) {
+                if (labels.contains(label.name())) return true;
+            }
+            return false;
+        } catch (RuntimeException e) {
+            // deleted in this transaction
+            return true;
+        }
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Boolean invalidate) {
+        if (Boolean.TRUE.equals(invalidate)) cache.invalidate();
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Boolean invalidate) {
+    }
+}
@@ -0,0 +1,146 @@
+package de.jexp.cdc;
+
+import net.asdfa.msgpack.MsgPack;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import zmq.ZError;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Publishes the {@link TransactionChanges} of each committed transaction on a PUB socket, one message per topic
+ * (a topic frame followed by the MessagePack summary), so subscribers filter by label or relationship type at the socket.
+ * The commit only captures the changes and offers them to a bounded queue, packing and sending happen on the publisher thread.
+ * When the queue is full the changes are dropped instead of slowing down writes, the number of dropped transactions is published
+ * on the {@link #DROPPED} topic before the next message, each message carries the sequence number of its transaction in {@code "tx"}.
+ * All topics end with {@link TransactionChanges#TOPIC_END}, so none is the prefix of another.
+ */
+public class ChangePublisher implements TransactionEventHandler<TransactionChanges>, Runnable {
+    public static final byte[] DROPPED = ("dropped" + TransactionChanges.TOPIC_END).getBytes();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ZMQ.Socket socket;
+    private final StringLogger logger;
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+    private long reportedDropped;
+
+    private static class Entry {
+        final long tx;
+        final long time;
+        final TransactionChanges changes;
+
+        Entry(long tx, long time, TransactionChanges changes) {
+            this.tx = tx;
+            this.time = time;
+            this.changes = changes;
+        }
+    }
+
+    private static final Entry STOP = new Entry(0, 0, null);
+
+    /**
+     * @param socket bound PUB socket, used and closed by the publisher thread
+     * @param capacity max transactions waiting to be published
+     */
+    public ChangePublisher(ZMQ.Socket socket, int capacity, StringLogger logger) {
+        this.socket = socket;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<Entry>(capacity);
+    }
+
+    @Override
+    public TransactionChanges beforeCommit(TransactionData data) throws Exception {
+        // the labels of the changed nodes can only be read before the commit
+        try {
+            return TransactionChanges.capture(data);
+        } catch (RuntimeException e) {
+            // an exception would roll back the transaction
+            logger.warn("Cypher Remoting change publisher failed to capture a transaction", e);
+            dropped.incrementAndGet();
+            return null;
+        }
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, TransactionChanges changes) {
+        if (changes == null) return;
+        final Entry entry = new Entry(sequence.incrementAndGet(), System.currentTimeMillis(), changes);
+        if (!queue.offer(entry)) dropped.incrementAndGet();
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, TransactionChanges changes) {
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                final Entry entry = queue.take();
+                if (entry == STOP) break;
+                try {
+                    publish(entry);
+                } catch (RuntimeException e) {
+                    if (e instanceof ZMQException || e instanceof ZError.CtxTerminatedException) throw e;
+                    logger.warn("Cypher Remoting change publisher failed to publish transaction " + entry.tx, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) logger.warn("Error in Cypher Remoting change publisher", e);
+        } catch (ZError.CtxTerminatedException e) {
+            // shutdown
+        } finally {
+            try {
+                socket.close();
+            } catch (ZMQException e) {
+                // already closed by context termination
+            }
+        }
+    }
+
+    /**
+     * lets the publisher thread close its socket, changes still waiting are not published
+     */
+    public void stop() {
+        running = false;
+        queue.clear();
+        // if the queue is full again the thread isn't waiting and sees the flag
+        queue.offer(STOP);
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void publish(Entry entry) {
+        final long droppedNow = dropped.get();
+        if (droppedNow != reportedDropped) {
+            socket.sendMore(DROPPED);
+            socket.send(MsgPack.pack(map("dropped", droppedNow, "before_tx", entry.tx)), 0);
+            reportedDropped = droppedNow;
+        }
+        for (Map.Entry<String, Map<String, Object>> topic : entry.changes.getTopics().entrySet()) {
+            final Map<String, Object> message = topic.getValue();
+            message.put("tx", entry.tx);
+            message.put("time", entry.time);
+            socket.sendMore(topic.getKey().getBytes(UTF_8));
+            socket.send(MsgPack.pack(message), 0);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package de.jexp.cdc;
+
+import de.jexp.util.LongHashSet;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Summary of a committed transaction split by topic, {@code node:<label>;} for each label of a changed node ({@code node:;} without labels)
+ * and {@code rel:<type>;} for each type of a changed relationship. The {@link #TOPIC_END} keeps a subscription to one label or type from
+ * matching the ones it is a prefix of, {@link #NODE_TOPIC} and {@link #REL_TOPIC} alone match all of them.
+ * The message of a topic holds the created entities with their labels, ends and properties, the ids of the deleted ones and the
+ * updated ones with their {@code set} and {@code removed} properties. It is captured before the commit while the labels can be read,
+ * Neo4j 2.0 doesn't expose the labels of deleted nodes, they are published on {@code node:;}, label changes aren't reported at all.
+ */
+public class TransactionChanges {
+    public static final String NODE_TOPIC = "node:";
+    public static final String REL_TOPIC = "rel:";
+    public static final String TOPIC_END = ";";
+    public static final String CREATED_NODES = "created_nodes", DELETED_NODES = "deleted_nodes", UPDATED_NODES = "updated_nodes";
+    public static final String CREATED_RELS = "created_rels", DELETED_RELS = "deleted_rels", UPDATED_RELS = "updated_rels";
+
+    private final Map<String, Map<String, Object>> topics = new LinkedHashMap<String, Map<String, Object>>();
+
+    private TransactionChanges() {
+    }
+
+    /**
+     * @return the changes of the transaction or null if it didn't change anything
+     */
+    public static TransactionChanges capture(TransactionData data) {
+        final TransactionChanges changes = new TransactionChanges();
+        final LongHashSet created = new LongHashSet();
+        final LongHashSet deleted = new LongHashSet();
+        for (Node node : data.createdNodes()) {
+            created.add(node.getId());
+            final Map<String, Object> entry = entity(node);
+            final List<String> labels = labels(node);
+            entry.put("labels", labels);
+            changes.add(nodeTopics(labels), CREATED_NODES, entry);
+        }
+        for (Node node : data.deletedNodes()) {
+            deleted.add(node.getId());
+            changes.add(nodeTopics(labels(node)), DELETED_NODES, node.getId());
+        }
+        final Map<Long, Map<String, Object>> updatedNodes = new LinkedHashMap<Long, Map<String, Object>>();
+        for (PropertyEntry<Node> property : data.assignedNodeProperties()) {
+            final Node node = property.entity();
+            if (created.contains(node.getId()) || deleted.contains(node.getId())) continue;
+            set(update(changes, updatedNodes, node), property);
+        }
+        for (PropertyEntry<Node> property : data.removedNodeProperties()) {
+            final Node node = property.entity();
+            if (created.contains(node.getId()) || deleted.contains(node.getId())) continue;
+            remove(update(changes, updatedNodes, node), property);
+        }
+
+        created.clear();
+        deleted.clear();
+        for (Relationship rel : data.createdRelationships()) {
+            created.add(rel.getId());
+            final Map<String, Object> entry = entity(rel);
+            entry.put("type", rel.getType().name());
+            entry.put("start", rel.getStartNode().getId());
+            entry.put("end", rel.getEndNode().getId());
+            changes.add(relTopics(rel), CREATED_RELS, entry);
+        }
+        for (Relationship rel : data.deletedRelationships()) {
+            deleted.add(rel.getId());
+            changes.add(relTopics(rel), DELETED_RELS, rel.getId());
+        }
+        final Map<Long, Map<String, Object>> updatedRels = new LinkedHashMap<Long, Map<String, Object>>();
+        for (PropertyEntry<Relationship> property : data.assignedRelationshipProperties()) {
+            final Relationship rel = property.entity();
+            if (created.contains(rel.getId()) || deleted.contains(rel.getId())) continue;
+            set(update(changes, updatedRels, rel), property);
+        }
+        for (PropertyEntry<Relationship> property : data.removedRelationshipProperties()) {
+            final Relationship rel = property.entity();
+            if (created.contains(rel.getId()) || deleted.contains(rel.getId())) continue;
+            remove(update(changes, updatedRels, rel), property);
+        }
+        return changes.topics.isEmpty() ? null : changes;
+    }
+
+    /**
+     * @param label the label or an empty string for the nodes without labels and the deleted ones
+     */
+    public static String nodeTopic(String label) {
+        return NODE_TOPIC + label + TOPIC_END;
+    }
+
+    public static String relTopic(String type) {
+        return REL_TOPIC + type + TOPIC_END;
+    }
+
+    /**
+     * @return the message of each topic, the lists of changes by their kind
+     */
+    public Map<String, Map<String, Object>> getTopics() {
+        return topics;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(List<String> topicNames, String kind, Object change) {
+        for (String topic : topicNames) {
+            Map<String, Object> message = topics.get(topic);
+            if (message == null) {
+                message = new LinkedHashMap<String, Object>();
+                topics.put(topic, message);
+            }
+            List<Object> changes = (List<Object>) message.get(kind);
+            if (changes == null) {
+                changes = new ArrayList<Object>();
+                message.put(kind, changes);
+            }
+            changes.add(change);
+        }
+    }
+
+    /**
+     * @return the update entry of the entity, added to its topics on first use
+     */
+    private static Map<String, Object> update(TransactionChanges changes, Map<Long, Map<String, Object>> updates, PropertyContainer entity) {
+        final long id = id(entity);
+        Map<String, Object> update = updates.get(id);
+        if (update == null) {
+            update = new LinkedHashMap<String, Object>();
+            update.put("id", id);
+            updates.put(id, update);
+            if (entity instanceof Node) changes.add(nodeTopics(labels((Node) entity)), UPDATED_NODES, update);
+            else changes.add(relTopics((Relationship) entity), UPDATED_RELS, update);
+        }
+        return update;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void set(Map<String, Object> update, PropertyEntry<?> property) {
+        Map<String, Object> set = (Map<String, Object>) update.get("set");
+        if (set == null) {
+            set = new LinkedHashMap<String, Object>();
+            update.put("set", set);
+        }
+        set.put(property.key(), value(property.value()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void remove(Map<String, Object> update, PropertyEntry<?> property) {
+        List<String> removed = (List<String>) update.get("removed");
+        if (removed == null) {
+            removed = new ArrayList<String>();
+            update.put("removed", removed);
+        }
+        removed.add(property.key());
+    }
+
+    private static Map<String, Object> entity(PropertyContainer entity) {
+        final Map<String, Object> entry = new LinkedHashMap<String, Object>();
+        entry.put("id", id(entity));
+        final Map<String, Object> props = new LinkedHashMap<String, Object>();
+        for (String key : entity.getPropertyKeys()) {
+            props.put(key, value(entity.getProperty(key)));
+        }
+        entry.put("props", props);
+        return entry;
+    }
+
+    private static long id(PropertyContainer entity) {
+        return entity instanceof Node ? ((Node) entity).getId() : ((Relationship) entity).getId();
+    }
+
+    /**
+     * @return the label names or an empty list if they can't be read because the node was deleted
+     */
+    private static List<String> labels(Node node) {
+        try {
+            final List<String> labels = new ArrayList<String>();
+            for (Label label : node.getLabels()) labels.add(label.name());
+            return labels;
+        } catch (RuntimeException e) {
+            // deleted in this transaction
+            return Collections.emptyList();
+        }
+    }
+
+    private static List<String> nodeTopics(List<String> labels) {
+        if (labels.isEmpty()) return Collections.singletonList(nodeTopic(""));
+        final List<String> topics = new ArrayList<String>(labels.size());
+        for (String label : labels) topics.add(nodeTopic(label));
+        return topics;
+    }
+
+    private static List<String> relTopics(Relationship rel) {
+        try {
+            return Collections.singletonList(relTopic(rel.getType().name()));
+        } catch (RuntimeException e) {
+            // deleted in this transaction
+            return Collections.singletonList(relTopic(""));
+        }
+    }
+
+    /**
+     * property arrays become lists for MessagePack
+     */
+    private static Object value(Object value) {
+        if (value == null || !value.getClass().isArray()) return value;
+        final int length = Array.getLength(value);
+        final List<Object> list = new ArrayList<Object>(length);
+        for (int i = 0; i < length; i++) list.add(Array.get(value, i));
+        return list;
+    }
+}
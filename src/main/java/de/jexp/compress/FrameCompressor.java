@@ -0,0 +1,66 @@
+package de.jexp.compress;
+
+import java.util.Arrays;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Frames of responses that requested compression start with a flag byte, {@link #PLAIN} is followed by the MessagePack frame,
+ * {@link #COMPRESSED} by the big endian 4 byte length of the frame and its LZ4 block.
+ * Frames below the threshold, or that don't get smaller, are sent plain.
+ * One instance per worker thread, it reuses its buffers.
+ */
+public class FrameCompressor {
+    public static final byte PLAIN = 0;
+    public static final byte COMPRESSED = 1;
+    private static final int HEADER = 5;
+
+    private final int threshold;
+    private final Lz4Block lz4 = new Lz4Block();
+    private byte[] buffer = new byte[0];
+
+    /**
+     * @param threshold minimum frame size in bytes to compress
+     */
+    public FrameCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public byte[] encode(byte[] frame) {
+        final int length = frame.length;
+        if (length >= threshold) {
+            final int capacity = HEADER + Lz4Block.maxCompressedLength(length);
+            if (buffer.length < capacity) buffer = new byte[capacity];
+            final int compressed = lz4.compress(frame, 0, length, buffer, HEADER);
+            if (compressed + HEADER < length + 1) {
+                buffer[0] = COMPRESSED;
+                buffer[1] = (byte) (length >>> 24);
+                buffer[2] = (byte) (length >>> 16);
+                buffer[3] = (byte) (length >>> 8);
+                buffer[4] = (byte) length;
+                return Arrays.copyOf(buffer, compressed + HEADER);
+            }
+        }
+        final byte[] result = new byte[length + 1];
+        result[0] = PLAIN;
+        System.arraycopy(frame, 0, result, 1, length);
+        return result;
+    }
+
+    /**
+     * @return the MessagePack frame, frames without flag (e.g. errors reported before the request was read) are returned as they are
+     */
+    public static byte[] decode(byte[] frame) {
+        if (frame.length == 0) return frame;
+        if (frame[0] == PLAIN) return Arrays.copyOfRange(frame, 1, frame.length);
+        if (frame[0] != COMPRESSED) return frame;
+        final int length = (frame[1] & 0xff) << 24 | (frame[2] & 0xff) << 16 | (frame[3] & 0xff) << 8 | (frame[4] & 0xff);
+        final byte[] result = new byte[length];
+        Lz4Block.decompress(frame, HEADER, frame.length - HEADER, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,162 @@
+package de.jexp.compress;
+
+import java.util.Arrays;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Pure Java compressor for the LZ4 block format (greedy matching with a hash table of 4 byte sequences and a 64k window),
+ * so clients in other languages can decompress frames with any LZ4 library.
+ * Instances reuse their hash table and are not thread safe, {@link #decompress} is stateless.
+ */
+public class Lz4Block {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xff) | (buf[i + 1] & 0xff) << 8 | (buf[i + 2] & 0xff) << 16 | (buf[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * @param dest must have room for {@link #maxCompressedLength(int)} bytes
+     * @return the compressed length
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+        final int end = srcOff + srcLen;
+        int dp = destOff;
+        int anchor = srcOff;
+        if (srcLen >= MF_LIMIT + 1) {
+            Arrays.fill(table, -1);
+            final int matchLimit = end - LAST_LITERALS;
+            final int mfLimit = end - MF_LIMIT;
+            int ip = srcOff;
+            int misses = 0;
+            while (ip < mfLimit) {
+                final int sequence = readInt(src, ip);
+                final int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    // skip faster through incompressible data
+                    ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                    continue;
+                }
+                misses = 0;
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) matchLength++;
+                dp = writeSequence(src, anchor, ip - anchor, dest, dp, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+                if (ip < mfLimit) table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+        return writeLastLiterals(src, anchor, end - anchor, dest, dp) - destOff;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, byte[] dest, int dp, int offset, int matchLength) {
+        final int tokenPos = dp++;
+        final int match = matchLength - MIN_MATCH;
+        dp = writeLength(dest, dp, literals);
+        System.arraycopy(src, literalStart, dest, dp, literals);
+        dp += literals;
+        dest[dp++] = (byte) offset;
+        dest[dp++] = (byte) (offset >>> 8);
+        if (match >= 15) {
+            int rest = match - 15;
+            while (rest >= 255) {
+                dest[dp++] = (byte) 255;
+                rest -= 255;
+            }
+            dest[dp++] = (byte) rest;
+        }
+        dest[tokenPos] = (byte) ((Math.min(literals, 15) << 4) | Math.min(match, 15));
+        return dp;
+    }
+
+    /**
+     * writes the extra bytes of a literal length above 14, the token nibble is written by the caller
+     */
+    private static int writeLength(byte[] dest, int dp, int length) {
+        if (length >= 15) {
+            int rest = length - 15;
+            while (rest >= 255) {
+                dest[dp++] = (byte) 255;
+                rest -= 255;
+            }
+            dest[dp++] = (byte) rest;
+        }
+        return dp;
+    }
+
+    private static int writeLastLiterals(byte[] src, int start, int literals, byte[] dest, int dp) {
+        dest[dp++] = (byte) (Math.min(literals, 15) << 4);
+        dp = writeLength(dest, dp, literals);
+        System.arraycopy(src, start, dest, dp, literals);
+        return dp + literals;
+    }
+
+    /**
+     * @param destLen the exact uncompressed length
+     * @throws IllegalArgumentException if the input is malformed
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) {
+        final int srcEnd = srcOff + srcLen;
+        final int destEnd = destOff + destLen;
+        int sp = srcOff;
+        int dp = destOff;
+        try {
+            while (sp < srcEnd) {
+                final int token = src[sp++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > destEnd - dp || literals > srcEnd - sp) throw new IllegalArgumentException("Malformed LZ4 block, literals exceed the input or output");
+                System.arraycopy(src, sp, dest, dp, literals);
+                sp += literals;
+                dp += literals;
+                if (sp >= srcEnd) break;
+                final int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+                sp += 2;
+                int matchLength = token & 0x0f;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = dp - offset;
+                if (offset == 0 || ref < destOff || matchLength > destEnd - dp) throw new IllegalArgumentException("Malformed LZ4 block, invalid match at " + (sp - srcOff));
+                // byte by byte as the match may overlap the output
+                for (int i = 0; i < matchLength; i++) dest[dp++] = dest[ref++];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed LZ4 block, unexpected end of input");
+        }
+        if (dp != destEnd) throw new IllegalArgumentException("Malformed LZ4 block, expected " + destLen + " bytes but got " + (dp - destOff));
+    }
+}
@@ -0,0 +1,255 @@
+package de.jexp.ingest;
+
+import de.jexp.zmq.RequestDecoder;
+import de.jexp.zmq.StatementHandles;
+import net.asdfa.msgpack.MsgPack;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import zmq.ZError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Applies a stream of parameter maps for prepared statements without a reply per message. Loaders PUSH messages like
+ * {@code {"handle": 7, "params": {...}}} (or with a {@code "query"}) to the PULL socket, they are executed in transactions
+ * of {@code batchSize} messages, which are also committed once {@code commitInterval} passed since the batch began,
+ * and when a {@code {"flush": true}} message arrives, so a loader knows when its messages are committed.
+ * A failing message is skipped: the transaction is rolled back and the messages before it are applied again in a new one,
+ * which is committed right away as a checkpoint, so each message is replayed at most once however many messages of a batch fail.
+ * After each commit the counters are published on the progress socket with the topic {@link #PROGRESS}, failures with {@link #ERROR},
+ * the PUB socket drops messages for slow subscribers instead of slowing down the load.
+ */
+public class BulkIngest implements Runnable {
+    public static final byte[] PROGRESS = "progress".getBytes();
+    public static final byte[] ERROR = "error".getBytes();
+    public static final String FLUSH = "flush";
+    // echoed in the error report of a message
+    public static final String ID = "id";
+    private static final int RECEIVE_TIMEOUT = 1000;
+
+    private final GraphDatabaseService db;
+    private final ExecutionEngine engine;
+    private final StatementHandles statements;
+    private final ZMQ.Socket pull;
+    private final ZMQ.Socket progress;
+    private final int batchSize;
+    private final long commitInterval;
+    private final StringLogger logger;
+    private final RequestDecoder decoder = new RequestDecoder();
+    private final List<Entry> batch = new ArrayList<Entry>();
+
+    private Transaction tx;
+    private long batchStart;
+    private long received;
+    private long committed;
+    private long failed;
+
+    private static class Entry {
+        final long row;
+        final Object id;
+        final String query;
+        final Map<String, Object> params;
+
+        Entry(long row, Object id, String query, Map<String, Object> params) {
+            this.row = row;
+            this.id = id;
+            this.query = query;
+            this.params = params;
+        }
+    }
+
+    /**
+     * @param progress bound PUB socket for progress and errors or null to only log errors
+     * @param commitInterval max millis between the first message of a batch and its commit, 0 to commit by size only
+     */
+    public BulkIngest(GraphDatabaseService db, ExecutionEngine engine, StatementHandles statements, ZMQ.Socket pull, ZMQ.Socket progress,
+                      int batchSize, long commitInterval, StringLogger logger) {
+        this.db = db;
+        this.engine = engine;
+        this.statements = statements;
+        this.pull = pull;
+        this.progress = progress;
+        this.batchSize = batchSize;
+        this.commitInterval = commitInterval;
+        this.logger = logger;
+        pull.setReceiveTimeOut(commitInterval > 0 ? (int) Math.min(commitInterval, RECEIVE_TIMEOUT) : RECEIVE_TIMEOUT);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final byte[] message = pull.recv(0);
+                if (message != null) receive(message);
+                if (tx != null && (batch.size() >= batchSize || commitInterval > 0 && System.currentTimeMillis() - batchStart >= commitInterval)) {
+                    commit(false);
+                }
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) logger.warn("Error in Cypher Remoting bulk ingest", e);
+        } catch (ZError.CtxTerminatedException e) {
+            // shutdown
+        } catch (RuntimeException e) {
+            logger.warn("Error in Cypher Remoting bulk ingest", e);
+        } finally {
+            finishOnShutdown();
+        }
+    }
+
+    private void receive(byte[] message) {
+        final long row = ++received;
+        final Object data;
+        try {
+            data = decoder.decode(message);
+        } catch (RuntimeException e) {
+            report(row, null, e);
+            return;
+        }
+        if (!(data instanceof Map)) {
+            report(row, null, new IllegalArgumentException("Ingest messages must be maps"));
+            return;
+        }
+        final Map input = (Map) data;
+        if (Boolean.TRUE.equals(input.get(FLUSH))) {
+            // not a row
+            received--;
+            commit(true);
+            return;
+        }
+        final Entry entry;
+        try {
+            entry = entry(row, input);
+        } catch (RuntimeException e) {
+            // unknown handle or values of the wrong type
+            report(row, input.get(ID), e);
+            return;
+        }
+        if (tx == null) {
+            tx = db.beginTx();
+            batchStart = System.currentTimeMillis();
+        }
+        try {
+            apply(entry);
+            batch.add(entry);
+        } catch (RuntimeException e) {
+            fail(entry, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry entry(long row, Map input) {
+        final Number handle = (Number) input.get(HANDLE);
+        final String query = handle != null ? statements.get(handle.longValue()) : (String) input.get(QUERY);
+        if (query == null) throw new IllegalArgumentException("Ingest message without handle or query");
+        final Map<String, Object> params = input.get(PARAMS) != null ? (Map<String, Object>) input.get(PARAMS) : Collections.<String, Object>emptyMap();
+        return new Entry(row, input.get(ID), query, params);
+    }
+
+    private void apply(Entry entry) {
+        // results are lazy, consume them so that the updates are executed
+        IteratorUtil.count(engine.execute(entry.query, entry.params).iterator());
+    }
+
+    /**
+     * the transaction may be unusable after the failed statement, so it is rolled back and the batch applied again without it,
+     * then committed so that a later failure only replays the messages since
+     */
+    private void fail(Entry entry, RuntimeException e) {
+        report(entry.row, entry.id, e);
+        rollback();
+        while (!batch.isEmpty() && !replay()) {
+            rollback();
+        }
+        if (tx != null) commit(false);
+    }
+
+    /**
+     * @return false if a message failed again, it is removed from the batch
+     */
+    private boolean replay() {
+        tx = db.beginTx();
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                apply(batch.get(i));
+            } catch (RuntimeException e) {
+                final Entry entry = batch.remove(i);
+                report(entry.row, entry.id, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rollback() {
+        tx.failure();
+        tx.finish();
+        tx = null;
+    }
+
+    private void report(long row, Object id, Exception e) {
+        failed++;
+        if (logger.isDebugEnabled()) logger.debug("Cypher Remoting bulk ingest, failed message " + row + ": " + e.getMessage());
+        publish(ERROR, map("row", row, ID, id, "error", e.getClass().getSimpleName() + ": " + e.getMessage()));
+    }
+
+    /**
+     * @param flush publishes the progress even without an open batch, as acknowledgement of the flush message
+     */
+    private void commit(boolean flush) {
+        final int rows = batch.size();
+        final long start = System.currentTimeMillis();
+        if (tx != null) {
+            try {
+                tx.success();
+                tx.finish();
+                committed += rows;
+            } catch (RuntimeException e) {
+                // e.g. a constraint checked at commit, all messages of the batch are lost
+                failed += rows;
+                logger.warn("Cypher Remoting bulk ingest, failed to commit " + rows + " messages", e);
+                publish(ERROR, map("row", rows > 0 ? batch.get(0).row : null, "rows", rows, "error", e.getClass().getSimpleName() + ": " + e.getMessage()));
+            }
+            tx = null;
+            batch.clear();
+        } else if (!flush) {
+            return;
+        }
+        publish(PROGRESS, map("received", received, "committed", committed, "failed", failed,
+                "batch", rows, "millis", System.currentTimeMillis() - start, FLUSH, flush));
+    }
+
+    private void publish(byte[] topic, Map<String, Object> report) {
+        if (progress == null) return;
+        progress.sendMore(topic);
+        progress.send(MsgPack.pack(report), 0);
+    }
+
+    /**
+     * commits the open batch without reporting, the context is already terminated
+     */
+    private void finishOnShutdown() {
+        if (tx == null) return;
+        try {
+            tx.success();
+            tx.finish();
+            committed += batch.size();
+        } catch (RuntimeException e) {
+            logger.warn("Cypher Remoting bulk ingest, failed to commit " + batch.size() + " messages on shutdown", e);
+        }
+        tx = null;
+        batch.clear();
+    }
+}
@@ -0,0 +1,290 @@
+package de.jexp.load;
+
+import de.jexp.stats.LatencyHistogram;
+import de.jexp.zmq.PipelinedCypherClient;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Open-loop load generator, requests are started at a fixed rate independent of the response times,
+ * as many as necessary are in flight on one pipelined connection.
+ * Latencies are measured from the time a request was scheduled, not from when it was actually sent,
+ * so a stalled server or client is not hidden by coordinated omission.
+ * A transactional script counts as one operation from its scheduled start to the commit, its steps are sent one after another.
+ * <pre>
+ * java -cp zmq_mp-1.0-jar-with-dependencies.jar de.jexp.load.LoadGenerator --workload workload.jsonl --rate 2000 --duration 60 [--embedded graph.db]
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final String TOTAL = "total";
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String address;
+    private final Workload workload;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long reportNanos;
+    private final long drainNanos;
+    private final Random random;
+    private final PrintStream out;
+
+    private final Map<Long, Operation> inFlight = new HashMap<Long, Operation>();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, Object> firstErrors = new LinkedHashMap<String, Object>();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private long measureFrom;
+    private long started, completed, errors, intervalCompleted, intervalErrors;
+    private PipelinedCypherClient client;
+
+    /**
+     * an operation scheduled at a point in time, a single request or a script in progress
+     */
+    private static class Operation {
+        final Workload.Entry entry;
+        final long scheduled;
+        // -1 while the transaction of a script is begun, getSteps() while it is committed
+        int step;
+        Number txId;
+        boolean failed;
+
+        Operation(Workload.Entry entry, long scheduled) {
+            this.entry = entry;
+            this.scheduled = scheduled;
+            this.step = entry.isScript() ? -1 : 0;
+        }
+    }
+
+    public LoadGenerator(String address, Workload workload, double rate, long duration, long warmup, long reportInterval, TimeUnit unit, long seed, PrintStream out) {
+        if (rate <= 0) throw new IllegalArgumentException("Rate must be positive but was " + rate);
+        this.address = address;
+        this.workload = workload;
+        this.rate = rate;
+        this.durationNanos = unit.toNanos(duration);
+        this.warmupNanos = unit.toNanos(warmup);
+        this.reportNanos = unit.toNanos(reportInterval);
+        this.drainNanos = TimeUnit.SECONDS.toNanos(10);
+        this.random = new Random(seed);
+        this.out = out;
+        latencies.put(TOTAL, new LatencyHistogram());
+        for (Workload.Entry entry : workload.getEntries()) latencies.put(entry.getName(), new LatencyHistogram());
+    }
+
+    public void run() {
+        client = new PipelinedCypherClient(address);
+        try {
+            setup();
+            generate();
+            report();
+        } finally {
+            client.close();
+        }
+    }
+
+    private void setup() {
+        for (Workload.Entry entry : workload.getSetup()) {
+            for (int step = 0; step < entry.getSteps(); step++) {
+                client.send(workload.request(entry, step, random));
+                final PipelinedCypherClient.Response response = client.receive();
+                final Object error = error(response);
+                if (error != null) throw new IllegalStateException("Setup " + entry.getName() + " failed: " + error);
+            }
+        }
+    }
+
+    private void generate() {
+        final long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        final long start = System.nanoTime();
+        final long end = start + durationNanos;
+        measureFrom = start + warmupNanos;
+        long nextStart = start;
+        long nextReport = start + reportNanos;
+        out.printf("%8s %8s %8s %8s %10s %10s %10s %10s %9s%n", "time(s)", "started", "done", "errors", "ops/s", "p50(ms)", "p99(ms)", "max(ms)", "in-flight");
+        while (true) {
+            long now = System.nanoTime();
+            while (nextStart <= now && nextStart < end) {
+                start(new Operation(workload.pick(random), nextStart));
+                nextStart += intervalNanos;
+            }
+            if (now >= nextReport) {
+                reportInterval(now - start);
+                nextReport += reportNanos;
+            }
+            if (now >= end && (inFlight.isEmpty() || now >= end + drainNanos)) break;
+            final long wait = Math.min(now < end ? nextStart : now + 100 * MILLI, nextReport) - now;
+            PipelinedCypherClient.Response response = client.receive(Math.max(0, wait / MILLI));
+            while (response != null) {
+                handle(response);
+                response = client.receive(0);
+            }
+        }
+        if (!inFlight.isEmpty()) out.println(inFlight.size() + " operations did not complete within the drain time");
+    }
+
+    private void start(Operation operation) {
+        started++;
+        send(operation);
+    }
+
+    private void send(Operation operation) {
+        final Map<String, Object> request;
+        if (!operation.entry.isScript()) {
+            request = workload.request(operation.entry, 0, random);
+        } else if (operation.step < 0) {
+            request = map(TX, "begin", STATS, true);
+        } else if (operation.step >= operation.entry.getSteps()) {
+            request = map(TX, operation.failed ? "rollback" : "commit", TX_ID, operation.txId);
+        } else {
+            request = workload.request(operation.entry, operation.step, random);
+            request.put(TX_ID, operation.txId);
+        }
+        inFlight.put(client.send(request), operation);
+    }
+
+    private void handle(PipelinedCypherClient.Response response) {
+        final Operation operation = inFlight.remove(response.requestId);
+        final Object error = error(response);
+        final boolean failed = error != null;
+        if (failed && operation != null && !firstErrors.containsKey(operation.entry.getName())) {
+            firstErrors.put(operation.entry.getName(), error);
+        }
+        if (operation == null) {
+            // errors while reading a request are not tagged with its id
+            if (failed) errors++;
+            return;
+        }
+        if (operation.entry.isScript() && operation.step < operation.entry.getSteps()) {
+            if (operation.step < 0) {
+                operation.txId = (Number) footer(response).get(TX_ID);
+                if (failed || operation.txId == null) {
+                    complete(operation, true);
+                    return;
+                }
+            }
+            if (failed) {
+                operation.failed = true;
+                operation.step = operation.entry.getSteps();
+            } else {
+                operation.step++;
+            }
+            send(operation);
+            return;
+        }
+        complete(operation, failed || operation.failed);
+    }
+
+    private void complete(Operation operation, boolean failed) {
+        final long now = System.nanoTime();
+        completed++;
+        intervalCompleted++;
+        if (failed) {
+            errors++;
+            intervalErrors++;
+        }
+        final long latency = now - operation.scheduled;
+        interval.record(latency);
+        if (operation.scheduled >= measureFrom) {
+            latencies.get(TOTAL).record(latency);
+            latencies.get(operation.entry.getName()).record(latency);
+        }
+    }
+
+    private static Map footer(PipelinedCypherClient.Response response) {
+        final Object last = response.frames.isEmpty() ? null : response.frames.get(response.frames.size() - 1);
+        return last instanceof Map ? (Map) last : Collections.emptyMap();
+    }
+
+    private static Object error(PipelinedCypherClient.Response response) {
+        return footer(response).get("error");
+    }
+
+    private void reportInterval(long elapsed) {
+        out.printf("%8.1f %8d %8d %8d %10.1f %10.2f %10.2f %10.2f %9d%n", elapsed / 1e9, started, completed, intervalErrors,
+                intervalCompleted * 1e9 / reportNanos, millis(interval.percentile(0.5)), millis(interval.percentile(0.99)),
+                millis(interval.getMax()), inFlight.size());
+        interval.reset();
+        intervalCompleted = 0;
+        intervalErrors = 0;
+    }
+
+    private void report() {
+        final double seconds = Math.max(durationNanos - warmupNanos, MILLI) / 1e9;
+        out.printf("%nTarget rate %.1f ops/s, %d operations, %d errors, measured throughput %.1f ops/s over %.1f s%n",
+                rate, completed, errors, latencies.get(TOTAL).getCount() / seconds, seconds);
+        out.printf("%-20s %8s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            out.printf("%-20s %8d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), histogram.getCount(),
+                    millis(histogram.getMean()), millis(histogram.percentile(0.5)), millis(histogram.percentile(0.9)),
+                    millis(histogram.percentile(0.99)), millis(histogram.percentile(0.999)), millis(histogram.getMax()));
+        }
+        for (Map.Entry<String, Object> entry : firstErrors.entrySet()) {
+            out.println("First error of " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * latencies of the operations scheduled after the warmup, per workload entry and in total
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        return latencies;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Expected an option but got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (!options.containsKey("workload")) {
+            System.err.println("Usage: LoadGenerator --workload file.jsonl [--rate ops/s (100)] [--duration s (30)] [--warmup s (5)] [--interval s (1)]\n" +
+                    "  [--seed n] [--port 5555] [--host localhost] [--embedded store-dir] [--server-threads n]");
+            System.exit(1);
+        }
+        final String port = option(options, "port", "5555");
+        GraphDatabaseService db = null;
+        if (options.containsKey("embedded")) {
+            db = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(new File(options.get("embedded")).getAbsolutePath())
+                    .setConfig(cypher_remoting_address, ":" + port)
+                    .setConfig(cypher_remoting_threads, option(options, "server-threads", "4")).newGraphDatabase();
+        }
+        try {
+            final LoadGenerator generator = new LoadGenerator("tcp://" + option(options, "host", "localhost") + ":" + port,
+                    Workload.load(new File(options.get("workload"))), Double.parseDouble(option(options, "rate", "100")),
+                    Long.parseLong(option(options, "duration", "30")), Long.parseLong(option(options, "warmup", "5")),
+                    Long.parseLong(option(options, "interval", "1")), TimeUnit.SECONDS,
+                    Long.parseLong(option(options, "seed", "42")), System.out);
+            generator.run();
+        } finally {
+            if (db != null) db.shutdown();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+}
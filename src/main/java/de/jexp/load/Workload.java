@@ -0,0 +1,151 @@
+package de.jexp.load;
+
+import de.jexp.util.JsonReader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Weighted mix of requests read from a JSONL file, one entry per line, empty lines and lines starting with # are ignored.
+ * <ul>
+ *     <li>{@code "name"} for the report (defaults to the line number) and {@code "weight"} (defaults to 1)</li>
+ *     <li>{@code "setup": true} entries are executed once before the load starts</li>
+ *     <li>{@code "script": [{"query": .., "params": ..}, ..]} runs the statements as transaction, begin, one request per statement and commit,
+ *     a failing statement rolls it back</li>
+ *     <li>all other keys form the request as it is sent to the server, e.g. {@code query, params, no_results, dedup, statements}</li>
+ * </ul>
+ * Values in the request are generated per execution: {@code {"$random": n}} is a random integer from 0 to n-1,
+ * {@code {"$choice": [..]}} one of the values and {@code "$seq"} a sequence number.
+ */
+public class Workload {
+    public static final String NAME = "name", WEIGHT = "weight", SETUP = "setup", SCRIPT = "script";
+    private static final String RANDOM = "$random", CHOICE = "$choice", SEQUENCE = "$seq";
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final List<Entry> setup = new ArrayList<Entry>();
+    private double[] cumulativeWeights = new double[0];
+    private final AtomicLong sequence = new AtomicLong();
+
+    public static class Entry {
+        private final String name;
+        private final double weight;
+        private final Map<String, Object> request;
+        private final List<Map<String, Object>> script;
+
+        Entry(String name, double weight, Map<String, Object> request, List<Map<String, Object>> script) {
+            this.name = name;
+            this.weight = weight;
+            this.request = request;
+            this.script = script;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public boolean isScript() {
+            return script != null;
+        }
+
+        public int getSteps() {
+            return script == null ? 1 : script.size();
+        }
+    }
+
+    public static Workload load(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            final List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+            return parse(lines);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Workload parse(List<String> lines) {
+        final Workload workload = new Workload();
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            final Object value = JsonReader.parse(line);
+            if (!(value instanceof Map)) throw new IllegalArgumentException("Workload line " + (i + 1) + " is not an object: " + line);
+            final Map<String, Object> request = new LinkedHashMap<String, Object>((Map<String, Object>) value);
+            final Object name = request.remove(NAME);
+            final Object weight = request.remove(WEIGHT);
+            final boolean isSetup = Boolean.TRUE.equals(request.remove(SETUP));
+            final List<Map<String, Object>> script = (List<Map<String, Object>>) request.remove(SCRIPT);
+            final Entry entry = new Entry(name == null ? "line" + (i + 1) : name.toString(),
+                    weight instanceof Number ? ((Number) weight).doubleValue() : 1, request, script);
+            if (isSetup) workload.setup.add(entry);
+            else if (entry.weight > 0) workload.add(entry);
+        }
+        if (workload.entries.isEmpty()) throw new IllegalArgumentException("Workload contains no weighted entries");
+        return workload;
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+        cumulativeWeights = Arrays.copyOf(cumulativeWeights, entries.size());
+        cumulativeWeights[entries.size() - 1] = entry.weight + (entries.size() > 1 ? cumulativeWeights[entries.size() - 2] : 0);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public List<Entry> getSetup() {
+        return setup;
+    }
+
+    /**
+     * picks an entry with a probability proportional to its weight
+     */
+    public Entry pick(Random random) {
+        final double value = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, value);
+        if (index < 0) index = -index - 1;
+        return entries.get(Math.min(index, entries.size() - 1));
+    }
+
+    /**
+     * @return the request of the entry (or of the step of its script) with generated values
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> request(Entry entry, int step, Random random) {
+        return (Map<String, Object>) generate(entry.script == null ? entry.request : entry.script.get(step), random);
+    }
+
+    private Object generate(Object template, Random random) {
+        if (SEQUENCE.equals(template)) return sequence.incrementAndGet();
+        if (template instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) template;
+            if (map.size() == 1 && map.get(RANDOM) instanceof Number) {
+                return (long) (random.nextDouble() * ((Number) map.get(RANDOM)).longValue());
+            }
+            if (map.size() == 1 && map.get(CHOICE) instanceof List) {
+                final List<?> choices = (List<?>) map.get(CHOICE);
+                return generate(choices.get(random.nextInt(choices.size())), random);
+            }
+            final Map<String, Object> result = new LinkedHashMap<String, Object>(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) result.put(String.valueOf(e.getKey()), generate(e.getValue(), random));
+            return result;
+        }
+        if (template instanceof List) {
+            final List<?> list = (List<?>) template;
+            final List<Object> result = new ArrayList<Object>(list.size());
+            for (Object value : list) result.add(generate(value, random));
+            return result;
+        }
+        return template;
+    }
+}
@@ -0,0 +1,83 @@
+package de.jexp.msgpack;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static de.jexp.msgpack.MessagePackResultSerializer.NODE_REF;
+import static de.jexp.msgpack.MessagePackResultSerializer.REL_REF;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Client side counterpart of the dedup option, remembers the nodes and relationships of a response
+ * and replaces {node:id} and {rel:id} references in unpacked rows with them.
+ * Rows are first scanned for full entities, as unpacked maps don't keep the order in which they were written.
+ */
+public class EntityReferences {
+    private final Map<Long, Object> nodes = new HashMap<Long, Object>();
+    private final Map<Long, Object> rels = new HashMap<Long, Object>();
+
+    public Object resolve(Object row) {
+        register(row);
+        return replace(row);
+    }
+
+    private void register(Object value) {
+        if (value instanceof List) {
+            for (Object element : (List) value) {
+                register(element);
+            }
+        } else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            final Object id = map.get("id");
+            if (id instanceof Number && isRelationship(map)) {
+                rels.put(((Number) id).longValue(), map);
+            } else if (id instanceof Number && isNode(map)) {
+                nodes.put(((Number) id).longValue(), map);
+            } else {
+                for (Object element : map.values()) {
+                    register(element);
+                }
+            }
+        }
+    }
+
+    private boolean isNode(Map<?, ?> map) {
+        return map.size() == 1 || map.size() == 2 && map.containsKey("data");
+    }
+
+    private boolean isRelationship(Map<?, ?> map) {
+        final Set<?> keys = map.keySet();
+        return (map.size() == 4 || map.size() == 5 && keys.contains("data")) && keys.contains("start") && keys.contains("end") && keys.contains("type");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object replace(Object value) {
+        if (value instanceof List) {
+            final List<Object> list = (List<Object>) value;
+            for (int i = 0; i < list.size(); i++) {
+                list.set(i, replace(list.get(i)));
+            }
+        } else if (value instanceof Map) {
+            final Map<Object, Object> map = (Map<Object, Object>) value;
+            if (map.size() == 1) {
+                final Object reference = reference(map);
+                if (reference != null) return reference;
+            }
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                entry.setValue(replace(entry.getValue()));
+            }
+        }
+        return value;
+    }
+
+    private Object reference(Map<Object, Object> map) {
+        final Object nodeId = map.get(NODE_REF);
+        if (nodeId instanceof Number) return nodes.get(((Number) nodeId).longValue());
+        final Object relId = map.get(REL_REF);
+        if (relId instanceof Number) return rels.get(((Number) relId).longValue());
+        return null;
+    }
+}
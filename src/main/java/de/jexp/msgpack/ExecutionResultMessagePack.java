@@ -1,32 +1,32 @@
 package de.jexp.msgpack;
 
-import net.asdfa.msgpack.MsgPack;
+import de.jexp.serialize.ResultOptions;
+import de.jexp.serialize.ResultSerializer;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.cypher.javacompat.QueryStatistics;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Path;
-import org.neo4j.graphdb.PropertyContainer;
-import org.neo4j.graphdb.Relationship;
 import org.neo4j.helpers.collection.MapUtil;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.lang.reflect.Array;
 import java.util.*;
 
-import static org.neo4j.helpers.collection.MapUtil.map;
-
 /**
  * @author mh
  * @since 20.01.13
  * ideas for saving storage, performance:
  * cache conversions (didn't help much)
- * only return a node/rel first time it comes along later use {node-id:id} or {id:-id}
+ * only return a node/rel first time it comes along later use {node:id} or {rel:id} (opt-in with {@link ResultOptions#isDedup()})
+ * the encoding of each frame is delegated to a (per worker reused) {@link ResultSerializer}
+ * in batch mode each frame between header and footer holds an array of up to {@link ResultOptions#getBatchRows()} rows
+ * in cursor mode only {@link ResultOptions#getFetchSize()} rows are sent, the next page is sent after {@link #fetch(int)}
+ * with compression each frame is flagged and large ones are compressed, the footer reports the raw_bytes next to the bytes sent
  */
 public class ExecutionResultMessagePack implements Iterator<byte[]> {
     private static final int FIRST = Integer.MIN_VALUE;
     private static final int LAST = Integer.MAX_VALUE;
 
+    private final ResultSerializer serializer;
+    private final ResultOptions options;
     private final ExecutionResult result;
     private final Map<String,Object> externalInfo;
     private final boolean stats;
@@ -35,22 +35,32 @@ public class ExecutionResultMessagePack implements Iterator<byte[]> {
     private Iterator<Map<String, Object>> it;
 
     int row = FIRST;
-    private final List<Object> data;
     private final long start;
     private Exception exception;
+    private boolean failed;
     private long bytes=0;
+    private long rawBytes=0;
+    private int rows=0;
+    private int limit;
+    private long fetchNanos;
+    private long firstRowAt;
 
-    public ExecutionResultMessagePack(ExecutionResult result, boolean stats, Map<String,Object> externalInfo) {
+    public ExecutionResultMessagePack(ResultSerializer serializer, ResultOptions options, ExecutionResult result, boolean stats, Map<String,Object> externalInfo) {
+        this.serializer = serializer;
+        this.options = options;
+        this.serializer.start(options);
+        this.limit = options.isCursor() ? options.getFetchSize() : Integer.MAX_VALUE;
         this.result = result;
         this.externalInfo = externalInfo !=null ? externalInfo : Collections.<String,Object>emptyMap();
         this.stats = stats;
         try {
             if (result!=null) {
                 columns = this.result.columns();
-                it = this.result.iterator();
+                it = new TimedIterator(this.result.iterator());
             }
         } catch (Exception e) {
             this.exception = e;
+            this.failed = true;
         }
         if (columns==null) {
             columns = Collections.emptyList();
@@ -60,10 +70,13 @@ public class ExecutionResultMessagePack implements Iterator<byte[]> {
             it = emptyIterator();
             row = row == FIRST || returnStats() ? row : LAST;
         }
-        data = new ArrayList<Object>(columns);
         start = System.currentTimeMillis();
     }
 
+    public ExecutionResultMessagePack(ExecutionResult result, boolean stats, Map<String,Object> externalInfo) {
+        this(new MessagePackResultSerializer(), new ResultOptions(), result, stats, externalInfo);
+    }
+
     public ExecutionResultMessagePack(ExecutionResult result) {
         this(result,false,Collections.<String,Object>emptyMap());
     }
@@ -73,110 +86,146 @@ public class ExecutionResultMessagePack implements Iterator<byte[]> {
     }
 
     public boolean hasNext() {
-        return row == FIRST || it.hasNext() || row != LAST || exception!=null;
+        return row == FIRST || canWriteRow() || row != LAST || exception!=null;
     }
 
     public byte[] next() {
+        serializer.reset();
         if (row == FIRST) {
             row = 0;
-            return pack(columns);
+            serializer.writeColumns(columns);
+            return frame();
         }
-        if (it.hasNext()) {
+        if (canWriteRow()) {
             try {
-                final Map<String, Object> current = it.next();
-                for (int i = 0; i < columns.size(); i++) {
-                    final Object value = current.get(columns.get(i));
-                    data.set(i, convert(value));
+                if (options.isBatch()) {
+                    writeBatch();
+                } else {
+                    serializer.writeRow(columns, it.next());
+                    rows++;
                 }
-                if (it.hasNext() || returnStats()) {
+                if (canWriteRow() || returnStats()) {
                     row++;
                 } else {
                     row=LAST;
                 }
-                return pack(data);
+                return frame();
             } catch(Exception e) {
                 exception = e;
+                failed = true;
                 it = emptyIterator();
-                return pack(info());
+                serializer.reset();
+                serializer.writeInfo(info());
+                return frame();
             }
         } else {
-            return pack(info());
+            serializer.writeInfo(info());
+            return frame();
         }
     }
 
-    private byte[] pack(Object data) {
-        final byte[] result = MsgPack.pack(data);
-        bytes += result.length;
-        return result;
+    private void writeBatch() {
+        serializer.beginBatch();
+        int count = 0;
+        do {
+            serializer.writeRow(columns, it.next());
+            count++;
+        } while (count < options.getBatchRows() && serializer.size() < options.getBatchBytes() && rows + count < limit && it.hasNext());
+        serializer.endBatch(count);
+        rows += count;
     }
 
-    private Map<String,Object> toMap(PropertyContainer pc) {
-        final Iterator<String> propertyKeys = pc.getPropertyKeys().iterator();
-        if (!propertyKeys.hasNext()) return null;
-        Map<String,Object> result = new LinkedHashMap<String,Object>();
-        while (propertyKeys.hasNext()) {
-            String prop = propertyKeys.next();
-            final Object value = pc.getProperty(prop);
-            if (value.getClass().isArray()) {
-                final int length = Array.getLength(value);
-                final ArrayList<Object> list = new ArrayList<Object>(length);
-                for (int i=0;i< length;i++) {
-                    list.add(Array.get(value, i));
-                }
-                result.put(prop, list);
-            } else {
-                result.put(prop, value);
-            }
-        }
-        return result;
+    private boolean canWriteRow() {
+        return rows < limit && it.hasNext();
     }
-    private Object convert(Object value) {
-        if (value == null) return null;
-        if (value instanceof Node) {
-            final Node node = (Node) value;
-            return returnWithProps(map("id", node.getId()), node);
-        }
-        if (value instanceof Relationship) {
-            Relationship relationship = (Relationship) value;
-            return returnWithProps(map("id", relationship.getId(), "start", relationship.getStartNode().getId(), "end", relationship.getEndNode().getId(), "type", relationship.getType().name()), relationship);
-        }
-        if (value instanceof Path) {
-            Path path = (Path) value;
-            return map(
-                    "length", path.length(),
-                    "start", convert(path.startNode()),
-                    "end", convert(path.endNode()),
-                    "nodes", convert(path.nodes()),
-                    "relationships", convert(path.relationships()));
+
+    /**
+     * @return nanoseconds spent pulling rows from the lazy result, i.e. executing the query
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the first row was available or 0
+     */
+    public long getFirstRowAt() {
+        return firstRowAt;
+    }
+
+    /**
+     * measures the time of the lazy query execution, separate from the serialization
+     */
+    private class TimedIterator implements Iterator<Map<String, Object>> {
+        private final Iterator<Map<String, Object>> delegate;
+
+        TimedIterator(Iterator<Map<String, Object>> delegate) {
+            this.delegate = delegate;
         }
-        if (value instanceof Iterable) {
-            return convert(((Iterable) value).iterator());
+
+        public boolean hasNext() {
+            final long start = System.nanoTime();
+            final boolean hasNext = delegate.hasNext();
+            fetchNanos += System.nanoTime() - start;
+            return hasNext;
         }
-        if (value instanceof Iterator) {
-            final ArrayList<Object> result = new ArrayList<Object>();
-            Iterator iterator = (Iterator) value;
-            while (iterator.hasNext()) {
-                result.add(convert(iterator.next()));
-            }
-            return result;
+
+        public Map<String, Object> next() {
+            final long start = System.nanoTime();
+            final Map<String, Object> row = delegate.next();
+            final long end = System.nanoTime();
+            fetchNanos += end - start;
+            if (firstRowAt == 0) firstRowAt = end;
+            return row;
         }
-        // todo support primitive arrays directly
-        if (value.getClass().isArray()) {
-            final ArrayList<Object> result = new ArrayList<Object>();
-            final int length = Array.getLength(value);
-            for (int i=0;i< length;i++) {
-                result.add(convert(Array.get(value,i)));
-            }
-            return result;
+
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return value;
     }
 
-    private Object returnWithProps(Map<String, Object> result, PropertyContainer pc) {
-        final Map<String, Object> props = toMap(pc);
-        if (props!=null) {
-            result.put("data",props);
-        }
+    /**
+     * Lets another thread encode the rows while the executing thread, which holds the transaction, pulls them.
+     * The returned iterator over the result is drained into the rows on the executing thread,
+     * this message pack then reads them from the rows, so it must be called before the first row is written.
+     * @param rows the detached rows of the result, see {@link de.jexp.serialize.DetachedRows}
+     * @return the timed iterator over the result
+     */
+    public Iterator<Map<String, Object>> handOff(Iterator<Map<String, Object>> rows) {
+        final Iterator<Map<String, Object>> result = it;
+        it = rows;
+        return result;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return true if all rows of the result were sent
+     */
+    public boolean isExhausted() {
+        return !it.hasNext();
+    }
+
+    /**
+     * continues a cursor with the next page of rows and footer, each page starts a new response for the serializer
+     */
+    public void fetch(int fetchSize) {
+        serializer.start(options);
+        limit = rows + fetchSize;
+        row = 0;
+    }
+
+    private byte[] frame() {
+        byte[] result = serializer.toByteArray();
+        rawBytes += result.length;
+        if (options.isCompress()) result = options.getCompressor().encode(result);
+        bytes += result.length;
         return result;
     }
 
@@ -191,9 +240,13 @@ public class ExecutionResultMessagePack implements Iterator<byte[]> {
     public Map<String, Object> createResultInfo() {
         final Map<String, Object> info = MapUtil.map(
                 "time", System.currentTimeMillis() - start,
-                "rows", row,
+                "rows", rows,
                 "bytes", bytes);
+        if (options.isCompress()) info.put("raw_bytes", rawBytes);
         info.putAll(externalInfo);
+        if (options.isCursor()) {
+            info.put("has_more", exception == null && it.hasNext());
+        }
         if (this.result != null) {
             final QueryStatistics queryStats = this.result.getQueryStatistics();
             if (queryStats != null && queryStats.containsUpdates()) {
@@ -206,14 +259,19 @@ public class ExecutionResultMessagePack implements Iterator<byte[]> {
             }
         }
         if (exception!=null) {
-            // TODO log
-            exception.printStackTrace();
             addException(info,exception);
             exception = null;
         }
         return info;
     }
 
+    /**
+     * @return true if executing or serializing the result failed, the error is reported in the footer
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
     private boolean returnStats() {
         return stats || exception != null;
     }
@@ -0,0 +1,93 @@
+package de.jexp.msgpack;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.msgpack.MessagePackResultSerializer.STRUCTURAL_KEYS;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Client side counterpart of the dictionary option, replaces the integer keys of nodes, relationships and paths
+ * and the relationship types with their names, the definitions {@code [id, "name"]} of a response are remembered for its later frames.
+ * Frames are first scanned for definitions, as unpacked maps don't keep the order in which they were written.
+ * Maps with string keys, e.g. literal maps or the footer, are left as they are.
+ */
+public class KeyDictionary {
+    private static final int TYPE_KEY = 3;
+    private final Map<Integer, String> names = new HashMap<Integer, String>();
+
+    public KeyDictionary() {
+        for (int i = 0; i < STRUCTURAL_KEYS.length; i++) {
+            names.put(i, STRUCTURAL_KEYS[i]);
+        }
+    }
+
+    public Object decode(Object frame) {
+        register(frame);
+        return replace(frame);
+    }
+
+    private void register(Object value) {
+        if (value instanceof List) {
+            for (Object element : (List) value) {
+                register(element);
+            }
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                final Object key = entry.getKey();
+                if (isDefinition(key)) define((List) key);
+                if (isTypeKey(key) && isDefinition(entry.getValue())) define((List) entry.getValue());
+                else register(entry.getValue());
+            }
+        }
+    }
+
+    private static boolean isDefinition(Object value) {
+        if (!(value instanceof List)) return false;
+        final List list = (List) value;
+        return list.size() == 2 && list.get(0) instanceof Number && list.get(1) instanceof String;
+    }
+
+    private static boolean isTypeKey(Object key) {
+        return key instanceof Number && ((Number) key).intValue() == TYPE_KEY;
+    }
+
+    private void define(List definition) {
+        names.put(((Number) definition.get(0)).intValue(), (String) definition.get(1));
+    }
+
+    private String name(Object key) {
+        final Object id = key instanceof List ? ((List) key).get(0) : key;
+        final String name = names.get(((Number) id).intValue());
+        if (name == null) throw new IllegalArgumentException("Unknown key id " + id);
+        return name;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object replace(Object value) {
+        if (value instanceof List) {
+            final List<Object> list = (List<Object>) value;
+            for (int i = 0; i < list.size(); i++) {
+                list.set(i, replace(list.get(i)));
+            }
+        } else if (value instanceof Map) {
+            final Map<Object, Object> map = (Map<Object, Object>) value;
+            if (map.isEmpty() || map.keySet().iterator().next() instanceof String) {
+                for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                    entry.setValue(replace(entry.getValue()));
+                }
+                return map;
+            }
+            final Map<String, Object> decoded = new LinkedHashMap<String, Object>(map.size() * 2);
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                final Object key = entry.getKey();
+                decoded.put(name(key), isTypeKey(key) ? name(entry.getValue()) : replace(entry.getValue()));
+            }
+            return decoded;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,240 @@
+package de.jexp.msgpack;
+
+import java.nio.charset.Charset;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Minimal MessagePack reader over a byte array, reads single values without materializing the whole object graph.
+ * Used to peek at request envelopes, e.g. to route by tx_id without unpacking the params.
+ */
+public class MessagePackReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    public MessagePackReader reset(byte[] data, int offset, int length) {
+        this.buffer = data;
+        this.position = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    public MessagePackReader reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    /**
+     * the offset in the underlying array, e.g. of the bytes of a raw value after {@link #readRawHeader()}
+     */
+    public int position() {
+        return position;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public void position(int position) {
+        this.position = position;
+    }
+
+    public void skipBytes(int length) {
+        position += length;
+    }
+
+    public int remaining() {
+        return limit - position;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    private int peek() {
+        if (position >= limit) throw new IllegalArgumentException("Unexpected end of MessagePack input at " + position);
+        return buffer[position] & 0xff;
+    }
+
+    private int u8() {
+        final int b = peek();
+        position++;
+        return b;
+    }
+
+    private int u16() {
+        return (u8() << 8) | u8();
+    }
+
+    private int i32() {
+        return (u8() << 24) | (u8() << 16) | (u8() << 8) | u8();
+    }
+
+    private long i64() {
+        return ((long) i32() << 32) | (i32() & 0xffffffffL);
+    }
+
+    public boolean isMap() {
+        final int type = peek();
+        return (type & 0xf0) == 0x80 || type == 0xde || type == 0xdf;
+    }
+
+    public boolean isRaw() {
+        final int type = peek();
+        return (type & 0xe0) == 0xa0 || type == 0xda || type == 0xdb;
+    }
+
+    public boolean isInteger() {
+        final int type = peek();
+        return type < 0x80 || type >= 0xe0 || (type >= 0xcc && type <= 0xd3);
+    }
+
+    public boolean isArray() {
+        final int type = peek();
+        return (type & 0xf0) == 0x90 || type == 0xdc || type == 0xdd;
+    }
+
+    public boolean isFloat() {
+        final int type = peek();
+        return type == 0xca || type == 0xcb;
+    }
+
+    public boolean isBoolean() {
+        final int type = peek();
+        return type == 0xc2 || type == 0xc3;
+    }
+
+    public boolean readBoolean() {
+        final int type = u8();
+        if (type == 0xc2) return false;
+        if (type == 0xc3) return true;
+        throw new IllegalArgumentException("Expected boolean but got type " + type);
+    }
+
+    public boolean isNil() {
+        return peek() == 0xc0;
+    }
+
+    public int readMapHeader() {
+        final int type = u8();
+        if ((type & 0xf0) == 0x80) return type & 0x0f;
+        if (type == 0xde) return u16();
+        if (type == 0xdf) return i32();
+        throw new IllegalArgumentException("Expected map but got type " + type);
+    }
+
+    public int readArrayHeader() {
+        final int type = u8();
+        if ((type & 0xf0) == 0x90) return type & 0x0f;
+        if (type == 0xdc) return u16();
+        if (type == 0xdd) return i32();
+        throw new IllegalArgumentException("Expected array but got type " + type);
+    }
+
+    /**
+     * @return the length of the raw value, whose bytes start at {@link #position()}
+     */
+    public int readRawHeader() {
+        final int type = u8();
+        final int length;
+        if ((type & 0xe0) == 0xa0) length = type & 0x1f;
+        else if (type == 0xda) length = u16();
+        else if (type == 0xdb) length = i32();
+        else throw new IllegalArgumentException("Expected raw but got type " + type);
+        if (length < 0 || length > limit - position) throw new IllegalArgumentException("Raw value of " + length + " bytes exceeds the MessagePack input at " + position);
+        return length;
+    }
+
+    /**
+     * compares the next raw value with the (unencoded) bytes and consumes it
+     */
+    public boolean readRawEquals(byte[] expected) {
+        final int length = readRawHeader();
+        final int start = position;
+        position += length;
+        return equals(start, length, expected);
+    }
+
+    /**
+     * consumes the next raw value
+     * @return the index of the (unencoded) candidate it is equal to or -1
+     */
+    public int readRawMatch(byte[]... candidates) {
+        final int length = readRawHeader();
+        final int start = position;
+        position += length;
+        for (int c = 0; c < candidates.length; c++) {
+            if (equals(start, length, candidates[c])) return c;
+        }
+        return -1;
+    }
+
+    private boolean equals(int start, int length, byte[] expected) {
+        if (length != expected.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[start + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    public long readLong() {
+        final int type = u8();
+        if (type < 0x80) return type;
+        if (type >= 0xe0) return (byte) type;
+        switch (type) {
+            case 0xcc: return u8();
+            case 0xcd: return u16();
+            case 0xce: return i32() & 0xffffffffL;
+            case 0xcf: return i64();
+            case 0xd0: return (byte) u8();
+            case 0xd1: return (short) u16();
+            case 0xd2: return i32();
+            case 0xd3: return i64();
+        }
+        throw new IllegalArgumentException("Expected integer but got type " + type);
+    }
+
+    public double readDouble() {
+        final int type = u8();
+        if (type == 0xca) return Float.intBitsToFloat(i32());
+        if (type == 0xcb) return Double.longBitsToDouble(i64());
+        throw new IllegalArgumentException("Expected float but got type " + type);
+    }
+
+    /**
+     * reads a raw value as UTF-8 string
+     */
+    public String readString() {
+        final int length = readRawHeader();
+        final String value = new String(buffer, position, length, UTF8);
+        position += length;
+        return value;
+    }
+
+    public void skipValue() {
+        final int type = u8();
+        if (type < 0x80 || type >= 0xe0) return;
+        if ((type & 0xf0) == 0x80) { skipValues(2 * (type & 0x0f)); return; }
+        if ((type & 0xf0) == 0x90) { skipValues(type & 0x0f); return; }
+        if ((type & 0xe0) == 0xa0) { position += type & 0x1f; return; }
+        switch (type) {
+            case 0xc0: case 0xc2: case 0xc3: return;
+            case 0xcc: case 0xd0: position += 1; return;
+            case 0xcd: case 0xd1: position += 2; return;
+            case 0xca: case 0xce: case 0xd2: position += 4; return;
+            case 0xcb: case 0xcf: case 0xd3: position += 8; return;
+            case 0xda: skipBytes(u16()); return;
+            case 0xdb: skipBytes(i32()); return;
+            case 0xdc: skipValues(u16()); return;
+            case 0xdd: skipValues(i32()); return;
+            case 0xde: skipValues(2 * u16()); return;
+            case 0xdf: skipValues(2 * i32()); return;
+        }
+        throw new IllegalArgumentException("Unknown MessagePack type " + type);
+    }
+
+    private void skipValues(int count) {
+        for (int i = 0; i < count; i++) skipValue();
+    }
+}
@@ -0,0 +1,332 @@
+package de.jexp.msgpack;
+
+import de.jexp.serialize.PropertyProjection;
+import de.jexp.serialize.ResultOptions;
+import de.jexp.serialize.ResultSerializer;
+import de.jexp.util.LongHashSet;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Writes rows straight into a reused {@link MessagePackWriter} instead of converting them into lists and maps first.
+ * The wire format is the same as before:
+ * Node : { id : id, [data : {foo:bar}]}
+ * Relationship : { id : id, start: id, end: id, type : "FOO",  [data : {foo:bar}]}
+ * Path {length: 1, start: node, end: node, nodes: [nodes], relationships [relationships]}
+ * Primitive arrays are written element by element without boxing, byte[] is written as raw bytes.
+ * Batched frames are written as an array of rows, so the array length is the number of rows in the frame.
+ * With dedup enabled, nodes and relationships already sent in the response are written as {node: id} or {rel: id}.
+ * With the key dictionary enabled, the keys of nodes, relationships and paths are written as small integers, the structural ones
+ * with the fixed ids of {@link #STRUCTURAL_KEYS}, property keys and relationship types get the next free id when first seen in the response
+ * and are written once as definition {@code [id, "name"]} in place of the id. {@link KeyDictionary} decodes them on the client.
+ * Entities can be sent with their ids only or a {@link PropertyProjection}, properties that are not sent are not loaded,
+ * paths optionally without the lists of nodes and relationships.
+ */
+public class MessagePackResultSerializer implements ResultSerializer {
+    private static final byte[] ID = MessagePackWriter.encode("id");
+    private static final byte[] DATA = MessagePackWriter.encode("data");
+    private static final byte[] START = MessagePackWriter.encode("start");
+    private static final byte[] END = MessagePackWriter.encode("end");
+    private static final byte[] TYPE = MessagePackWriter.encode("type");
+    private static final byte[] LENGTH = MessagePackWriter.encode("length");
+    private static final byte[] NODES = MessagePackWriter.encode("nodes");
+    private static final byte[] RELATIONSHIPS = MessagePackWriter.encode("relationships");
+    public static final String NODE_REF = "node";
+    public static final String REL_REF = "rel";
+    private static final byte[] NODE_REF_KEY = MessagePackWriter.encode(NODE_REF);
+    private static final byte[] REL_REF_KEY = MessagePackWriter.encode(REL_REF);
+    public static final String[] STRUCTURAL_KEYS = {"id", "start", "end", "type", "data", "length", "nodes", "relationships"};
+    private static final int ID_KEY = 0, START_KEY = 1, END_KEY = 2, TYPE_KEY = 3, DATA_KEY = 4, LENGTH_KEY = 5, NODES_KEY = 6, RELATIONSHIPS_KEY = 7;
+
+    private final MessagePackWriter out;
+    private final LongHashSet seenNodes = new LongHashSet();
+    private final LongHashSet seenRels = new LongHashSet();
+    private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+    private boolean dedup;
+    private boolean dictionary;
+    private boolean idsOnly;
+    private boolean noPathBodies;
+    private PropertyProjection properties;
+    // properties selected for the entity being written
+    private Iterator<String> allKeys;
+    private String[] projectedKeys;
+    private Object[] projectedValues = new Object[8];
+    private int projectedCount;
+    private int batchMark;
+
+    public MessagePackResultSerializer(int initialCapacity) {
+        out = new MessagePackWriter(initialCapacity);
+    }
+
+    public MessagePackResultSerializer() {
+        out = new MessagePackWriter();
+    }
+
+    public void start(ResultOptions options) {
+        dedup = options.isDedup();
+        seenNodes.clear();
+        seenRels.clear();
+        dictionary = options.isDictionary();
+        idsOnly = options.isIdsOnly();
+        noPathBodies = options.isNoPathBodies();
+        properties = options.getProperties();
+        keyIds.clear();
+    }
+
+    public void reset() {
+        out.reset();
+    }
+
+    public int size() {
+        return out.size();
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    public void writeColumns(List<String> columns) {
+        out.writeArrayHeader(columns.size());
+        for (String column : columns) {
+            out.writeString(column);
+        }
+    }
+
+    public void writeRow(List<String> columns, Map<String, Object> row) {
+        final int size = columns.size();
+        out.writeArrayHeader(size);
+        for (int i = 0; i < size; i++) {
+            writeValue(row.get(columns.get(i)));
+        }
+    }
+
+    public void beginBatch() {
+        batchMark = out.beginContainer();
+    }
+
+    public void endBatch(int rows) {
+        out.endArray(batchMark, rows);
+    }
+
+    public void writeInfo(Map<String, Object> info) {
+        writeMap(info);
+    }
+
+    private void writeMap(Map<?, ?> map) {
+        out.writeMapHeader(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeValue(entry.getKey());
+            writeValue(entry.getValue());
+        }
+    }
+
+    private boolean writeReference(LongHashSet seen, byte[] key, long id) {
+        if (!dedup || seen.add(id)) return false;
+        out.writeMapHeader(1);
+        out.writeBytes(key);
+        out.writeLong(id);
+        return true;
+    }
+
+    private void writeKey(byte[] key, int id) {
+        if (dictionary) out.writeLong(id);
+        else out.writeBytes(key);
+    }
+
+    /**
+     * a property key or relationship type, with the dictionary its id or the definition when it is new in the response
+     */
+    private void writeName(String name) {
+        if (!dictionary) {
+            out.writeString(name);
+            return;
+        }
+        final Integer id = keyIds.get(name);
+        if (id != null) {
+            out.writeLong(id);
+            return;
+        }
+        final int newId = STRUCTURAL_KEYS.length + keyIds.size();
+        keyIds.put(name, newId);
+        out.writeArrayHeader(2);
+        out.writeLong(newId);
+        out.writeString(name);
+    }
+
+    private void writeNode(Node node) {
+        if (writeReference(seenNodes, NODE_REF_KEY, node.getId())) return;
+        final boolean hasProps = selectProperties(node, idsOnly || properties == null ? null : properties.keysFor(node));
+        out.writeMapHeader(hasProps ? 2 : 1);
+        writeKey(ID, ID_KEY);
+        out.writeLong(node.getId());
+        if (hasProps) writeProperties(node);
+    }
+
+    private void writeRelationship(Relationship relationship) {
+        if (writeReference(seenRels, REL_REF_KEY, relationship.getId())) return;
+        final boolean hasProps = selectProperties(relationship, idsOnly || properties == null ? null : properties.keysFor(relationship));
+        out.writeMapHeader(hasProps ? 5 : 4);
+        writeKey(ID, ID_KEY);
+        out.writeLong(relationship.getId());
+        writeKey(START, START_KEY);
+        out.writeLong(relationship.getStartNode().getId());
+        writeKey(END, END_KEY);
+        out.writeLong(relationship.getEndNode().getId());
+        writeKey(TYPE, TYPE_KEY);
+        writeName(relationship.getType().name());
+        if (hasProps) writeProperties(relationship);
+    }
+
+    /**
+     * Selects the properties of the entity to send, none with ids only, otherwise the projected keys or all of them.
+     * Only the projected properties are loaded, their values are kept until {@link #writeProperties(PropertyContainer)}.
+     * @return true if there are properties to send
+     */
+    private boolean selectProperties(PropertyContainer pc, String[] keys) {
+        projectedKeys = keys;
+        allKeys = null;
+        if (idsOnly) return false;
+        if (keys == null) {
+            allKeys = pc.getPropertyKeys().iterator();
+            return allKeys.hasNext();
+        }
+        if (projectedValues.length < keys.length) projectedValues = new Object[keys.length];
+        projectedCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            projectedValues[i] = pc.getProperty(keys[i], null);
+            if (projectedValues[i] != null) projectedCount++;
+        }
+        return projectedCount > 0;
+    }
+
+    private void writeProperties(PropertyContainer pc) {
+        writeKey(DATA, DATA_KEY);
+        if (projectedKeys != null) {
+            out.writeMapHeader(projectedCount);
+            for (int i = 0; i < projectedKeys.length; i++) {
+                if (projectedValues[i] == null) continue;
+                writeName(projectedKeys[i]);
+                writeValue(projectedValues[i]);
+                projectedValues[i] = null;
+            }
+            return;
+        }
+        final Iterator<String> propertyKeys = allKeys;
+        final int mark = out.beginContainer();
+        int count = 0;
+        while (propertyKeys.hasNext()) {
+            String prop = propertyKeys.next();
+            writeName(prop);
+            writeValue(pc.getProperty(prop));
+            count++;
+        }
+        out.endMap(mark, count);
+    }
+
+    private void writePath(Path path) {
+        out.writeMapHeader(noPathBodies ? 3 : 5);
+        writeKey(LENGTH, LENGTH_KEY);
+        out.writeLong(path.length());
+        writeKey(START, START_KEY);
+        writeNode(path.startNode());
+        writeKey(END, END_KEY);
+        writeNode(path.endNode());
+        if (noPathBodies) return;
+        writeKey(NODES, NODES_KEY);
+        writeIterator(path.nodes().iterator());
+        writeKey(RELATIONSHIPS, RELATIONSHIPS_KEY);
+        writeIterator(path.relationships().iterator());
+    }
+
+    private void writeIterator(Iterator iterator) {
+        final int mark = out.beginContainer();
+        int count = 0;
+        while (iterator.hasNext()) {
+            writeValue(iterator.next());
+            count++;
+        }
+        out.endArray(mark, count);
+    }
+
+    private void writeArray(Object value) {
+        if (value instanceof Object[]) {
+            final Object[] array = (Object[]) value;
+            out.writeArrayHeader(array.length);
+            for (Object element : array) {
+                writeValue(element);
+            }
+        } else if (value instanceof byte[]) {
+            out.writeRaw((byte[]) value);
+        } else if (value instanceof long[]) {
+            out.writeArray((long[]) value);
+        } else if (value instanceof double[]) {
+            out.writeArray((double[]) value);
+        } else if (value instanceof int[]) {
+            out.writeArray((int[]) value);
+        } else if (value instanceof float[]) {
+            out.writeArray((float[]) value);
+        } else if (value instanceof short[]) {
+            out.writeArray((short[]) value);
+        } else if (value instanceof boolean[]) {
+            out.writeArray((boolean[]) value);
+        } else if (value instanceof char[]) {
+            final char[] array = (char[]) value;
+            out.writeArrayHeader(array.length);
+            for (char c : array) {
+                out.writeString(String.valueOf(c));
+            }
+        }
+    }
+
+    private void writeValue(Object value) {
+        if (value == null) {
+            out.writeNil();
+        } else if (value instanceof String) {
+            out.writeString((String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeLong(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            out.writeString(value.toString());
+        } else if (value instanceof Node) {
+            writeNode((Node) value);
+        } else if (value instanceof Relationship) {
+            writeRelationship((Relationship) value);
+        } else if (value instanceof Path) {
+            writePath((Path) value);
+        } else if (value instanceof Map) {
+            writeMap((Map<?, ?>) value);
+        } else if (value instanceof Collection) {
+            final Collection collection = (Collection) value;
+            out.writeArrayHeader(collection.size());
+            for (Object element : collection) {
+                writeValue(element);
+            }
+        } else if (value instanceof Iterable) {
+            writeIterator(((Iterable) value).iterator());
+        } else if (value instanceof Iterator) {
+            writeIterator((Iterator) value);
+        } else if (value.getClass().isArray()) {
+            writeArray(value);
+        } else if (value instanceof Number) {
+            out.writeDouble(((Number) value).doubleValue());
+        } else {
+            throw new IllegalArgumentException("Cannot serialize value of type " + value.getClass().getName());
+        }
+    }
+}
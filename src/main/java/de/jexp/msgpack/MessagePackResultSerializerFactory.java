@@ -0,0 +1,25 @@
+package de.jexp.msgpack;
+
+import de.jexp.serialize.ResultSerializer;
+import de.jexp.serialize.ResultSerializerFactory;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class MessagePackResultSerializerFactory implements ResultSerializerFactory {
+    public static final String NAME = "msgpack";
+
+    public String getName() {
+        return NAME;
+    }
+
+    public ResultSerializer create() {
+        return new MessagePackResultSerializer();
+    }
+
+    public boolean supportsDetachedRows() {
+        // reads labels only for a property projection and no graph accessors, like DetachedRows
+        return true;
+    }
+}
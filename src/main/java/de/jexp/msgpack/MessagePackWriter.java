@@ -0,0 +1,288 @@
+package de.jexp.msgpack;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Minimal MessagePack encoder writing into a growable, reusable byte buffer.
+ * Uses the same (pre-str8/bin) format as msgpack-lite, so strings and byte arrays are both written as raw.
+ * Containers of unknown size can be written with begin/end, the header is patched in place afterwards.
+ */
+public class MessagePackWriter {
+    private static final int RESERVED_HEADER = 5;
+
+    private byte[] buffer;
+    private int position;
+
+    public MessagePackWriter(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    public MessagePackWriter() {
+        this(8192);
+    }
+
+    public void reset() {
+        position = 0;
+    }
+
+    public int size() {
+        return position;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        final byte[] result = new byte[position];
+        System.arraycopy(buffer, 0, result, 0, position);
+        return result;
+    }
+
+    private void ensure(int additional) {
+        if (position + additional <= buffer.length) return;
+        int capacity = buffer.length * 2;
+        while (capacity < position + additional) capacity *= 2;
+        final byte[] newBuffer = new byte[capacity];
+        System.arraycopy(buffer, 0, newBuffer, 0, position);
+        buffer = newBuffer;
+    }
+
+    private void put(int b) {
+        buffer[position++] = (byte) b;
+    }
+
+    private void putShort(int v) {
+        buffer[position++] = (byte) (v >>> 8);
+        buffer[position++] = (byte) v;
+    }
+
+    private void putInt(int v) {
+        buffer[position++] = (byte) (v >>> 24);
+        buffer[position++] = (byte) (v >>> 16);
+        buffer[position++] = (byte) (v >>> 8);
+        buffer[position++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    public void writeNil() {
+        ensure(1);
+        put(0xc0);
+    }
+
+    public void writeBoolean(boolean value) {
+        ensure(1);
+        put(value ? 0xc3 : 0xc2);
+    }
+
+    public void writeLong(long v) {
+        ensure(9);
+        putLongValue(v);
+    }
+
+    private void putLongValue(long v) {
+        if (v >= 0) {
+            if (v < 128) put((int) v);
+            else if (v < 256) { put(0xcc); put((int) v); }
+            else if (v < 65536) { put(0xcd); putShort((int) v); }
+            else if (v <= 0xffffffffL) { put(0xce); putInt((int) v); }
+            else { put(0xcf); putLong(v); }
+        } else {
+            if (v >= -32) put((int) v);
+            else if (v >= Byte.MIN_VALUE) { put(0xd0); put((int) v); }
+            else if (v >= Short.MIN_VALUE) { put(0xd1); putShort((int) v); }
+            else if (v >= Integer.MIN_VALUE) { put(0xd2); putInt((int) v); }
+            else { put(0xd3); putLong(v); }
+        }
+    }
+
+    public void writeFloat(float v) {
+        ensure(5);
+        put(0xca);
+        putInt(Float.floatToIntBits(v));
+    }
+
+    public void writeDouble(double v) {
+        ensure(9);
+        put(0xcb);
+        putLong(Double.doubleToLongBits(v));
+    }
+
+    public void writeRawHeader(int length) {
+        ensure(5);
+        if (length < 32) put(0xa0 | length);
+        else if (length < 65536) { put(0xda); putShort(length); }
+        else { put(0xdb); putInt(length); }
+    }
+
+    public void writeRaw(byte[] data, int offset, int length) {
+        writeRawHeader(length);
+        writeBytes(data, offset, length);
+    }
+
+    public void writeRaw(byte[] data) {
+        writeRaw(data, 0, data.length);
+    }
+
+    /**
+     * copies already encoded MessagePack bytes verbatim, e.g. pre-encoded constant keys
+     */
+    public void writeBytes(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, buffer, position, length);
+        position += length;
+    }
+
+    public void writeBytes(byte[] data) {
+        writeBytes(data, 0, data.length);
+    }
+
+    /**
+     * encodes the string as UTF-8 directly into the buffer without an intermediate byte[]
+     */
+    public void writeString(String value) {
+        final int chars = value.length();
+        final int length = utf8Length(value, chars);
+        writeRawHeader(length);
+        ensure(length);
+        if (length == chars) {
+            for (int i = 0; i < chars; i++) {
+                buffer[position++] = (byte) value.charAt(i);
+            }
+            return;
+        }
+        for (int i = 0; i < chars; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                put(0xf0 | (cp >> 18));
+                put(0x80 | ((cp >> 12) & 0x3f));
+                put(0x80 | ((cp >> 6) & 0x3f));
+                put(0x80 | (cp & 0x3f));
+            } else {
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static int utf8Length(String value, int chars) {
+        int length = 0;
+        for (int i = 0; i < chars; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) length++;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else length += 3;
+        }
+        return length;
+    }
+
+    // primitive arrays are written with a single capacity check and without boxing the elements
+
+    public void writeArray(long[] values) {
+        writeArrayHeader(values.length);
+        ensure(values.length * 9);
+        for (long value : values) putLongValue(value);
+    }
+
+    public void writeArray(int[] values) {
+        writeArrayHeader(values.length);
+        ensure(values.length * 5);
+        for (int value : values) putLongValue(value);
+    }
+
+    public void writeArray(short[] values) {
+        writeArrayHeader(values.length);
+        ensure(values.length * 3);
+        for (short value : values) putLongValue(value);
+    }
+
+    public void writeArray(double[] values) {
+        writeArrayHeader(values.length);
+        ensure(values.length * 9);
+        for (double value : values) {
+            put(0xcb);
+            putLong(Double.doubleToLongBits(value));
+        }
+    }
+
+    public void writeArray(float[] values) {
+        writeArrayHeader(values.length);
+        ensure(values.length * 5);
+        for (float value : values) {
+            put(0xca);
+            putInt(Float.floatToIntBits(value));
+        }
+    }
+
+    public void writeArray(boolean[] values) {
+        writeArrayHeader(values.length);
+        ensure(values.length);
+        for (boolean value : values) put(value ? 0xc3 : 0xc2);
+    }
+
+    public void writeArrayHeader(int size) {
+        ensure(5);
+        if (size < 16) put(0x90 | size);
+        else if (size < 65536) { put(0xdc); putShort(size); }
+        else { put(0xdd); putInt(size); }
+    }
+
+    public void writeMapHeader(int size) {
+        ensure(5);
+        if (size < 16) put(0x80 | size);
+        else if (size < 65536) { put(0xde); putShort(size); }
+        else { put(0xdf); putInt(size); }
+    }
+
+    /**
+     * reserves space for a container header whose size is not yet known, returns the mark for {@link #endMap} or {@link #endArray}
+     */
+    public int beginContainer() {
+        ensure(RESERVED_HEADER);
+        final int mark = position;
+        position += RESERVED_HEADER;
+        return mark;
+    }
+
+    public void endMap(int mark, int size) {
+        endContainer(mark, size, 0x80, 0xde, 0xdf);
+    }
+
+    public void endArray(int mark, int size) {
+        endContainer(mark, size, 0x90, 0xdc, 0xdd);
+    }
+
+    private void endContainer(int mark, int size, int fix, int type16, int type32) {
+        final int end = position;
+        final int bodyStart = mark + RESERVED_HEADER;
+        position = mark;
+        if (size < 16) put(fix | size);
+        else if (size < 65536) { put(type16); putShort(size); }
+        else { put(type32); putInt(size); }
+        final int shift = bodyStart - position;
+        if (shift > 0) {
+            System.arraycopy(buffer, bodyStart, buffer, position, end - bodyStart);
+        }
+        position = end - shift;
+    }
+
+    public static byte[] encode(String value) {
+        final MessagePackWriter writer = new MessagePackWriter(value.length() * 3 + 5);
+        writer.writeString(value);
+        return writer.toByteArray();
+    }
+}
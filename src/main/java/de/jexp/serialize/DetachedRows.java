@@ -0,0 +1,409 @@
+package de.jexp.serialize;
+
+import de.jexp.util.LongHashSet;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Copies the rows of a result into values that can be serialized without the transaction, so the serializer can run on another thread.
+ * Nodes, relationships and paths become read-only snapshots holding the properties that will be sent, none with ids only,
+ * the projected ones with a {@link PropertyProjection} or all of them, with dedup only for their first occurrence in the response.
+ * Lazy iterables and iterators are copied into lists. Rows are detached in column order, the order in which they are serialized.
+ */
+public class DetachedRows {
+    private final List<String> columns;
+    private final boolean idsOnly;
+    private final boolean noPathBodies;
+    private final PropertyProjection properties;
+    private final LongHashSet seenNodes;
+    private final LongHashSet seenRels;
+
+    public DetachedRows(List<String> columns, ResultOptions options) {
+        this.columns = columns;
+        this.idsOnly = options.isIdsOnly();
+        this.noPathBodies = options.isNoPathBodies();
+        this.properties = options.getProperties();
+        this.seenNodes = options.isDedup() ? new LongHashSet() : null;
+        this.seenRels = options.isDedup() ? new LongHashSet() : null;
+    }
+
+    public Map<String, Object> detach(Map<String, Object> row) {
+        final Map<String, Object> result = new HashMap<String, Object>(row.size() * 2);
+        for (String column : columns) {
+            result.put(column, detach(row.get(column)));
+        }
+        return result;
+    }
+
+    private Object detach(Object value) {
+        if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean) return value;
+        if (value instanceof Node) return detachNode((Node) value);
+        if (value instanceof Relationship) return detachRelationship((Relationship) value);
+        if (value instanceof Path) return detachPath((Path) value);
+        if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            final Map<Object, Object> result = new LinkedHashMap<Object, Object>(map.size() * 2);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                result.put(entry.getKey(), detach(entry.getValue()));
+            }
+            return result;
+        }
+        if (value instanceof Iterable) return detach(((Iterable<?>) value).iterator());
+        if (value instanceof Iterator) return detach((Iterator<?>) value);
+        if (value instanceof Object[]) {
+            final Object[] array = (Object[]) value;
+            final Object[] result = new Object[array.length];
+            for (int i = 0; i < array.length; i++) result[i] = detach(array[i]);
+            return result;
+        }
+        // characters and primitive arrays
+        return value;
+    }
+
+    private List<Object> detach(Iterator<?> iterator) {
+        final List<Object> result = new ArrayList<Object>();
+        while (iterator.hasNext()) {
+            result.add(detach(iterator.next()));
+        }
+        return result;
+    }
+
+    private Node detachNode(Node node) {
+        final long id = node.getId();
+        if (idsOnly || seenNodes != null && !seenNodes.add(id)) return new DetachedNode(id, null, null);
+        final List<String> labels = properties != null ? labels(node) : null;
+        return new DetachedNode(id, labels, properties(node, properties != null ? properties.keysFor(node) : null));
+    }
+
+    private Relationship detachRelationship(Relationship rel) {
+        final long id = rel.getId();
+        final RelationshipType type = DynamicRelationshipType.withName(rel.getType().name());
+        final Node start = new DetachedNode(rel.getStartNode().getId(), null, null);
+        final Node end = new DetachedNode(rel.getEndNode().getId(), null, null);
+        if (idsOnly || seenRels != null && !seenRels.add(id)) return new DetachedRelationship(id, type, start, end, null);
+        return new DetachedRelationship(id, type, start, end, properties(rel, properties != null ? properties.keysFor(rel) : null));
+    }
+
+    private Path detachPath(Path path) {
+        final int length = path.length();
+        final Node start = detachNode(path.startNode());
+        final Node end = detachNode(path.endNode());
+        if (noPathBodies) return new DetachedPath(length, start, end, null, null);
+        final List<Node> nodes = new ArrayList<Node>(length + 1);
+        for (Node node : path.nodes()) {
+            nodes.add(detachNode(node));
+        }
+        final List<Relationship> rels = new ArrayList<Relationship>(length);
+        for (Relationship rel : path.relationships()) {
+            rels.add(detachRelationship(rel));
+        }
+        return new DetachedPath(length, start, end, nodes, rels);
+    }
+
+    private static List<String> labels(Node node) {
+        final List<String> labels = new ArrayList<String>();
+        for (Label label : node.getLabels()) {
+            labels.add(label.name());
+        }
+        return labels;
+    }
+
+    /**
+     * @param keys the keys to load or null for all properties
+     */
+    private static Map<String, Object> properties(PropertyContainer pc, String[] keys) {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        if (keys == null) {
+            for (String key : pc.getPropertyKeys()) {
+                result.put(key, pc.getProperty(key));
+            }
+        } else {
+            for (String key : keys) {
+                final Object value = pc.getProperty(key, null);
+                if (value != null) result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Detached entities only provide their id and the properties to serialize");
+    }
+
+    /**
+     * read-only properties of a detached entity, none if only the id is sent
+     */
+    private abstract static class DetachedEntity implements PropertyContainer {
+        private final Map<String, Object> properties;
+
+        DetachedEntity(Map<String, Object> properties) {
+            this.properties = properties != null ? properties : Collections.<String, Object>emptyMap();
+        }
+
+        public GraphDatabaseService getGraphDatabase() {
+            throw readOnly();
+        }
+
+        public boolean hasProperty(String key) {
+            return properties.containsKey(key);
+        }
+
+        public Object getProperty(String key) {
+            final Object value = properties.get(key);
+            if (value == null) throw new NotFoundException("No property " + key);
+            return value;
+        }
+
+        public Object getProperty(String key, Object defaultValue) {
+            final Object value = properties.get(key);
+            return value != null ? value : defaultValue;
+        }
+
+        public void setProperty(String key, Object value) {
+            throw readOnly();
+        }
+
+        public Object removeProperty(String key) {
+            throw readOnly();
+        }
+
+        public Iterable<String> getPropertyKeys() {
+            return properties.keySet();
+        }
+
+        public void delete() {
+            throw readOnly();
+        }
+    }
+
+    static class DetachedNode extends DetachedEntity implements Node {
+        private final long id;
+        private final List<String> labels;
+
+        DetachedNode(long id, List<String> labels, Map<String, Object> properties) {
+            super(properties);
+            this.id = id;
+            this.labels = labels != null ? labels : Collections.<String>emptyList();
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public boolean hasLabel(Label label) {
+            return labels.contains(label.name());
+        }
+
+        public Iterable<Label> getLabels() {
+            final List<Label> result = new ArrayList<Label>(labels.size());
+            for (String label : labels) {
+                result.add(DynamicLabel.label(label));
+            }
+            return result;
+        }
+
+        public void addLabel(Label label) {
+            throw readOnly();
+        }
+
+        public void removeLabel(Label label) {
+            throw readOnly();
+        }
+
+        public Iterable<Relationship> getRelationships() {
+            throw readOnly();
+        }
+
+        public boolean hasRelationship() {
+            throw readOnly();
+        }
+
+        public Iterable<Relationship> getRelationships(RelationshipType... types) {
+            throw readOnly();
+        }
+
+        public Iterable<Relationship> getRelationships(Direction direction, RelationshipType... types) {
+            throw readOnly();
+        }
+
+        public boolean hasRelationship(RelationshipType... types) {
+            throw readOnly();
+        }
+
+        public boolean hasRelationship(Direction direction, RelationshipType... types) {
+            throw readOnly();
+        }
+
+        public Iterable<Relationship> getRelationships(Direction dir) {
+            throw readOnly();
+        }
+
+        public boolean hasRelationship(Direction dir) {
+            throw readOnly();
+        }
+
+        public Iterable<Relationship> getRelationships(RelationshipType type, Direction dir) {
+            throw readOnly();
+        }
+
+        public boolean hasRelationship(RelationshipType type, Direction dir) {
+            throw readOnly();
+        }
+
+        public Relationship getSingleRelationship(RelationshipType type, Direction dir) {
+            throw readOnly();
+        }
+
+        public Relationship createRelationshipTo(Node otherNode, RelationshipType type) {
+            throw readOnly();
+        }
+
+        @SuppressWarnings("deprecation")
+        public Traverser traverse(Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator,
+                                  RelationshipType relationshipType, Direction direction) {
+            throw readOnly();
+        }
+
+        @SuppressWarnings("deprecation")
+        public Traverser traverse(Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator,
+                                  RelationshipType firstRelationshipType, Direction firstDirection,
+                                  RelationshipType secondRelationshipType, Direction secondDirection) {
+            throw readOnly();
+        }
+
+        @SuppressWarnings("deprecation")
+        public Traverser traverse(Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator,
+                                  Object... relationshipTypesAndDirections) {
+            throw readOnly();
+        }
+
+        @Override
+        public String toString() {
+            return "Node[" + id + "]";
+        }
+    }
+
+    static class DetachedRelationship extends DetachedEntity implements Relationship {
+        private final long id;
+        private final RelationshipType type;
+        private final Node start;
+        private final Node end;
+
+        DetachedRelationship(long id, RelationshipType type, Node start, Node end, Map<String, Object> properties) {
+            super(properties);
+            this.id = id;
+            this.type = type;
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Node getStartNode() {
+            return start;
+        }
+
+        public Node getEndNode() {
+            return end;
+        }
+
+        public Node getOtherNode(Node node) {
+            if (node.getId() == start.getId()) return end;
+            if (node.getId() == end.getId()) return start;
+            throw new NotFoundException("Node[" + node.getId() + "] is not a node of " + this);
+        }
+
+        public Node[] getNodes() {
+            return new Node[]{start, end};
+        }
+
+        public RelationshipType getType() {
+            return type;
+        }
+
+        public boolean isType(RelationshipType type) {
+            return this.type.name().equals(type.name());
+        }
+
+        @Override
+        public String toString() {
+            return "Relationship[" + id + "]";
+        }
+    }
+
+    static class DetachedPath implements Path {
+        private final int length;
+        private final Node start;
+        private final Node end;
+        private final List<Node> nodes;
+        private final List<Relationship> relationships;
+
+        /**
+         * @param nodes the nodes and relationships or null if the path is sent without them
+         */
+        DetachedPath(int length, Node start, Node end, List<Node> nodes, List<Relationship> relationships) {
+            this.length = length;
+            this.start = start;
+            this.end = end;
+            this.nodes = nodes;
+            this.relationships = relationships;
+        }
+
+        public Node startNode() {
+            return start;
+        }
+
+        public Node endNode() {
+            return end;
+        }
+
+        public Relationship lastRelationship() {
+            return relationships().isEmpty() ? null : relationships.get(relationships.size() - 1);
+        }
+
+        public List<Relationship> relationships() {
+            if (relationships == null) throw readOnly();
+            return relationships;
+        }
+
+        public Iterable<Relationship> reverseRelationships() {
+            final List<Relationship> result = new ArrayList<Relationship>(relationships());
+            Collections.reverse(result);
+            return result;
+        }
+
+        public List<Node> nodes() {
+            if (nodes == null) throw readOnly();
+            return nodes;
+        }
+
+        public Iterable<Node> reverseNodes() {
+            final List<Node> result = new ArrayList<Node>(nodes());
+            Collections.reverse(result);
+            return result;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public Iterator<PropertyContainer> iterator() {
+            final List<PropertyContainer> result = new ArrayList<PropertyContainer>(length * 2 + 1);
+            for (int i = 0; i < nodes().size(); i++) {
+                if (i > 0) result.add(relationships.get(i - 1));
+                result.add(nodes.get(i));
+            }
+            return result.iterator();
+        }
+
+        @Override
+        public String toString() {
+            return "Path[" + start + ".." + end + ", length " + length + "]";
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package de.jexp.serialize;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Whitelist of the property keys sent for nodes and relationships, from the {@code "props"} option of a request.
+ * Either a list of keys for all entities or a map of label or relationship type to keys,
+ * the entry {@code "*"} applies to entities without a listed label or type, without it they are sent with all properties.
+ * Nodes with multiple listed labels get the union of their keys.
+ */
+public class PropertyProjection {
+    public static final String ANY = "*";
+    private final String[] keys;
+    private final Map<String, String[]> keysByName;
+
+    private PropertyProjection(String[] keys, Map<String, String[]> keysByName) {
+        this.keys = keys;
+        this.keysByName = keysByName;
+    }
+
+    /**
+     * @param value a list of keys or a map of label or type to a list of keys, null for no projection
+     * @throws IllegalArgumentException if the value has a different structure
+     */
+    public static PropertyProjection of(Object value) {
+        if (value == null) return null;
+        if (value instanceof List) return new PropertyProjection(keys(value, "props"), null);
+        if (!(value instanceof Map)) throw new IllegalArgumentException("Expected a list of property keys or a map of label or type to keys for props but got " + value);
+        final Map<String, String[]> keysByName = new HashMap<String, String[]>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            keysByName.put(String.valueOf(entry.getKey()), keys(entry.getValue(), "props of " + entry.getKey()));
+        }
+        return new PropertyProjection(keysByName.get(ANY), keysByName);
+    }
+
+    private static String[] keys(Object value, String name) {
+        if (!(value instanceof List)) throw new IllegalArgumentException("Expected a list of property keys for " + name + " but got " + value);
+        final List<?> list = (List<?>) value;
+        final String[] keys = new String[list.size()];
+        for (int i = 0; i < keys.length; i++) {
+            if (!(list.get(i) instanceof String)) throw new IllegalArgumentException("Expected a property key in " + name + " but got " + list.get(i));
+            keys[i] = (String) list.get(i);
+        }
+        return keys;
+    }
+
+    /**
+     * @return the keys to send or null for all properties
+     */
+    public String[] keysFor(Node node) {
+        if (keysByName == null) return keys;
+        String[] result = null;
+        Set<String> union = null;
+        for (Label label : node.getLabels()) {
+            final String[] labelKeys = keysByName.get(label.name());
+            if (labelKeys == null) continue;
+            if (result == null) {
+                result = labelKeys;
+            } else {
+                if (union == null) union = new LinkedHashSet<String>(Arrays.asList(result));
+                union.addAll(Arrays.asList(labelKeys));
+            }
+        }
+        if (union != null) return union.toArray(new String[union.size()]);
+        return result != null ? result : keys;
+    }
+
+    /**
+     * @return the keys to send or null for all properties
+     */
+    public String[] keysFor(Relationship relationship) {
+        if (keysByName == null) return keys;
+        final String[] typeKeys = keysByName.get(relationship.getType().name());
+        return typeKeys != null ? typeKeys : keys;
+    }
+}
@@ -0,0 +1,136 @@
+package de.jexp.serialize;
+
+import de.jexp.compress.FrameCompressor;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Per request options for rendering a result, passed to {@link ResultSerializer#start(ResultOptions)}.
+ */
+public class ResultOptions {
+    private boolean dedup;
+    private boolean dictionary;
+    private boolean idsOnly;
+    private boolean noPathBodies;
+    private PropertyProjection properties;
+    private boolean batch;
+    private int batchRows = 1;
+    private int batchBytes = 0;
+    private int fetchSize = 0;
+    private FrameCompressor compressor;
+
+    /**
+     * send each node and relationship only once per response, repetitions are sent as {node:id} or {rel:id}
+     */
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public ResultOptions withDedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    /**
+     * write the keys of entities and relationship types as integers of a dictionary that is sent incrementally with the response
+     */
+    public boolean isDictionary() {
+        return dictionary;
+    }
+
+    public ResultOptions withDictionary(boolean dictionary) {
+        this.dictionary = dictionary;
+        return this;
+    }
+
+    /**
+     * send nodes as {id} and relationships as {id, start, end, type} without loading their properties
+     */
+    public boolean isIdsOnly() {
+        return idsOnly;
+    }
+
+    public ResultOptions withIdsOnly(boolean idsOnly) {
+        this.idsOnly = idsOnly;
+        return this;
+    }
+
+    /**
+     * the property keys to load and send, null for all properties
+     */
+    public PropertyProjection getProperties() {
+        return properties;
+    }
+
+    public ResultOptions withProperties(PropertyProjection properties) {
+        this.properties = properties;
+        return this;
+    }
+
+    /**
+     * send paths only with length, start and end node, without the lists of nodes and relationships
+     */
+    public boolean isNoPathBodies() {
+        return noPathBodies;
+    }
+
+    public ResultOptions withNoPathBodies(boolean noPathBodies) {
+        this.noPathBodies = noPathBodies;
+        return this;
+    }
+
+    /**
+     * pack rows into frames of an array of rows, a frame is flushed when it reached either the row count or the byte size,
+     * also with a row count of 1, so clients that asked for batches always get the array frames
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public int getBatchRows() {
+        return batchRows;
+    }
+
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public ResultOptions withBatch(int rows, int bytes) {
+        this.batch = true;
+        this.batchRows = rows;
+        this.batchBytes = bytes;
+        return this;
+    }
+
+    /**
+     * cursor mode, at most this many rows are sent per response, 0 sends all rows
+     */
+    public boolean isCursor() {
+        return fetchSize > 0;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public ResultOptions withFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * flag and compress the frames with the (per worker) compressor, null sends plain MessagePack frames
+     */
+    public boolean isCompress() {
+        return compressor != null;
+    }
+
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    public ResultOptions withCompression(FrameCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+}
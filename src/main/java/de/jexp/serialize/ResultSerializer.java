@@ -0,0 +1,35 @@
+package de.jexp.serialize;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Encodes the header, rows and footer of a cypher result into an internal output buffer.
+ * Instances are created per worker thread via {@link ResultSerializerFactory} and reused for every request,
+ * so they are not thread safe. Each response begins with {@link #start(ResultOptions)},
+ * a frame is started with {@link #reset()} and taken with {@link #toByteArray()}.
+ */
+public interface ResultSerializer {
+    void start(ResultOptions options);
+
+    void reset();
+
+    void writeColumns(List<String> columns);
+
+    void writeRow(List<String> columns, Map<String, Object> row);
+
+    /**
+     * starts a frame holding multiple rows, finished with {@link #endBatch(int)} and the number of rows written
+     */
+    void beginBatch();
+
+    void endBatch(int rows);
+
+    void writeInfo(Map<String, Object> info);
+
+    int size();
+
+    byte[] toByteArray();
+}
@@ -0,0 +1,19 @@
+package de.jexp.serialize;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Service provider for result serializers, registered in META-INF/services/de.jexp.serialize.ResultSerializerFactory
+ * and selected by {@link #getName()} with the cypher_remoting_serializer setting.
+ */
+public interface ResultSerializerFactory {
+    String getName();
+
+    ResultSerializer create();
+
+    /**
+     * @return true if the serializers only need what {@link DetachedRows} keeps of nodes, relationships and paths,
+     * required to serialize the rows on the encoder thread with the cypher_remoting_pipeline_rows setting
+     */
+    boolean supportsDetachedRows();
+}
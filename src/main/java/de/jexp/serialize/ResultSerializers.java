@@ -0,0 +1,19 @@
+package de.jexp.serialize;
+
+import java.util.ServiceLoader;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class ResultSerializers {
+    public static final String DEFAULT = "msgpack";
+
+    public static ResultSerializerFactory find(String name) {
+        final String serializerName = name == null ? DEFAULT : name;
+        for (ResultSerializerFactory factory : ServiceLoader.load(ResultSerializerFactory.class)) {
+            if (factory.getName().equalsIgnoreCase(serializerName)) return factory;
+        }
+        throw new IllegalArgumentException("No result serializer named " + serializerName + " registered.");
+    }
+}
@@ -0,0 +1,108 @@
+package de.jexp.serialize;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Bounded buffer between the thread pulling the rows of a result and the thread encoding them.
+ * The producer {@link #put(Map)}s the rows and ends with {@link #finish()} or {@link #fail(RuntimeException)},
+ * the consumer iterates them, the failure is thrown by {@link #next()} in place of the next row.
+ * A consumer that stops early {@link #close()}s the buffer, so a producer waiting for space gives up.
+ */
+public class RowHandOff implements Iterator<Map<String, Object>> {
+    private static final Object END = new Object();
+    private static final long OFFER_MILLIS = 10;
+
+    private final BlockingQueue<Object> queue;
+    private volatile boolean closed;
+    // consumer side
+    private Object next;
+    private long waitNanos;
+
+    public RowHandOff(int capacity) {
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    /**
+     * @return false if the consumer closed the buffer or the producer was interrupted, the row is not delivered
+     */
+    public boolean put(Map<String, Object> row) {
+        return offer(row);
+    }
+
+    public boolean finish() {
+        return offer(END);
+    }
+
+    public boolean fail(RuntimeException e) {
+        return offer(e);
+    }
+
+    private boolean offer(Object element) {
+        try {
+            while (!closed) {
+                if (queue.offer(element, OFFER_MILLIS, TimeUnit.MILLISECONDS)) return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return nanoseconds the consumer waited for rows
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public boolean hasNext() {
+        if (next == null) {
+            next = queue.poll();
+            if (next == null) {
+                final long start = System.nanoTime();
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    next = END;
+                    throw new IllegalStateException("Interrupted while waiting for the next row");
+                } finally {
+                    waitNanos += System.nanoTime() - start;
+                }
+            }
+        }
+        return next != END;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final Object element = next;
+        if (element instanceof RuntimeException) {
+            next = END;
+            throw (RuntimeException) element;
+        }
+        next = null;
+        return (Map<String, Object>) element;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
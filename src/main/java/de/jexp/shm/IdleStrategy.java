@@ -0,0 +1,60 @@
+package de.jexp.shm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Backoff while polling a {@link SharedRing} without work: busy spins first (lowest latency, a core stays busy),
+ * then yields, then parks for exponentially growing periods up to {@code maxParkNanos}, which bounds both the latency
+ * after an idle period and the CPU use of an idle poller. The other process can't wake a parked thread, so there is no blocking wait.
+ * On a single processor spinning only delays the thread that does the work, so it starts with yielding there.
+ * Not thread safe, one instance per polling thread.
+ */
+public class IdleStrategy {
+    private static final boolean MULTI_PROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+
+    private final int spins;
+    private final int yields;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+    private int idle;
+    private long parkNanos;
+
+    public IdleStrategy() {
+        this(10000, 100, 1000, 100000);
+    }
+
+    public IdleStrategy(int spins, int yields, long minParkNanos, long maxParkNanos) {
+        this.spins = MULTI_PROCESSOR ? spins : 0;
+        this.yields = yields;
+        this.minParkNanos = minParkNanos;
+        this.maxParkNanos = maxParkNanos;
+        reset();
+    }
+
+    /**
+     * @param work done by the last poll, any work resets the backoff
+     */
+    public void idle(int work) {
+        if (work > 0) reset();
+        else idle();
+    }
+
+    public void idle() {
+        if (idle < spins) {
+            idle++;
+        } else if (idle < spins + yields) {
+            idle++;
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, maxParkNanos);
+        }
+    }
+
+    public void reset() {
+        idle = 0;
+        parkNanos = minParkNanos;
+    }
+}
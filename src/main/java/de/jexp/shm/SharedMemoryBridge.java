@@ -0,0 +1,246 @@
+package de.jexp.shm;
+
+import de.jexp.transport.Transport;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import zmq.ZError;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * {@link Transport} for the {@code shm://} address, serves the clients of a {@link SharedMemoryFile} from one polling thread, which forwards the requests of each
+ * connected slot over its own inproc DEALER socket to the server's frontend (the worker or the dispatcher), so routing,
+ * transactions and cursors work unchanged, and copies the response frames (with their more flags) into the slot's response ring.
+ * Response frames that don't fit into a full ring wait in a queue of at most {@link #MAX_PENDING_FRAMES}, then no further frames are taken from the socket,
+ * even in the middle of a response.
+ * Sockets are only checked while they have requests in flight, with {@code getEvents()} which (unlike non-blocking receives,
+ * that look at new commands only every 100 calls) sees a response as soon as it was sent. While responses are pending the
+ * thread backs off less, so the transport trades a busy core during requests for latency.
+ * Closed slots are freed, their socket is closed so late responses of the previous client are dropped.
+ */
+public class SharedMemoryBridge implements Transport {
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MAX_PENDING_FRAMES = 64;
+
+    private final File file;
+    private final int slots;
+    private final int ringBytes;
+    private final StringLogger logger;
+    private SharedMemoryFile shared;
+    private ZMQ.Context context;
+    private String frontend;
+    private Connection[] connections;
+    private final IdleStrategy idle = new IdleStrategy();
+    private final IdleStrategy waiting = new IdleStrategy(1000, 10000, 1000, 20000);
+    private int inFlight;
+    private volatile boolean running = true;
+
+    private static class Frame {
+        final byte[] data;
+        final int flags;
+
+        Frame(byte[] data, int flags) {
+            this.data = data;
+            this.flags = flags;
+        }
+    }
+
+    private static class Connection {
+        final int slot;
+        final SharedRing requests;
+        final SharedRing responses;
+        final ZMQ.Socket socket;
+        final Deque<Frame> pending = new ArrayDeque<Frame>();
+        // written part of the first pending frame
+        int position;
+        // the last forwarded request frame had more frames following
+        boolean inRequest;
+        // the delimiter of a response was taken from the socket, but not yet all of its frames
+        boolean inResponse;
+        int inFlight;
+
+        Connection(int slot, SharedRing requests, SharedRing responses, ZMQ.Socket socket) {
+            this.slot = slot;
+            this.requests = requests;
+            this.responses = responses;
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * @param ringBytes capacity of each ring, see {@link SharedMemoryFile#create(File, int, int)}
+     */
+    public SharedMemoryBridge(File file, int slots, int ringBytes, StringLogger logger) {
+        this.file = file;
+        this.slots = slots;
+        this.ringBytes = ringBytes;
+        this.logger = logger;
+    }
+
+    /**
+     * creates the shared memory file, clients can connect from then on
+     */
+    @Override
+    public void open(ZMQ.Context context, String frontend) throws IOException {
+        this.shared = SharedMemoryFile.create(file, slots, ringBytes);
+        this.context = context;
+        this.frontend = frontend;
+        this.connections = new Connection[shared.slots()];
+    }
+
+    @Override
+    public String getAddress() {
+        return SharedMemoryFile.SCHEME + file.getPath();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                int work = 0;
+                for (int slot = 0; slot < connections.length; slot++) {
+                    work += poll(slot);
+                }
+                if (work > 0) {
+                    idle.reset();
+                    waiting.reset();
+                } else {
+                    (inFlight > 0 ? waiting : idle).idle();
+                }
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) logger.warn("Error in Cypher Remoting shared memory transport", e);
+        } catch (ZError.CtxTerminatedException e) {
+            // shutdown
+        } catch (RuntimeException e) {
+            logger.warn("Error in Cypher Remoting shared memory transport", e);
+        } finally {
+            shared.stop();
+            for (Connection connection : connections) {
+                if (connection != null) close(connection.socket);
+            }
+            shared.release();
+            if (!shared.getFile().delete()) logger.warn("Could not delete shared memory file " + shared.getFile());
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    private int poll(int slot) {
+        final int state = shared.state(slot);
+        Connection connection = connections[slot];
+        if (connection == null) {
+            if (state == SharedMemoryFile.CLOSED) {
+                // connected and closed in between
+                shared.free(slot);
+                return 1;
+            }
+            if (state != SharedMemoryFile.CONNECTED) return 0;
+            connection = connections[slot] = connect(slot);
+        } else if (state != SharedMemoryFile.CONNECTED) {
+            disconnect(connection);
+            return 1;
+        }
+        int work = flush(connection);
+        work += fromClient(connection);
+        work += fromServer(connection);
+        return work;
+    }
+
+    private Connection connect(int slot) {
+        final ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+        socket.setLinger(0);
+        socket.connect(frontend);
+        if (logger.isDebugEnabled()) logger.debug("Cypher Remoting shared memory client connected to slot " + slot);
+        return new Connection(slot, shared.requests(slot), shared.responses(slot), socket);
+    }
+
+    private void disconnect(Connection connection) {
+        inFlight -= connection.inFlight;
+        close(connection.socket);
+        connections[connection.slot] = null;
+        shared.free(connection.slot);
+        if (logger.isDebugEnabled()) logger.debug("Cypher Remoting shared memory client disconnected from slot " + connection.slot);
+    }
+
+    /**
+     * forwards the request frames, prefixed by an empty delimiter frame like a REQ socket does
+     */
+    private int fromClient(Connection connection) {
+        int frames = 0;
+        byte[] frame;
+        while ((frame = connection.requests.poll()) != null) {
+            if (!connection.inRequest) connection.socket.sendMore(EMPTY);
+            connection.inRequest = connection.requests.hasMore();
+            connection.socket.send(frame, connection.inRequest ? ZMQ.SNDMORE : 0);
+            if (!connection.inRequest) {
+                connection.inFlight++;
+                inFlight++;
+            }
+            frames++;
+        }
+        return frames;
+    }
+
+    /**
+     * queues the response frames up to the limit, the rest of a response is taken from the socket once the client read enough of it
+     */
+    private int fromServer(Connection connection) {
+        int frames = 0;
+        while (connection.inFlight > 0 && connection.pending.size() < MAX_PENDING_FRAMES) {
+            if (!connection.inResponse) {
+                if ((connection.socket.getEvents() & ZMQ.Poller.POLLIN) == 0) break;
+                // the empty delimiter frame
+                connection.socket.recv(0);
+                connection.inResponse = connection.socket.hasReceiveMore();
+                if (!connection.inResponse) responded(connection);
+                continue;
+            }
+            final byte[] frame = connection.socket.recv(0);
+            connection.inResponse = connection.socket.hasReceiveMore();
+            connection.pending.add(new Frame(frame, connection.inResponse ? SharedRing.MORE : 0));
+            if (!connection.inResponse) responded(connection);
+            frames++;
+        }
+        return frames > 0 ? frames + flush(connection) : 0;
+    }
+
+    private void responded(Connection connection) {
+        connection.inFlight--;
+        inFlight--;
+    }
+
+    private int flush(Connection connection) {
+        int frames = 0;
+        Frame frame;
+        while ((frame = connection.pending.peek()) != null) {
+            final int position = connection.responses.offer(frame.data, connection.position, frame.flags);
+            if (position < 0) break;
+            frames++;
+            if (position < frame.data.length) {
+                connection.position = position;
+                break;
+            }
+            connection.position = 0;
+            connection.pending.poll();
+        }
+        return frames;
+    }
+
+    private static void close(ZMQ.Socket socket) {
+        try {
+            socket.close();
+        } catch (ZMQException e) {
+            // already closed by context termination
+        }
+    }
+}
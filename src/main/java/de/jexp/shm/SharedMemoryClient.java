@@ -0,0 +1,131 @@
+package de.jexp.shm;
+
+import net.asdfa.msgpack.MsgPack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Client of the shared memory transport for applications on the same host as the server, connected to a {@code shm://} address.
+ * It claims a slot of the {@link SharedMemoryFile} and exchanges the same MessagePack frames as a REQ socket of the ZMQ path,
+ * one request at a time, waiting for the response with an {@link IdleStrategy} instead of a system call.
+ * Not thread safe, one client per thread. A request that times out or finds the server stopped closes the client.
+ */
+public class SharedMemoryClient {
+    private static final long CLAIM_WAIT_MILLIS = 100;
+
+    private final SharedMemoryFile shared;
+    private final int slot;
+    private final SharedRing requests;
+    private final SharedRing responses;
+    private final long timeoutMillis;
+    private final IdleStrategy idle = new IdleStrategy();
+    private final SharedRing.Liveness alive = new SharedRing.Liveness() {
+        public void check() {
+            if (shared.epoch() == 0) {
+                close();
+                throw new IllegalStateException("Cypher server of " + shared.getFile() + " stopped");
+            }
+        }
+    };
+    private boolean closed;
+
+    public SharedMemoryClient(String address) throws IOException {
+        this(address, 0);
+    }
+
+    /**
+     * @param timeoutMillis max time to wait for a response, 0 for no limit
+     * @throws IOException if there is no running server or all slots are taken
+     */
+    public SharedMemoryClient(String address, long timeoutMillis) throws IOException {
+        this.shared = SharedMemoryFile.open(SharedMemoryFile.file(address));
+        this.timeoutMillis = timeoutMillis;
+        try {
+            this.slot = claim();
+        } catch (IOException e) {
+            shared.release();
+            throw e;
+        }
+        this.requests = shared.requests(slot);
+        this.responses = shared.responses(slot);
+    }
+
+    /**
+     * waits a moment for closed slots (e.g. of crashed clients) that the server is about to free
+     */
+    private int claim() throws IOException {
+        final long deadline = System.currentTimeMillis() + CLAIM_WAIT_MILLIS;
+        while (true) {
+            boolean closing = false;
+            for (int slot = 0; slot < shared.slots(); slot++) {
+                if (shared.claim(slot)) return slot;
+                closing |= shared.state(slot) == SharedMemoryFile.CLOSED;
+            }
+            if (!closing || System.currentTimeMillis() > deadline) {
+                throw new IOException("All " + shared.slots() + " slots of " + shared.getFile() + " are in use");
+            }
+            idle.idle();
+        }
+    }
+
+    /**
+     * @return the frames of the response
+     * @throws IllegalStateException if the client is closed, the server stopped or the response timed out
+     */
+    public List<byte[]> request(byte[] request) {
+        if (closed) throw new IllegalStateException("Client is closed");
+        requests.write(request, 0, idle, alive);
+        final long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        do {
+            byte[] frame;
+            while ((frame = responses.poll()) == null) {
+                idle.idle();
+                alive.check();
+                if (deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline) {
+                    // the rest of the response would be taken for the next one
+                    close();
+                    throw new IllegalStateException("No response within " + timeoutMillis + " ms");
+                }
+            }
+            idle.reset();
+            frames.add(frame);
+        } while (responses.hasMore());
+        return frames;
+    }
+
+    /**
+     * @return the unpacked frames, header, rows and footer
+     */
+    public List<Object> query(String query, Map params, Map opts) {
+        final Map<String, Object> requestData = map(QUERY, query, PARAMS, params);
+        if (opts != null) requestData.putAll(opts);
+        final List<Object> result = new ArrayList<Object>();
+        for (byte[] frame : request(MsgPack.pack(requestData))) {
+            result.add(MsgPack.unpack(frame, MsgPack.UNPACK_RAW_AS_STRING));
+        }
+        return result;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * releases the slot, the server frees it for other clients
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        shared.close(slot);
+        shared.release();
+    }
+}
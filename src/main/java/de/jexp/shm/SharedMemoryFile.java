@@ -0,0 +1,231 @@
+package de.jexp.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import static de.jexp.shm.UnsafeMemory.*;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Memory mapped file shared by the server and co-located clients, addressed as {@code shm:///path/to/file}, accessed with {@link UnsafeMemory}.
+ * After a header with the layout and the epoch of the running server (0 once it stopped) follow a fixed number of slots,
+ * each with its state and a pair of {@link SharedRing}s, one for the requests of the client and one for the responses.
+ * A client claims a free slot with a compare and swap of its state and marks it closed when done,
+ * the server then empties the rings and frees the slot again.
+ * While a client is connected it holds a file lock on the state of its slot, which the operating system releases if the process dies,
+ * so the slot of a crashed client can be told apart from a live one and is reclaimed.
+ */
+public class SharedMemoryFile {
+    public static final String SCHEME = "shm://";
+    public static final int FREE = 0, CONNECTED = 1, CLOSED = 2;
+    private static final int MAGIC = 0x43595052, VERSION = 1;
+    private static final int HEADER = 128, SLOT_HEADER = 128;
+    private static final int MAGIC_OFFSET = 0, VERSION_OFFSET = 4, SLOTS_OFFSET = 8, CAPACITY_OFFSET = 12, EPOCH_OFFSET = 64;
+
+    private final File file;
+    // holds the locks of the claimed slots
+    private final RandomAccessFile raf;
+    // keeps the mapping alive, it is released when the buffer is collected
+    private final MappedByteBuffer buffer;
+    private final FileLock[] locks;
+    private final long address;
+    private final int slots;
+    private final int capacity;
+    private final long slotSize;
+
+    private SharedMemoryFile(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.address = UnsafeMemory.address(buffer);
+        this.slots = getInt(address + SLOTS_OFFSET);
+        this.capacity = getInt(address + CAPACITY_OFFSET);
+        this.slotSize = slotSize(capacity);
+        this.locks = new FileLock[slots];
+    }
+
+    public static boolean isAddress(String address) {
+        return address.startsWith(SCHEME);
+    }
+
+    public static File file(String address) {
+        if (!isAddress(address)) throw new IllegalArgumentException("Not a shared memory address " + address);
+        return new File(address.substring(SCHEME.length()));
+    }
+
+    private static long slotSize(int capacity) {
+        return SLOT_HEADER + 2L * SharedRing.size(capacity);
+    }
+
+    /**
+     * replaces an existing file, all slots are free
+     * @param capacity of each ring, rounded up to a power of two
+     */
+    public static SharedMemoryFile create(File file, int slots, int capacity) throws IOException {
+        if (slots < 1) throw new IllegalArgumentException("At least one slot is required, was " + slots);
+        final int ringCapacity = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        final long size = HEADER + slots * slotSize(ringCapacity);
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Shared memory file of " + slots + " slots with rings of " + ringCapacity + " bytes exceeds 2GB");
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace shared memory file " + file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer buffer = map(raf, size);
+        final long address = UnsafeMemory.address(buffer);
+        putInt(address + VERSION_OFFSET, VERSION);
+        putInt(address + SLOTS_OFFSET, slots);
+        putInt(address + CAPACITY_OFFSET, ringCapacity);
+        putLong(address + EPOCH_OFFSET, System.currentTimeMillis());
+        // clients check the magic number last
+        putIntVolatile(address + MAGIC_OFFSET, MAGIC);
+        return new SharedMemoryFile(file, raf, buffer);
+    }
+
+    /**
+     * @throws IOException if there is no file of a running server
+     */
+    public static SharedMemoryFile open(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER) throw new IOException("No shared memory file at " + file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer buffer = map(raf, file.length());
+        final long address = UnsafeMemory.address(buffer);
+        if (getIntVolatile(address + MAGIC_OFFSET) != MAGIC || getInt(address + VERSION_OFFSET) != VERSION) {
+            raf.close();
+            throw new IOException("Invalid shared memory file " + file);
+        }
+        final SharedMemoryFile shared = new SharedMemoryFile(file, raf, buffer);
+        if (shared.epoch() == 0) {
+            shared.release();
+            throw new IOException("Server of shared memory file " + file + " is stopped");
+        }
+        return shared;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf, long size) throws IOException {
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * closes the file, which releases the locks of the claimed slots, the mapping stays valid until it is collected
+     */
+    public synchronized void release() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // nothing to release
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the creation time of the server's file or 0 if the server stopped
+     */
+    public long epoch() {
+        return getLongVolatile(address + EPOCH_OFFSET);
+    }
+
+    public void stop() {
+        putLongVolatile(address + EPOCH_OFFSET, 0);
+    }
+
+    private long slot(int slot) {
+        return address + position(slot);
+    }
+
+    private long position(int slot) {
+        if (slot < 0 || slot >= slots) throw new IndexOutOfBoundsException("Slot " + slot + " of " + slots);
+        return HEADER + slot * slotSize;
+    }
+
+    public int state(int slot) {
+        return getIntVolatile(slot(slot));
+    }
+
+    /**
+     * A connected slot whose lock isn't held belonged to a client that died without closing it,
+     * it is marked closed, so the server frees it for one of the next claims.
+     * @return true if the slot was free and now belongs to the caller, which holds its lock until it closes the slot
+     */
+    public synchronized boolean claim(int slot) throws IOException {
+        final FileLock lock = tryLock(slot);
+        if (lock == null) return false;
+        if (compareAndSwapInt(slot(slot), FREE, CONNECTED)) {
+            locks[slot] = lock;
+            return true;
+        }
+        compareAndSwapInt(slot(slot), CONNECTED, CLOSED);
+        lock.release();
+        return false;
+    }
+
+    /**
+     * @return the lock of the slot's state or null if a live client holds it
+     */
+    private FileLock tryLock(int slot) throws IOException {
+        try {
+            return raf.getChannel().tryLock(position(slot), 4, false);
+        } catch (OverlappingFileLockException e) {
+            // held by a client in this process
+            return null;
+        }
+    }
+
+    /**
+     * called by the client, the server frees the slot
+     */
+    public synchronized void close(int slot) {
+        putIntVolatile(slot(slot), CLOSED);
+        final FileLock lock = locks[slot];
+        if (lock == null) return;
+        locks[slot] = null;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // released with the file at the latest
+        }
+    }
+
+    /**
+     * called by the server after it stopped using the rings of a closed slot
+     */
+    public void free(int slot) {
+        new SharedRing(this, slot(slot) + SLOT_HEADER, capacity).reset();
+        new SharedRing(this, slot(slot) + SLOT_HEADER + SharedRing.size(capacity), capacity).reset();
+        putIntVolatile(slot(slot), FREE);
+    }
+
+    /**
+     * @return a new view of the ring the client writes its requests to, one per side
+     */
+    public SharedRing requests(int slot) {
+        return new SharedRing(this, slot(slot) + SLOT_HEADER, capacity);
+    }
+
+    /**
+     * @return a new view of the ring the server writes the responses to, one per side
+     */
+    public SharedRing responses(int slot) {
+        return new SharedRing(this, slot(slot) + SLOT_HEADER + SharedRing.size(capacity), capacity);
+    }
+}
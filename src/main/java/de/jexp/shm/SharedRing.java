@@ -0,0 +1,186 @@
+package de.jexp.shm;
+
+import static de.jexp.shm.UnsafeMemory.*;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Single producer, single consumer ring of frames in a region of a memory mapped file shared by two processes.
+ * The producer copies records behind its tail index and publishes them with an ordered write of the tail,
+ * the consumer reads up to the volatile tail and releases the space with an ordered write of its head index,
+ * so neither side takes a lock or makes a system call (the ordered and volatile accesses are those of {@link UnsafeMemory}). The indices grow monotonically and sit on their own cache lines.
+ * A record is a 16 byte header (chunk length, flags, frame length, position in the frame) and the chunk, padded to 16 bytes.
+ * Frames larger than a quarter of the capacity are split into chunks the consumer joins again, so frames of any size pass,
+ * a record that doesn't fit before the end of the buffer is preceded by a padding record up to the end.
+ * The {@link #MORE} flag marks multipart messages like ZMQ's SNDMORE.
+ */
+public class SharedRing {
+    public static final int MORE = 1;
+    // the next record continues this frame
+    private static final int CONTINUED = 2;
+    private static final int PADDING = 4;
+    private static final int RECORD_HEADER = 16;
+    private static final int TAIL_OFFSET = 0, HEAD_OFFSET = 64;
+    public static final int HEADER = 128;
+
+    // keeps the mapping alive while the ring is used
+    private final SharedMemoryFile mapping;
+    private final long address;
+    private final long data;
+    private final int capacity;
+    private final int maxChunk;
+
+    // consumer side, the frame being joined and the flags of the last polled frame
+    private byte[] frame;
+    private int flags;
+
+    /**
+     * @param address of the ring in the mapped memory of the file, followed by {@link #size(int)} bytes
+     * @param capacity power of two of at least 1024 bytes
+     */
+    SharedRing(SharedMemoryFile mapping, long address, int capacity) {
+        if (capacity < 1024 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Ring capacity must be a power of two of at least 1024 bytes, was " + capacity);
+        this.mapping = mapping;
+        this.address = address;
+        this.data = address + HEADER;
+        this.capacity = capacity;
+        this.maxChunk = capacity / 4 - RECORD_HEADER;
+    }
+
+    public static int size(int capacity) {
+        return HEADER + capacity;
+    }
+
+    /**
+     * writes as many chunks of the frame, starting at {@code from}, as there is free space for
+     * @param flags {@link #MORE} if another frame of the same message follows
+     * @return the position in the frame after the written chunks (the frame length when it is complete) or -1 if the ring is full
+     */
+    public int offer(byte[] frame, int from, int flags) {
+        long tail = getLong(address + TAIL_OFFSET);
+        final long head = getLongVolatile(address + HEAD_OFFSET);
+        int position = from;
+        boolean written = false;
+        do {
+            final int length = Math.min(frame.length - position, maxChunk);
+            final int record = align(RECORD_HEADER + length);
+            final int index = (int) (tail & (capacity - 1));
+            final int padding = index + record > capacity ? capacity - index : 0;
+            if (tail + padding + record - head > capacity) break;
+            if (padding > 0) {
+                writeHeader(data + index, padding, PADDING, 0, 0);
+                tail += padding;
+            }
+            final long at = data + (tail & (capacity - 1));
+            final boolean last = position + length == frame.length;
+            writeHeader(at, length, last ? flags & MORE : CONTINUED, frame.length, position);
+            copy(frame, position, at + RECORD_HEADER, length);
+            tail += record;
+            position += length;
+            written = true;
+        } while (position < frame.length);
+        if (!written) return -1;
+        // publishes the records, the stores above can't be reordered after it
+        putOrderedLong(address + TAIL_OFFSET, tail);
+        return position;
+    }
+
+    /**
+     * writes the whole frame, waiting with the idle strategy while the ring is full
+     * @param alive checked while waiting, abandons the write with its exception when the reader is gone
+     */
+    public void write(byte[] frame, int flags, IdleStrategy idle, Liveness alive) {
+        int position = -1;
+        // an empty frame is done once it was written
+        while (position < frame.length) {
+            final int written = offer(frame, Math.max(position, 0), flags);
+            if (written >= 0) {
+                position = written;
+                idle.reset();
+            } else {
+                idle.idle();
+                alive.check();
+            }
+        }
+    }
+
+    /**
+     * @return the next complete frame or null if there is none yet, {@link #flags()} tells if it has {@link #MORE} frames
+     * @throws IllegalStateException if the ring contains invalid records
+     */
+    public byte[] poll() {
+        long head = getLong(address + HEAD_OFFSET);
+        final long tail = getLongVolatile(address + TAIL_OFFSET);
+        while (head != tail) {
+            final long at = data + (head & (capacity - 1));
+            final int length = getInt(at);
+            final int recordFlags = getInt(at + 4);
+            if ((recordFlags & PADDING) != 0) {
+                if (length <= 0 || length > capacity) throw new IllegalStateException("Invalid padding of " + length + " bytes in shared ring");
+                head += length;
+                continue;
+            }
+            final int frameLength = getInt(at + 8);
+            final int position = getInt(at + 12);
+            if (length < 0 || length > maxChunk || position < 0 || frameLength < position + length) {
+                throw new IllegalStateException("Invalid record of " + length + " bytes at " + position + " of " + frameLength + " in shared ring");
+            }
+            if (position == 0) frame = new byte[frameLength];
+            else if (frame == null || frame.length != frameLength) throw new IllegalStateException("Unexpected continuation at " + position + " in shared ring");
+            copy(at + RECORD_HEADER, frame, position, length);
+            head += align(RECORD_HEADER + length);
+            if ((recordFlags & CONTINUED) == 0) {
+                // releases the space after the record was copied
+                putOrderedLong(address + HEAD_OFFSET, head);
+                final byte[] result = frame;
+                frame = null;
+                flags = recordFlags;
+                return result;
+            }
+        }
+        putOrderedLong(address + HEAD_OFFSET, head);
+        return null;
+    }
+
+    /**
+     * @return the flags of the frame returned by the last {@link #poll()}
+     */
+    public int flags() {
+        return flags;
+    }
+
+    public boolean hasMore() {
+        return (flags & MORE) != 0;
+    }
+
+    /**
+     * empties the ring, only while neither side uses it
+     */
+    void reset() {
+        frame = null;
+        flags = 0;
+        putLongVolatile(address + TAIL_OFFSET, 0);
+        putLongVolatile(address + HEAD_OFFSET, 0);
+    }
+
+    private static void writeHeader(long at, int length, int flags, int frameLength, int position) {
+        putInt(at, length);
+        putInt(at + 4, flags);
+        putInt(at + 8, frameLength);
+        putInt(at + 12, position);
+    }
+
+    private static int align(int size) {
+        return (size + RECORD_HEADER - 1) & -RECORD_HEADER;
+    }
+
+    /**
+     * lets a blocked writer or reader give up when the other side is gone
+     */
+    public interface Liveness {
+        /**
+         * @throws IllegalStateException if the other side is gone
+         */
+        void check();
+    }
+}
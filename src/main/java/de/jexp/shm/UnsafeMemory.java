@@ -0,0 +1,99 @@
+package de.jexp.shm;
+
+import sun.misc.Unsafe;
+
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * The only use of {@code sun.misc.Unsafe} (and the reason for its compiler warnings), for the memory mapped file shared with other processes.
+ * Java 7 has no API for ordered stores, volatile loads and compare and swap on memory outside the heap, {@code ByteBuffer} accesses are plain
+ * and the atomic classes only work on fields, but the rings need them to publish records to the other process without locks.
+ * Runs on the HotSpot JVMs that provide {@code theUnsafe}, the shared memory transport is unavailable without it.
+ */
+final class UnsafeMemory {
+    private static final Unsafe UNSAFE = unsafe();
+    private static final long BYTES = UNSAFE.arrayBaseOffset(byte[].class);
+    private static final long BUFFER_ADDRESS = fieldOffset(Buffer.class, "address");
+
+    private UnsafeMemory() {
+    }
+
+    /**
+     * @return the address of the mapped memory, valid as long as the buffer is reachable
+     */
+    static long address(MappedByteBuffer buffer) {
+        return UNSAFE.getLong(buffer, BUFFER_ADDRESS);
+    }
+
+    static int getInt(long address) {
+        return UNSAFE.getInt(address);
+    }
+
+    static int getIntVolatile(long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+
+    static void putInt(long address, int value) {
+        UNSAFE.putInt(address, value);
+    }
+
+    static void putIntVolatile(long address, int value) {
+        UNSAFE.putIntVolatile(null, address, value);
+    }
+
+    static boolean compareAndSwapInt(long address, int expected, int value) {
+        return UNSAFE.compareAndSwapInt(null, address, expected, value);
+    }
+
+    static long getLong(long address) {
+        return UNSAFE.getLong(address);
+    }
+
+    static void putLong(long address, long value) {
+        UNSAFE.putLong(address, value);
+    }
+
+    static long getLongVolatile(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    static void putLongVolatile(long address, long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+
+    /**
+     * a store that isn't reordered with the stores before it, but (unlike a volatile one) doesn't wait for them to become visible
+     */
+    static void putOrderedLong(long address, long value) {
+        UNSAFE.putOrderedLong(null, address, value);
+    }
+
+    static void copy(byte[] from, int position, long to, int length) {
+        UNSAFE.copyMemory(from, BYTES + position, null, to, length);
+    }
+
+    static void copy(long from, byte[] to, int position, int length) {
+        UNSAFE.copyMemory(null, from, to, BYTES + position, length);
+    }
+
+    private static long fieldOffset(Class<?> type, String name) {
+        try {
+            return UNSAFE.objectFieldOffset(type.getDeclaredField(name));
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Unsafe unsafe() {
+        try {
+            final java.lang.reflect.Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package de.jexp.stats;
+
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Registers an MBean with the platform MBean server while the kernel extension is started.
+ */
+public class JmxRegistration extends LifecycleAdapter {
+    private final Object mbean;
+    private final ObjectName name;
+    private final StringLogger logger;
+    private boolean registered;
+
+    public JmxRegistration(Object mbean, String name, StringLogger logger) throws Exception {
+        this.mbean = mbean;
+        this.name = new ObjectName(name);
+        this.logger = logger;
+    }
+
+    @Override
+    public void start() throws Throwable {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            logger.warn("MBean " + name + " is already registered, e.g. by another database in this JVM");
+            return;
+        }
+        server.registerMBean(mbean, name);
+        registered = true;
+    }
+
+    @Override
+    public void stop() throws Throwable {
+        if (!registered) return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        registered = false;
+    }
+}
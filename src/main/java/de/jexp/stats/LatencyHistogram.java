@@ -0,0 +1,96 @@
+package de.jexp.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Lock-free log-linear histogram of nanosecond latencies, recording is a single atomic increment per bucket.
+ * Each power of two is split into 16 sub-buckets, so reported percentiles are at most 6.25% above the recorded value.
+ * Values above 2^40 ns (about 18 minutes) are counted in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * the highest value that is recorded in the bucket
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        final long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the upper bound of the bucket containing the quantile, at most the max recorded value
+     */
+    public long percentile(double quantile) {
+        final long[] snapshot = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            recorded += snapshot[i];
+        }
+        if (recorded == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(quantile * recorded));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= target) return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        final long recorded = count.get();
+        return recorded == 0 ? 0 : total.get() / recorded;
+    }
+
+    /**
+     * not atomic with concurrent recordings, which may be partially lost
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,89 @@
+package de.jexp.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Latency histograms for each stage of handling a request, shared by all worker threads.
+ */
+public class LatencyStats implements LatencyStatsMXBean {
+
+    public enum Stage {
+        /** from arrival at the dispatcher until a worker received the request */
+        QUEUE_WAIT,
+        UNPACK,
+        /** the Cypher execution including pulling the rows from the lazy result */
+        EXECUTE,
+        /** from the start of the execution until the first row was available */
+        FIRST_ROW,
+        /** encoding header, rows and footer */
+        SERIALIZE,
+        /** handing all frames of the response to the socket */
+        SEND;
+
+        public String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    public LatencyStats() {
+        for (Stage stage : Stage.values()) {
+            histograms[stage.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    public LatencyHistogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * @return per stage a map of count, p50, p99, p999, max and mean in nanoseconds, for the stats request
+     */
+    public Map<String, Object> snapshot() {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Stage stage : Stage.values()) {
+            result.put(stage.key(), values(get(stage)));
+        }
+        return result;
+    }
+
+    private static Map<String, Long> values(LatencyHistogram histogram) {
+        final Map<String, Long> values = new LinkedHashMap<String, Long>();
+        values.put("count", histogram.getCount());
+        values.put("p50", histogram.percentile(0.5));
+        values.put("p99", histogram.percentile(0.99));
+        values.put("p999", histogram.percentile(0.999));
+        values.put("max", histogram.getMax());
+        values.put("mean", histogram.getMean());
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getPercentiles() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Stage stage : Stage.values()) {
+            for (Map.Entry<String, Long> value : values(get(stage)).entrySet()) {
+                result.put(stage.key() + "." + value.getKey(), value.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getRequests() {
+        return get(Stage.UNPACK).getCount();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) histogram.reset();
+    }
+}
@@ -0,0 +1,19 @@
+package de.jexp.stats;
+
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * JMX view of the {@link LatencyStats}, all values in nanoseconds.
+ */
+public interface LatencyStatsMXBean {
+    /**
+     * @return e.g. "execute.p99" to the 99th percentile of the execute stage, for all stages and p50, p99, p999, max and mean
+     */
+    Map<String, Long> getPercentiles();
+
+    long getRequests();
+
+    void reset();
+}
@@ -0,0 +1,102 @@
+package de.jexp.transaction;
+
+import de.jexp.msgpack.ExecutionResultMessagePack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Open results of cursors between fetch requests, one registry per worker thread like the {@link TransactionRegistry}.
+ * Cursor ids satisfy {@code cursorId % stride == offset}, so fetches can be routed to the worker that owns the cursor.
+ * Not thread safe, only used by its worker.
+ */
+public class CursorRegistry {
+    private final static AtomicLong cursorIds = new AtomicLong(0);
+
+    private final int offset;
+    private final int stride;
+    private final long timeout;
+    private final Map<Long, Cursor> cursors = new HashMap<Long, Cursor>();
+
+    public static class Cursor {
+        public final long id;
+        /**
+         * the transaction the result is read in
+         */
+        public final long txId;
+        /**
+         * true if the cursor started the transaction and commits it when it is exhausted or closed
+         */
+        public final boolean ownsTransaction;
+        public final ExecutionResultMessagePack result;
+        /**
+         * rows per page if a fetch request doesn't specify it
+         */
+        public final int fetchSize;
+        private long lastAccess;
+
+        public Cursor(long id, long txId, boolean ownsTransaction, ExecutionResultMessagePack result, int fetchSize) {
+            this.id = id;
+            this.txId = txId;
+            this.ownsTransaction = ownsTransaction;
+            this.result = result;
+            this.fetchSize = fetchSize;
+        }
+    }
+
+    /**
+     * @param timeout idle time in milliseconds after which a cursor expires
+     */
+    public CursorRegistry(int offset, int stride, long timeout) {
+        this.offset = offset;
+        this.stride = stride;
+        this.timeout = timeout;
+    }
+
+    public long nextId() {
+        return cursorIds.incrementAndGet() * stride + offset;
+    }
+
+    public void park(Cursor cursor) {
+        cursor.lastAccess = System.currentTimeMillis();
+        cursors.put(cursor.id, cursor);
+    }
+
+    /**
+     * @return the cursor which is no longer registered until it is parked again
+     * @throws IllegalArgumentException for unknown, exhausted or expired cursors
+     */
+    public Cursor remove(long cursorId) {
+        final Cursor cursor = cursors.remove(cursorId);
+        if (cursor == null) throw new IllegalArgumentException("Unknown, closed or expired cursor " + cursorId);
+        return cursor;
+    }
+
+    /**
+     * removes and returns the cursors that were idle longer than the timeout
+     */
+    public Collection<Cursor> expire(long now) {
+        if (cursors.isEmpty()) return Collections.emptyList();
+        final List<Cursor> expired = new ArrayList<Cursor>();
+        for (Iterator<Cursor> it = cursors.values().iterator(); it.hasNext(); ) {
+            final Cursor cursor = it.next();
+            if (now - cursor.lastAccess > timeout) {
+                expired.add(cursor);
+                it.remove();
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return cursors.size();
+    }
+}
@@ -0,0 +1,110 @@
+package de.jexp.transaction;
+
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Background thread rolling back the remote transactions of all worker registries whose lease expired,
+ * e.g. because the client crashed, so they don't hold their locks and memory forever.
+ * Checks every half of the default timeout, but at least every second for per-transaction timeouts.
+ */
+public class TransactionReaper implements TransactionStatsMXBean {
+    private static final long MIN_INTERVAL = 50, MAX_INTERVAL = 1000;
+
+    private final List<TransactionRegistry> registries = new CopyOnWriteArrayList<TransactionRegistry>();
+    private final long interval;
+    private final StringLogger logger;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param timeout the default idle timeout of transactions in milliseconds, 0 for never
+     */
+    public TransactionReaper(long timeout, StringLogger logger) {
+        this.interval = timeout > 0 ? Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, timeout / 2)) : MAX_INTERVAL;
+        this.logger = logger;
+    }
+
+    public void add(TransactionRegistry registry) {
+        registries.add(registry);
+    }
+
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Cypher Remoting Transaction Reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reap();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stops reaping and forgets the registries, open transactions are left alone
+     */
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor = null;
+        registries.clear();
+    }
+
+    public void reap() {
+        final long now = System.currentTimeMillis();
+        for (TransactionRegistry registry : registries) {
+            try {
+                final int count = registry.reap(now);
+                if (count > 0) logger.info("Cypher Remoting rolled back " + count + " idle transactions");
+            } catch (Exception e) {
+                logger.warn("Error rolling back idle transactions", e);
+            }
+        }
+    }
+
+    @Override
+    public long getOpen() {
+        long open = 0;
+        for (TransactionRegistry registry : registries) open += registry.getOpenCount();
+        return open;
+    }
+
+    @Override
+    public long getReaped() {
+        long reaped = 0;
+        for (TransactionRegistry registry : registries) reaped += registry.getReapedCount();
+        return reaped;
+    }
+
+    @Override
+    public long getTimedOut() {
+        long timedOut = 0;
+        for (TransactionRegistry registry : registries) timedOut += registry.getTimedOutCount();
+        return timedOut;
+    }
+
+    /**
+     * @return open, reaped and timed_out counts for the stats request
+     */
+    public Map<String, Object> snapshot() {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("open", getOpen());
+        result.put("reaped", getReaped());
+        result.put("timed_out", getTimedOut());
+        return result;
+    }
+}
@@ -9,25 +9,123 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.kernel.GraphDatabaseAPI;
 
 import javax.transaction.*;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class TransactionRegistry {
     private final static AtomicLong txIds = new AtomicLong(0);
+    private final static int REMEMBERED_REAPED = 1000;
 
     private TransactionManager tm;
     private GraphDatabaseService db;
+    private final int offset;
+    private final int stride;
+    private final long timeout;
 
 
     private long currentTxId = -1l;
+    private Lease currentLease;
 
-    private Map<Long, Transaction> txIdToTxMap = new ConcurrentHashMap<Long, Transaction>();
+    private Map<Long, Lease> txIdToTxMap = new ConcurrentHashMap<Long, Lease>();
+    // ids of recently reaped transactions, to tell clients that come back late why their transaction is gone
+    private final Map<Long, Boolean> reapedIds = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > REMEMBERED_REAPED;
+        }
+    });
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * A suspended transaction and its lease, which is taken while a request uses the transaction
+     * and renewed for the idle timeout when it is suspended again.
+     */
+    private static class Lease {
+        final Transaction tx;
+        final long timeout;
+        private long expiresAt;
+        private boolean inUse;
+        private boolean reaped;
+        private boolean ended;
+
+        Lease(Transaction tx, long timeout, long now) {
+            this.tx = tx;
+            this.timeout = timeout;
+            this.expiresAt = now + timeout;
+        }
+
+        synchronized boolean acquire() {
+            if (reaped || ended) return false;
+            inUse = true;
+            return true;
+        }
+
+        synchronized boolean isReaped() {
+            return reaped;
+        }
+
+        /**
+         * @return true if the transaction is suspended and can be committed or rolled back by another thread
+         */
+        synchronized boolean end() {
+            if (inUse || reaped || ended) return false;
+            ended = true;
+            return true;
+        }
+
+        /**
+         * undoes {@link #end()} if the transaction couldn't be resumed to end it
+         */
+        synchronized void reopen(long now) {
+            ended = false;
+            expiresAt = now + timeout;
+        }
+
+        synchronized void release(long now) {
+            inUse = false;
+            expiresAt = now + timeout;
+        }
+
+        /**
+         * @return true if the lease expired, it can't be acquired anymore afterwards
+         */
+        synchronized boolean reap(long now) {
+            if (inUse || reaped || ended || timeout <= 0 || now < expiresAt) return false;
+            reaped = true;
+            return true;
+        }
+    }
 
     public TransactionRegistry(GraphDatabaseService neo4j) {
+        this(neo4j, 0, 1, 0);
+    }
+
+    public TransactionRegistry(GraphDatabaseService neo4j, int offset, int stride) {
+        this(neo4j, offset, stride, 0);
+    }
+
+    /**
+     * A registry per worker thread, the ids it hands out satisfy {@code txId % stride == offset}
+     * so a dispatcher can route requests of a transaction to the thread that owns it, see {@link #ownerOf(long, int)}.
+     * @param timeout default idle time in milliseconds after which a transaction is rolled back by {@link #reap(long)}, 0 for never
+     */
+    public TransactionRegistry(GraphDatabaseService neo4j, int offset, int stride, long timeout) {
         this.db = neo4j;
         this.tm = ((GraphDatabaseAPI) neo4j).getDependencyResolver().resolveDependency(TransactionManager.class);
+        this.offset = offset;
+        this.stride = stride;
+        this.timeout = timeout;
+    }
+
+    public static int ownerOf(long txId, int stride) {
+        return (int) (txId % stride);
+    }
+
+    public boolean owns(long txId) {
+        return ownerOf(txId, stride) == offset;
     }
 
     public void selectCurrentTransaction(long txId)
@@ -37,16 +135,34 @@ public class TransactionRegistry {
         if(currentTxId != txId)
         {
             suspendCurrentTransaction();
-            Transaction tx = txIdToTxMap.get(txId);
-            if (tx == null) {
-                throw new InvalidTransactionException("No transaction with id "
-                        + txId + " found.");
+            final Lease lease = txIdToTxMap.get(txId);
+            if (lease == null || !lease.acquire()) {
+                throw notAvailable(txId, lease);
+            }
+            try {
+                tm.resume(lease.tx);
+            } catch (InvalidTransactionException e) {
+                lease.release(System.currentTimeMillis());
+                throw e;
+            } catch (SystemException e) {
+                lease.release(System.currentTimeMillis());
+                throw e;
             }
-            tm.resume(tx);
             currentTxId = txId;
+            currentLease = lease;
         }
     }
 
+    private InvalidTransactionException notAvailable(long txId, Lease lease) {
+        if (lease != null ? lease.isReaped() : reapedIds.remove(txId) != null) {
+            timedOut.incrementAndGet();
+            return new InvalidTransactionException("Transaction " + txId
+                    + " was rolled back after being idle longer than its timeout.");
+        }
+        return new InvalidTransactionException("No transaction with id "
+                + txId + " found.");
+    }
+
     public void suspendCurrentTransaction()
     {
         if(currentTxId != -1l)
@@ -58,20 +174,33 @@ public class TransactionRegistry {
                 throw new RuntimeException(e);
             } finally
             {
+                currentLease.release(System.currentTimeMillis());
                 currentTxId = -1l;
+                currentLease = null;
             }
         }
     }
 
+    /**
+     * starts a transaction with the default idle timeout
+     */
     public long createTransaction()
+    {
+        return createTransaction(timeout);
+    }
+
+    /**
+     * @param timeout idle time in milliseconds after which the transaction is rolled back, 0 for never
+     */
+    public long createTransaction(long timeout)
     {
         suspendCurrentTransaction();
 
         org.neo4j.graphdb.Transaction neo4jTx = db.beginTx();
         try {
             Transaction tx = tm.suspend();
-            final long id = txIds.incrementAndGet();
-            txIdToTxMap.put(id, tx);
+            final long id = txIds.incrementAndGet() * stride + offset;
+            txIdToTxMap.put(id, new Lease(tx, timeout, System.currentTimeMillis()));
             return id;
         } catch (Exception e) {
             neo4jTx.finish();
@@ -91,6 +220,7 @@ public class TransactionRegistry {
             } finally {
                 txIdToTxMap.remove(currentTxId);
                 currentTxId = -1l;
+                currentLease = null;
             }
         } else {
             throw new InvalidTransactionException("Can't commit, no transaction selected.");
@@ -109,6 +239,7 @@ public class TransactionRegistry {
             } finally {
                 txIdToTxMap.remove(currentTxId);
                 currentTxId = -1l;
+                currentLease = null;
             }
         } else {
             throw new InvalidTransactionException("Can't roll back, no transaction selected.");
@@ -116,6 +247,79 @@ public class TransactionRegistry {
 
     }
 
+    /**
+     * Commits or rolls back a suspended transaction of this registry on the calling thread, which must not have a transaction of its own.
+     * Called by another worker, so a transaction can be ended while the worker owning it is busy,
+     * e.g. blocked on a lock held by that very transaction.
+     * @throws InvalidTransactionException if a request is using the transaction, it was reaped or doesn't exist
+     */
+    public void endTransaction(long txId, boolean commit) throws IllegalStateException,
+            SecurityException, HeuristicMixedException,
+            HeuristicRollbackException, RollbackException, SystemException,
+            InvalidTransactionException
+    {
+        final Lease lease = txIdToTxMap.get(txId);
+        if (lease == null || !lease.end()) {
+            if (lease != null && !lease.isReaped()) {
+                throw new InvalidTransactionException("Transaction " + txId + " is in use by another request.");
+            }
+            throw notAvailable(txId, lease);
+        }
+        boolean resumed = false;
+        try {
+            tm.resume(lease.tx);
+            resumed = true;
+        } finally {
+            // still registered, so the owner or the reaper can end it
+            if (!resumed) lease.reopen(System.currentTimeMillis());
+        }
+        txIdToTxMap.remove(txId);
+        if (commit) tm.commit();
+        else tm.rollback();
+    }
+
+    /**
+     * Rolls back the transactions whose lease expired, called from the reaper thread and not from the worker owning the registry,
+     * so that a stale transaction is released even if its worker is blocked on one of its locks.
+     * @return the number of transactions rolled back
+     */
+    public int reap(long now) throws SystemException {
+        int count = 0;
+        for (Map.Entry<Long, Lease> entry : txIdToTxMap.entrySet()) {
+            final Lease lease = entry.getValue();
+            if (!lease.reap(now)) continue;
+            txIdToTxMap.remove(entry.getKey());
+            reapedIds.put(entry.getKey(), Boolean.TRUE);
+            reaped.incrementAndGet();
+            count++;
+            try {
+                tm.resume(lease.tx);
+                tm.rollback();
+            } catch (InvalidTransactionException e) {
+                throw new SystemException("Could not roll back transaction " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        return count;
+    }
+
+    public int getOpenCount() {
+        return txIdToTxMap.size();
+    }
+
+    /**
+     * @return transactions rolled back because their lease expired
+     */
+    public long getReapedCount() {
+        return reaped.get();
+    }
+
+    /**
+     * @return requests for transactions that were already reaped
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
     public void setTransactionTimeout(int sec) throws SystemException {
         tm.setTransactionTimeout(sec);
     }
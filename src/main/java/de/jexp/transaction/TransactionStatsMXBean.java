@@ -0,0 +1,14 @@
+package de.jexp.transaction;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * JMX view of the remote transactions of all workers, see {@link TransactionReaper}.
+ */
+public interface TransactionStatsMXBean {
+    long getOpen();
+
+    long getReaped();
+
+    long getTimedOut();
+}
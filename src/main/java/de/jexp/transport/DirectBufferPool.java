@@ -0,0 +1,45 @@
+package de.jexp.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Free list of direct buffers of one size for a single thread. Channels write direct buffers without copying them into a
+ * temporary one first, recycling them avoids allocating (and later freeing) native memory for every response.
+ * At most {@code maxPooled} buffers are kept, the ones released beyond that are left to the garbage collector.
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return an empty buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (free.size() >= maxPooled) return;
+        buffer.clear();
+        free.push(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int pooled() {
+        return free.size();
+    }
+}
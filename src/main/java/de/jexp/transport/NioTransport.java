@@ -0,0 +1,376 @@
+package de.jexp.transport;
+
+import org.neo4j.helpers.HostnamePort;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import zmq.ZError;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * {@link Transport} over plain TCP connections for clients that can't keep a ZMQ socket, e.g. many short lived processes.
+ * Each frame is preceded by its length as a 4 byte big-endian int, a request is a single MessagePack frame,
+ * the frames of a response have the {@link #MORE} bit set in their length when another frame of the response follows.
+ * Requests may be pipelined, with a {@code request_id} the responses carry it in a first frame like on the ZMQ path.
+ * One selector thread serves all connections and forwards their requests over a single DEALER socket, with the connection id
+ * as an additional routing frame, so a connection costs a channel and a few objects but no socket or thread in the server.
+ * Responses are copied into pooled direct buffers and sent with gathering writes, while a connection has unsent responses
+ * its further requests aren't read. The responses of all connections arrive over the one DEALER socket, which can't leave those of
+ * a single connection waiting, so a connection whose unsent output would exceed {@code maxOutputBytes} is closed instead,
+ * a client that doesn't keep up with its results can't make the transport buffer them without bound.
+ * Requests are read into a buffer that grows with the bytes that arrived, not with the length announced in their prefix.
+ */
+public class NioTransport implements Transport {
+    public static final String SCHEME = "nio://";
+    // set in the length prefix of a response frame if another frame follows
+    public static final int MORE = 0x80000000;
+    public static final int MAX_REQUEST_BYTES = 16 << 20;
+    public static final long DEFAULT_MAX_OUTPUT_BYTES = 16 << 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_GATHER = 64;
+    // reads per readiness event, so a busy connection doesn't starve the others
+    private static final int MAX_READS = 16;
+    private static final int SELECT_TIMEOUT = 1000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InetSocketAddress address;
+    private final StringLogger logger;
+    private final long maxOutputBytes;
+    private final DirectBufferPool buffers = new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final Map<Long, Connection> connections = new HashMap<Long, Connection>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final byte[] prefix = new byte[4];
+    private Selector selector;
+    private ServerSocketChannel server;
+    private ZMQ.Socket socket;
+    private long nextId;
+    private volatile boolean running = true;
+
+    private static class Connection {
+        final long id;
+        final byte[] idFrame;
+        final SocketChannel channel;
+        SelectionKey key;
+        // written buffers waiting to be sent and the one being filled
+        final Deque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        ByteBuffer last;
+        // bytes appended to the output and not yet sent
+        long outputBytes;
+        // the length prefix of the next request and how many of its bytes were read
+        int length;
+        int lengthBytes;
+        // the request being read, its buffer grows up to the announced length
+        byte[] request;
+        int requestLength;
+        int requestBytes;
+
+        Connection(long id, SocketChannel channel) {
+            this.id = id;
+            this.idFrame = idFrame(id);
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param address hostname and port to listen on, e.g. {@code :5556}
+     */
+    public NioTransport(String address, StringLogger logger) {
+        this(address, DEFAULT_MAX_OUTPUT_BYTES, logger);
+    }
+
+    /**
+     * @param maxOutputBytes unsent response bytes after which a connection is closed
+     */
+    public NioTransport(String address, long maxOutputBytes, StringLogger logger) {
+        final HostnamePort hostnamePort = new HostnamePort(address.startsWith(SCHEME) ? address.substring(SCHEME.length()) : address);
+        final String host = hostnamePort.getHost(null);
+        this.address = host == null ? new InetSocketAddress(hostnamePort.getPort()) : new InetSocketAddress(host, hostnamePort.getPort());
+        this.logger = logger;
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    @Override
+    public void open(ZMQ.Context context, String frontend) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        socket = context.socket(ZMQ.DEALER);
+        socket.setLinger(0);
+        // each connection has few requests in flight, blocking on a high water mark would stall all of them
+        socket.setSndHWM(0);
+        socket.setRcvHWM(0);
+        socket.connect(frontend);
+        // readable when the socket has commands to process, e.g. that responses arrived
+        socket.getFD().register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public String getAddress() {
+        return SCHEME + address.getHostString() + ":" + address.getPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else if (key.attachment() instanceof Connection) handle((Connection) key.attachment());
+                }
+                // sending requests may have processed the commands that signalled responses, so it is always checked
+                fromServer();
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) logger.warn("Error in Cypher Remoting NIO transport", e);
+        } catch (ZError.CtxTerminatedException e) {
+            // shutdown
+        } catch (IOException e) {
+            logger.warn("Error in Cypher Remoting NIO transport", e);
+        } catch (RuntimeException e) {
+            logger.warn("Error in Cypher Remoting NIO transport", e);
+        } finally {
+            for (Connection connection : new ArrayList<Connection>(connections.values())) {
+                close(connection);
+            }
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (selector != null) selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Connection connection = new Connection(nextId++, channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.put(connection.id, connection);
+        }
+    }
+
+    private void handle(Connection connection) {
+        try {
+            if (connection.key.isWritable()) write(connection);
+            if (connection.key.isValid() && connection.key.isReadable()) read(connection);
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) logger.debug("Cypher Remoting NIO connection " + connection.id + " failed: " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        for (int reads = 0; reads < MAX_READS; reads++) {
+            readBuffer.clear();
+            final int read = connection.channel.read(readBuffer);
+            if (read < 0) {
+                close(connection);
+                return;
+            }
+            readBuffer.flip();
+            parse(connection, readBuffer);
+            if (readBuffer.limit() < readBuffer.capacity()) return;
+        }
+    }
+
+    /**
+     * collects the length prefix and the bytes of the requests, forwards each complete one
+     */
+    private void parse(Connection connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.request == null) {
+                while (connection.lengthBytes < 4 && buffer.hasRemaining()) {
+                    connection.length = (connection.length << 8) | (buffer.get() & 0xff);
+                    connection.lengthBytes++;
+                }
+                if (connection.lengthBytes < 4) return;
+                final int length = connection.length;
+                connection.length = 0;
+                connection.lengthBytes = 0;
+                if (length < 0 || length > MAX_REQUEST_BYTES) throw new IOException("Invalid request length " + length);
+                connection.request = new byte[Math.min(length, BUFFER_SIZE)];
+                connection.requestLength = length;
+                connection.requestBytes = 0;
+            }
+            final int bytes = Math.min(buffer.remaining(), connection.requestLength - connection.requestBytes);
+            final int required = connection.requestBytes + bytes;
+            if (required > connection.request.length) {
+                // the last growth ends at the announced length, so a complete request fills the array
+                final int size = Math.min(connection.requestLength, Math.max(required, connection.request.length * 2));
+                connection.request = Arrays.copyOf(connection.request, size);
+            }
+            buffer.get(connection.request, connection.requestBytes, bytes);
+            connection.requestBytes += bytes;
+            if (connection.requestBytes == connection.requestLength) {
+                socket.sendMore(connection.idFrame);
+                socket.sendMore(EMPTY);
+                socket.send(connection.request, 0);
+                connection.request = null;
+            }
+        }
+    }
+
+    /**
+     * copies the available responses into the output buffers of their connections, drops the ones of closed connections.
+     * Full buffers are sent while the frames of a response arrive, a connection that would exceed the max output is closed.
+     */
+    private void fromServer() {
+        while ((socket.getEvents() & ZMQ.Poller.POLLIN) != 0) {
+            Connection connection = connections.get(connectionId(socket.recv(0)));
+            // the empty delimiter frame
+            socket.recv(0);
+            boolean more;
+            do {
+                final byte[] frame = socket.recv(0);
+                more = socket.hasReceiveMore();
+                if (connection == null) continue;
+                if (connection.outputBytes + 4 + frame.length > maxOutputBytes) {
+                    if (logger.isDebugEnabled()) logger.debug("Cypher Remoting NIO connection " + connection.id + " closed, more than " + maxOutputBytes + " unsent bytes");
+                    close(connection);
+                    connection = null;
+                    continue;
+                }
+                append(connection, frame, more);
+                try {
+                    if (more) send(connection);
+                    else write(connection);
+                } catch (IOException e) {
+                    close(connection);
+                    connection = null;
+                }
+            } while (more);
+        }
+    }
+
+    private void append(Connection connection, byte[] frame, boolean more) {
+        final int length = frame.length | (more ? MORE : 0);
+        prefix[0] = (byte) (length >>> 24);
+        prefix[1] = (byte) (length >>> 16);
+        prefix[2] = (byte) (length >>> 8);
+        prefix[3] = (byte) length;
+        append(connection, prefix);
+        append(connection, frame);
+    }
+
+    private void append(Connection connection, byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            if (connection.last == null) {
+                connection.last = buffers.acquire();
+            } else if (!connection.last.hasRemaining()) {
+                connection.last.flip();
+                connection.output.add(connection.last);
+                connection.last = buffers.acquire();
+            }
+            final int bytes = Math.min(data.length - offset, connection.last.remaining());
+            connection.last.put(data, offset, bytes);
+            offset += bytes;
+        }
+        connection.outputBytes += data.length;
+    }
+
+    /**
+     * sends as much of the output as the channel takes, reading further requests only once all of it was sent
+     */
+    private void write(Connection connection) throws IOException {
+        if (connection.last != null && connection.last.position() > 0) {
+            connection.last.flip();
+            connection.output.add(connection.last);
+            connection.last = null;
+        }
+        send(connection);
+    }
+
+    /**
+     * sends the full buffers, the one being filled stays until the response is complete
+     */
+    private void send(Connection connection) throws IOException {
+        while (!connection.output.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : connection.output) {
+                if (count == MAX_GATHER) break;
+                gather[count++] = buffer;
+            }
+            final long written = connection.channel.write(gather, 0, count);
+            connection.outputBytes -= written;
+            while (!connection.output.isEmpty() && !connection.output.peek().hasRemaining()) {
+                buffers.release(connection.output.poll());
+            }
+            if (written == 0) break;
+        }
+        connection.key.interestOps(connection.output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection connection) {
+        connections.remove(connection.id);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        for (ByteBuffer buffer : connection.output) buffers.release(buffer);
+        connection.output.clear();
+        if (connection.last != null) buffers.release(connection.last);
+        connection.last = null;
+    }
+
+    private void closeQuietly() {
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Error closing Cypher Remoting NIO transport", e);
+        }
+        try {
+            socket.close();
+        } catch (ZMQException e) {
+            // already closed by context termination
+        }
+    }
+
+    private static byte[] idFrame(long id) {
+        final byte[] frame = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            frame[i] = (byte) id;
+            id >>>= 8;
+        }
+        return frame;
+    }
+
+    private static long connectionId(byte[] frame) {
+        long id = 0;
+        for (byte b : frame) id = (id << 8) | (b & 0xff);
+        return id;
+    }
+}
@@ -0,0 +1,28 @@
+package de.jexp.transport;
+
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * A way for clients to reach the server besides its ZMQ sockets. A transport forwards each request over an inproc socket
+ * to the server's frontend, as a message of routing frames, an empty delimiter and the request like a REQ or DEALER client sends it,
+ * and hands the response frames back to the client, so all transports share the worker pool, its dispatching, transactions and cursors.
+ * The server opens the transport once its frontend is bound, runs it on its own thread and stops it before the context is terminated.
+ */
+public interface Transport extends Runnable {
+    /**
+     * binds the external address and prepares the forwarding, called before {@link #run()}
+     * @param frontend inproc address the server's frontend socket is bound to
+     */
+    void open(ZMQ.Context context, String frontend) throws IOException;
+
+    /**
+     * lets {@link #run()} return soon, it then closes its sockets and releases the external address
+     */
+    void stop();
+
+    String getAddress();
+}
@@ -0,0 +1,148 @@
+package de.jexp.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Minimal JSON parser for workload and config files, objects become (ordered) maps, arrays lists,
+ * integral numbers Long and other numbers Double.
+ */
+public class JsonReader {
+    private final String text;
+    private int position;
+
+    private JsonReader(String text) {
+        this.text = text;
+    }
+
+    public static Object parse(String text) {
+        final JsonReader reader = new JsonReader(text);
+        final Object value = reader.readValue();
+        reader.skipWhitespace();
+        if (reader.position < text.length()) throw reader.error("Unexpected trailing content");
+        return value;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at " + position + " in " + text);
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+    }
+
+    private char next() {
+        if (position >= text.length()) throw error("Unexpected end of input");
+        return text.charAt(position++);
+    }
+
+    private void expect(char expected) {
+        skipWhitespace();
+        if (next() != expected) throw error("Expected '" + expected + "'");
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (position < text.length() && text.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (position >= text.length()) throw error("Unexpected end of input");
+        final char c = text.charAt(position);
+        switch (c) {
+            case '{': return readObject();
+            case '[': return readArray();
+            case '"': return readString();
+            case 't': return readLiteral("true", Boolean.TRUE);
+            case 'f': return readLiteral("false", Boolean.FALSE);
+            case 'n': return readLiteral("null", null);
+        }
+        if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+        throw error("Unexpected character '" + c + "'");
+    }
+
+    private Map<String, Object> readObject() {
+        position++;
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        if (consume('}')) return result;
+        do {
+            skipWhitespace();
+            if (position >= text.length() || text.charAt(position) != '"') throw error("Expected string key");
+            final String key = readString();
+            expect(':');
+            result.put(key, readValue());
+        } while (consume(','));
+        expect('}');
+        return result;
+    }
+
+    private List<Object> readArray() {
+        position++;
+        final List<Object> result = new ArrayList<Object>();
+        if (consume(']')) return result;
+        do {
+            result.add(readValue());
+        } while (consume(','));
+        expect(']');
+        return result;
+    }
+
+    private String readString() {
+        position++;
+        final StringBuilder sb = new StringBuilder();
+        while (true) {
+            final char c = next();
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            final char escaped = next();
+            switch (escaped) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (position + 4 > text.length()) throw error("Invalid unicode escape");
+                    sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    position += 4;
+                    break;
+                default: sb.append(escaped);
+            }
+        }
+    }
+
+    private Object readLiteral(String literal, Object value) {
+        if (!text.startsWith(literal, position)) throw error("Expected " + literal);
+        position += literal.length();
+        return value;
+    }
+
+    private Number readNumber() {
+        final int start = position;
+        boolean integral = true;
+        while (position < text.length()) {
+            final char c = text.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E') integral = false;
+            else if (c != '-' && c != '+' && (c < '0' || c > '9')) break;
+            position++;
+        }
+        final String number = text.substring(start, position);
+        try {
+            return integral ? (Number) Long.parseLong(number) : (Number) Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + number);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.jexp.util;
+
+import java.util.Arrays;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Open addressing set of primitive longs, avoids boxing for large id sets.
+ * Meant to be reused, {@link #clear()} keeps the table unless it grew beyond the retained capacity.
+ */
+public class LongHashSet {
+    private static final long EMPTY = 0L;
+    private static final int RETAINED_CAPACITY = 1 << 16;
+
+    private final int initialCapacity;
+    private long[] table;
+    private int mask;
+    private int size;
+    private boolean containsEmpty;
+
+    public LongHashSet(int initialCapacity) {
+        this.initialCapacity = Integer.highestOneBit(Math.max(initialCapacity, 8) - 1) << 1;
+        allocate(this.initialCapacity);
+    }
+
+    public LongHashSet() {
+        this(1024);
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long value) {
+        final long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return true if the value was not yet contained
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty) return false;
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+        int slot = hash(value) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) return false;
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+        if (++size * 2 > table.length) rehash(table.length << 1);
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) return containsEmpty;
+        int slot = hash(value) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private void rehash(int capacity) {
+        final long[] old = table;
+        allocate(capacity);
+        for (long value : old) {
+            if (value == EMPTY) continue;
+            int slot = hash(value) & mask;
+            while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+            table[slot] = value;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        if (table.length > RETAINED_CAPACITY) {
+            allocate(initialCapacity);
+        } else {
+            Arrays.fill(table, EMPTY);
+        }
+        size = 0;
+        containsEmpty = false;
+    }
+}
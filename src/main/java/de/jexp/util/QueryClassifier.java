@@ -0,0 +1,67 @@
+package de.jexp.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Classifies Cypher queries as read-only if they contain none of the updating keywords (outside of string literals and quoted identifiers).
+ * Works on the UTF-8 bytes of the query, so the dispatcher doesn't have to decode it. Errs on the side of writes, e.g. for a property named "set".
+ */
+public class QueryClassifier {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[][] WRITE_KEYWORDS = {
+            "CREATE".getBytes(), "MERGE".getBytes(), "SET".getBytes(), "DELETE".getBytes(),
+            "REMOVE".getBytes(), "FOREACH".getBytes(), "DROP".getBytes()};
+
+    public static boolean isReadOnly(String query) {
+        final byte[] bytes = query.getBytes(UTF8);
+        return isReadOnly(bytes, 0, bytes.length);
+    }
+
+    public static boolean isReadOnly(byte[] query, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final byte b = query[i];
+            if (b == '\'' || b == '"' || b == '`') {
+                i = skipQuoted(query, i + 1, end, b);
+            } else if (isIdentifier(b)) {
+                final int start = i;
+                while (i < end && isIdentifier(query[i])) i++;
+                if (isWriteKeyword(query, start, i - start)) return false;
+            } else {
+                i++;
+            }
+        }
+        return true;
+    }
+
+    private static int skipQuoted(byte[] query, int i, int end, byte quote) {
+        while (i < end) {
+            final byte b = query[i++];
+            if (b == '\\') i++;
+            else if (b == quote) break;
+        }
+        return i;
+    }
+
+    private static boolean isIdentifier(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    private static boolean isWriteKeyword(byte[] query, int start, int length) {
+        for (byte[] keyword : WRITE_KEYWORDS) {
+            if (keyword.length == length && equalsIgnoreCase(query, start, keyword)) return true;
+        }
+        return false;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] query, int start, byte[] keyword) {
+        for (int i = 0; i < keyword.length; i++) {
+            // keywords are upper case ASCII letters
+            if ((query[start + i] & 0xdf) != keyword[i]) return false;
+        }
+        return true;
+    }
+}
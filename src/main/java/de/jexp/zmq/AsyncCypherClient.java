@@ -0,0 +1,471 @@
+package de.jexp.zmq;
+
+import de.jexp.compress.FrameCompressor;
+import de.jexp.msgpack.EntityReferences;
+import de.jexp.msgpack.KeyDictionary;
+import net.asdfa.msgpack.MsgPack;
+import org.zeromq.ZMQ;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.jexp.zmq.CypherServer.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Thread safe client with a fixed pool of pipelined DEALER connections to one or more servers and a future based API.
+ * Requests are packed on the calling thread and handed to a single I/O thread which owns all sockets,
+ * sends each request on the connection with the fewest requests in flight and completes the {@link CypherFuture} with the response,
+ * so one application thread can have many queries in flight. At most {@code maxInFlight} requests are pending,
+ * further calls block until a response arrives.
+ * Rows can be streamed to a {@link RowHandler} instead of being collected in the {@link Result}.
+ * Handlers and listeners run on callback threads of the client, never on the I/O thread, and each response releases its permit
+ * before its future is completed, so callbacks may block on other futures or send further requests.
+ * With multiple endpoints the tx_id and cursor_id in footers are client ids which encode the endpoint,
+ * requests using them are sent to the server that owns the transaction or cursor.
+ * Statement lists are not supported, a footer with an error fails the future with a {@link RemoteCypherException}.
+ */
+public class AsyncCypherClient {
+    private static final byte[] EMPTY = new byte[0];
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    private final ZMQ.Context context;
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final int endpoints;
+    private final long timeoutMillis;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Queue<Pending> submitted = new ConcurrentLinkedQueue<Pending>();
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final ZMQ.Socket wakeSender;
+    private final ZMQ.Socket wakeReceiver;
+    private final Thread ioThread;
+    // row handlers and listeners, a blocking callback takes another thread instead of delaying the others
+    private final ExecutorService callbacks;
+    // only used by the I/O thread
+    private final Map<Long, Pending> pending = new HashMap<Long, Pending>();
+    private int next;
+
+    /**
+     * receives the rows of a response as they are unpacked, on a callback thread of the client, before the future is completed
+     */
+    public interface RowHandler {
+        void onColumns(List<String> columns);
+
+        void onRow(List<Object> row);
+    }
+
+    public static class Result {
+        private final List<String> columns;
+        private final List<List<Object>> rows;
+        private final Map<String, Object> info;
+        private final int bytes;
+
+        Result(List<String> columns, List<List<Object>> rows, Map<String, Object> info, int bytes) {
+            this.columns = columns;
+            this.rows = rows;
+            this.info = info;
+            this.bytes = bytes;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return the rows, empty if they were streamed to a {@link RowHandler}
+         */
+        public List<List<Object>> getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the footer, empty unless the request asked for stats or opened a transaction or cursor
+         */
+        public Map<String, Object> getInfo() {
+            return info;
+        }
+
+        public int getBytes() {
+            return bytes;
+        }
+    }
+
+    private static class Connection {
+        final ZMQ.Socket socket;
+        final int endpoint;
+        int inFlight;
+
+        Connection(ZMQ.Socket socket, int endpoint) {
+            this.socket = socket;
+            this.endpoint = endpoint;
+        }
+    }
+
+    private static class Pending {
+        final long requestId;
+        final byte[] data;
+        final int endpoint;
+        final boolean header;
+        final boolean batch;
+        final boolean compressed;
+        final EntityReferences references;
+        final KeyDictionary dictionary;
+        final RowHandler handler;
+        final CypherFuture future;
+        long deadline;
+        Connection connection;
+
+        Pending(long requestId, byte[] data, int endpoint, Map<String, Object> request, RowHandler handler, CypherFuture future) {
+            this.requestId = requestId;
+            this.future = future;
+            this.data = data;
+            this.endpoint = endpoint;
+            this.handler = handler;
+            // fetched pages of a cursor have no header
+            this.header = !request.containsKey(CURSOR_ID);
+            this.batch = Boolean.TRUE.equals(request.get(BATCH));
+            this.compressed = Boolean.TRUE.equals(request.get(COMPRESS));
+            this.references = Boolean.TRUE.equals(request.get(DEDUP)) ? new EntityReferences() : null;
+            this.dictionary = Boolean.TRUE.equals(request.get(DICTIONARY)) ? new KeyDictionary() : null;
+        }
+    }
+
+    public AsyncCypherClient(String... endpoints) {
+        this(Arrays.asList(endpoints), 2, 1000, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param connectionsPerEndpoint DEALER sockets per server, each one is served by its own server side connection
+     * @param maxInFlight pending requests after which further requests block
+     * @param timeoutMillis requests without response after this time fail with a {@link TimeoutException}, 0 for none,
+     *                      which leaks the permit of a request the server couldn't read (its error response has no request id)
+     */
+    public AsyncCypherClient(List<String> endpoints, int connectionsPerEndpoint, int maxInFlight, long timeoutMillis) {
+        if (endpoints.isEmpty()) throw new IllegalArgumentException("At least one endpoint is required");
+        if (connectionsPerEndpoint < 1 || maxInFlight < 1) throw new IllegalArgumentException("Connections and max in flight must be positive");
+        this.endpoints = endpoints.size();
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+        context = ZMQ.context(1);
+        for (int endpoint = 0; endpoint < endpoints.size(); endpoint++) {
+            for (int i = 0; i < connectionsPerEndpoint; i++) {
+                final ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+                socket.setLinger(0);
+                socket.setSndHWM(maxInFlight);
+                socket.setRcvHWM(maxInFlight);
+                socket.connect(endpoints.get(endpoint));
+                connections.add(new Connection(socket, endpoint));
+            }
+        }
+        // inproc requires the bind before the connect
+        final int instance = INSTANCES.incrementAndGet();
+        final String wakeAddress = "inproc://async-cypher-client-" + instance;
+        wakeReceiver = context.socket(ZMQ.PAIR);
+        wakeReceiver.bind(wakeAddress);
+        wakeSender = context.socket(ZMQ.PAIR);
+        wakeSender.connect(wakeAddress);
+        callbacks = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "AsyncCypherClient-" + instance + "-callback-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ioThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "AsyncCypherClient-" + instance);
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public CypherFuture queryAsync(String query, Map params, Map opts) {
+        return queryAsync(query, params, opts, null);
+    }
+
+    /**
+     * @param handler receives the rows instead of the result, may be null
+     */
+    public CypherFuture queryAsync(String query, Map params, Map opts, RowHandler handler) {
+        final Map<String, Object> requestData = map(QUERY, query, STATS, false, PARAMS, params);
+        if (opts != null) requestData.putAll(opts);
+        return requestAsync(requestData, handler);
+    }
+
+    /**
+     * sends a complete request map, e.g. {@code {"tx": "begin"}} or a cursor fetch with the options the cursor was opened with
+     */
+    public CypherFuture requestAsync(Map<String, Object> request, RowHandler handler) {
+        if (request.containsKey(STATEMENTS)) throw new IllegalArgumentException("Statement lists are not supported by the async client");
+        if (!running.get()) throw new IllegalStateException("Client is closed");
+        // waiting for a permit would block the responses that release them
+        if (Thread.currentThread() == ioThread) throw new IllegalStateException("Requests can't be sent from the I/O thread of the client");
+        final Map<String, Object> requestData = new HashMap<String, Object>(request);
+        final int endpoint = toServerIds(requestData);
+        final long requestId = requestIds.incrementAndGet();
+        requestData.put(REQUEST_ID, requestId);
+        final Pending submission = new Pending(requestId, MsgPack.pack(requestData), endpoint, requestData, handler, new CypherFuture(callbacks));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            submission.future.fail(e);
+            return submission.future;
+        }
+        submitted.add(submission);
+        if (!running.get()) {
+            // closed concurrently, fail what the I/O thread didn't take
+            failSubmitted();
+            return submission.future;
+        }
+        wake();
+        return submission.future;
+    }
+
+    /**
+     * @return number of requests sent or queued without response
+     */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * fails the pending requests and closes the connections
+     */
+    public void close() {
+        if (!running.compareAndSet(true, false)) return;
+        wake();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failSubmitted();
+        callbacks.shutdown();
+        synchronized (wakeSender) {
+            wakeSender.close();
+        }
+        context.term();
+    }
+
+    private void wake() {
+        if (!wakePending.compareAndSet(false, true)) return;
+        synchronized (wakeSender) {
+            if (ioThread.isAlive()) wakeSender.send(EMPTY, 0);
+        }
+    }
+
+    /**
+     * replaces client tx and cursor ids with the ones of the server
+     * @return the endpoint the request has to go to or -1 for any
+     */
+    private int toServerIds(Map<String, Object> requestData) {
+        int endpoint = -1;
+        for (String key : new String[]{TX_ID, CURSOR_ID}) {
+            final Object id = requestData.get(key);
+            if (!(id instanceof Number)) continue;
+            final long clientId = ((Number) id).longValue();
+            endpoint = (int) (clientId % endpoints);
+            requestData.put(key, clientId / endpoints);
+        }
+        return endpoint;
+    }
+
+    private void toClientIds(Map<String, Object> info, int endpoint) {
+        for (String key : new String[]{TX_ID, CURSOR_ID}) {
+            final Object id = info.get(key);
+            if (id instanceof Number) info.put(key, ((Number) id).longValue() * endpoints + endpoint);
+        }
+    }
+
+    private void loop() {
+        final ZMQ.Poller poller = new ZMQ.Poller(connections.size() + 1);
+        poller.register(wakeReceiver, ZMQ.Poller.POLLIN);
+        for (Connection connection : connections) {
+            poller.register(connection.socket, ZMQ.Poller.POLLIN);
+        }
+        try {
+            while (running.get()) {
+                poller.poll(timeoutMillis > 0 ? Math.min(timeoutMillis, 100) : -1);
+                if (poller.pollin(0)) {
+                    while (wakeReceiver.recv(ZMQ.DONTWAIT) != null) {
+                        // drained
+                    }
+                    wakePending.set(false);
+                }
+                sendSubmitted();
+                for (int i = 0; i < connections.size(); i++) {
+                    if (poller.pollin(i + 1)) receive(connections.get(i));
+                }
+                if (timeoutMillis > 0) expire(System.currentTimeMillis());
+            }
+        } catch (RuntimeException e) {
+            running.set(false);
+            failPending(e);
+            throw e;
+        } finally {
+            failPending(new IllegalStateException("Client is closed"));
+            for (Connection connection : connections) {
+                connection.socket.close();
+            }
+            wakeReceiver.close();
+        }
+    }
+
+    private void sendSubmitted() {
+        Pending request;
+        while ((request = submitted.poll()) != null) {
+            if (request.future.isDone()) {
+                // cancelled before it was sent
+                permits.release();
+                continue;
+            }
+            final Connection connection = choose(request.endpoint);
+            request.connection = connection;
+            request.deadline = System.currentTimeMillis() + timeoutMillis;
+            pending.put(request.requestId, request);
+            connection.inFlight++;
+            // the empty delimiter frame makes the DEALER look like a REQ socket to the server
+            connection.socket.sendMore(EMPTY);
+            connection.socket.send(request.data, 0);
+        }
+    }
+
+    /**
+     * the connection with the fewest requests in flight, ties are broken round robin
+     */
+    private Connection choose(int endpoint) {
+        Connection best = null;
+        final int size = connections.size();
+        next = (next + 1) % size;
+        for (int i = 0; i < size; i++) {
+            final Connection connection = connections.get((next + i) % size);
+            if (endpoint >= 0 && connection.endpoint != endpoint) continue;
+            if (best == null || connection.inFlight < best.inFlight) best = connection;
+        }
+        if (best == null) throw new IllegalArgumentException("No connection for endpoint " + endpoint);
+        return best;
+    }
+
+    private void receive(Connection connection) {
+        byte[] delimiter;
+        while ((delimiter = connection.socket.recv(ZMQ.DONTWAIT)) != null) {
+            final List<byte[]> frames = new ArrayList<byte[]>();
+            if (delimiter.length > 0) frames.add(delimiter);
+            while (connection.socket.hasReceiveMore()) {
+                frames.add(connection.socket.recv(0));
+            }
+            final Object requestId = frames.isEmpty() ? null : MsgPack.unpack(frames.get(0), MsgPack.UNPACK_RAW_AS_STRING);
+            // errors while reading a request can't be tagged with its id, it fails with the timeout
+            final Pending request = requestId instanceof Number ? pending.get(((Number) requestId).longValue()) : null;
+            if (request == null) continue;
+            done(request);
+            if (request.handler != null) {
+                // user code, decoded on a callback thread
+                callbacks.execute(new Runnable() {
+                    public void run() {
+                        handle(request, frames);
+                    }
+                });
+            } else {
+                handle(request, frames);
+            }
+        }
+    }
+
+    private void handle(Pending request, List<byte[]> frames) {
+        try {
+            complete(request, frames.subList(1, frames.size()));
+        } catch (Exception e) {
+            request.future.fail(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(Pending request, List<byte[]> frames) {
+        List<String> columns = Collections.emptyList();
+        final List<List<Object>> rows = new ArrayList<List<Object>>();
+        Map<String, Object> info = Collections.emptyMap();
+        int bytes = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            final byte[] frame = frames.get(i);
+            bytes += frame.length;
+            Object data = MsgPack.unpack(request.compressed ? FrameCompressor.decode(frame) : frame, MsgPack.UNPACK_RAW_AS_STRING);
+            if (request.dictionary != null) data = request.dictionary.decode(data);
+            if (i == frames.size() - 1 && data instanceof Map) {
+                info = new LinkedHashMap<String, Object>((Map<String, Object>) data);
+            } else if (i == 0 && request.header) {
+                columns = (List<String>) data;
+                if (request.handler != null) request.handler.onColumns(columns);
+            } else if (request.batch && data instanceof List) {
+                // batch frame, an array of rows
+                for (Object row : (List) data) {
+                    row(request, (List<Object>) row, rows);
+                }
+            } else {
+                row(request, (List<Object>) data, rows);
+            }
+        }
+        toClientIds(info, request.connection.endpoint);
+        if (info.containsKey("error")) request.future.fail(new RemoteCypherException(info));
+        else request.future.complete(new Result(columns, rows, info, bytes));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void row(Pending request, List<Object> row, List<List<Object>> rows) {
+        final List<Object> resolved = request.references != null ? (List<Object>) request.references.resolve(row) : row;
+        if (request.handler != null) request.handler.onRow(resolved);
+        else rows.add(resolved);
+    }
+
+    private void done(Pending request) {
+        pending.remove(request.requestId);
+        request.connection.inFlight--;
+        permits.release();
+    }
+
+    private void expire(long now) {
+        final List<Pending> expired = new ArrayList<Pending>();
+        for (Pending request : pending.values()) {
+            if (request.deadline <= now) expired.add(request);
+        }
+        for (Pending request : expired) {
+            done(request);
+            request.future.fail(new TimeoutException("No response for request " + request.requestId + " within " + timeoutMillis + " ms"));
+        }
+    }
+
+    private void failPending(Exception e) {
+        for (Pending request : new ArrayList<Pending>(pending.values())) {
+            done(request);
+            request.future.fail(e);
+        }
+        failSubmitted();
+    }
+
+    private void failSubmitted() {
+        Pending request;
+        while ((request = submitted.poll()) != null) {
+            permits.release();
+            request.future.fail(new IllegalStateException("Client is closed"));
+        }
+    }
+}
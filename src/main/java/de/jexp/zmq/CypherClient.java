@@ -1,5 +1,8 @@
 package de.jexp.zmq;
 
+import de.jexp.compress.FrameCompressor;
+import de.jexp.msgpack.EntityReferences;
+import de.jexp.msgpack.KeyDictionary;
 import net.asdfa.msgpack.MsgPack;
 import org.zeromq.ZMQ;
 
@@ -18,7 +21,7 @@ public class CypherClient {
     private static final String ADDRESS = "tcp://localhost:5555";
     private static final int THREADS = 5;
     private static final int ROUNDS = 50;
-    public static final int BATCH = 1000;
+    public static final int BATCH_SIZE = 1000;
     private final ThreadLocal<ZMQ.Socket> sockets = new ThreadLocal<ZMQ.Socket>() {
         protected ZMQ.Socket initialValue() {
             ZMQ.Socket socket = context.socket(ZMQ.REQ);
@@ -40,6 +43,42 @@ public class CypherClient {
     public int query(String query, Map params, Map opts, final List<Object> res) {
         final Map<String,Object> requestData = map(QUERY, query, STATS, false, PARAMS, params);
         requestData.putAll(opts);
+        return request(requestData, res);
+    }
+
+    /**
+     * prepares the query on the server, the returned object executes it by handle
+     */
+    public PreparedQuery prepare(String query) {
+        return new PreparedQuery(this, query);
+    }
+
+    /**
+     * fetches the next page of a cursor opened with a {@code "fetch"} option, the footer tells if it {@code "has_more"} rows
+     * @param fetchSize rows of the page, 0 for the fetch size the cursor was opened with
+     */
+    public int fetch(Number cursorId, int fetchSize, final List<Object> res) {
+        return fetch(cursorId, fetchSize, null, res);
+    }
+
+    /**
+     * @param opts the options the cursor was opened with, so the pages are decoded the same way (e.g. dedup, dictionary, compress)
+     */
+    public int fetch(Number cursorId, int fetchSize, Map opts, final List<Object> res) {
+        final Map<String, Object> requestData = new HashMap<String, Object>();
+        if (opts != null) requestData.putAll(opts);
+        requestData.putAll(map(CURSOR_ID, cursorId, FETCH, fetchSize));
+        return request(requestData, res);
+    }
+
+    /**
+     * closes a cursor before all rows were fetched, its transaction is committed
+     */
+    public int closeCursor(Number cursorId) {
+        return request(map(CURSOR_ID, cursorId, CLOSE, true), null);
+    }
+
+    int request(Map<String,Object> requestData, final List<Object> res) {
         byte[] request = MsgPack.pack(requestData);
         // System.out.println("Sending request " + round + "...");
         final ZMQ.Socket socket = socket();
@@ -47,6 +86,12 @@ public class CypherClient {
 
         boolean more;
         int bytes = 0;
+        final EntityReferences references = Boolean.TRUE.equals(requestData.get(DEDUP)) ? new EntityReferences() : null;
+        final KeyDictionary dictionary = Boolean.TRUE.equals(requestData.get(DICTIONARY)) ? new KeyDictionary() : null;
+        final boolean batch = Boolean.TRUE.equals(requestData.get(BATCH));
+        final boolean compressed = Boolean.TRUE.equals(requestData.get(COMPRESS));
+        // fetched pages of a cursor have no header
+        int frame = requestData.containsKey(CURSOR_ID) ? 1 : 0;
         try {
             do {
                 byte[] reply = socket.recv(0);
@@ -54,11 +99,20 @@ public class CypherClient {
                 bytes += reply.length;
                 // System.out.println(" length " + reply.length + " more " + more);
                 if (res!=null) {
-                    final Object row = MsgPack.unpack(reply, MsgPack.UNPACK_RAW_AS_STRING);
-                    // System.out.println("Received reply " + ": [" + row + "]");
+                    Object data = MsgPack.unpack(compressed ? FrameCompressor.decode(reply) : reply, MsgPack.UNPACK_RAW_AS_STRING);
+                    if (dictionary != null) data = dictionary.decode(data);
+                    // System.out.println("Received reply " + ": [" + data + "]");
                     // if (!more) System.out.println("Received footer " + ": [" + res + "]");
-                    res.add(row);
+                    if (batch && frame > 0 && data instanceof List) {
+                        // batch frame, an array of rows
+                        for (Object row : (List) data) {
+                            res.add(references != null ? references.resolve(row) : row);
+                        }
+                    } else {
+                        res.add(references != null && frame > 0 ? references.resolve(data) : data);
+                    }
                 }
+                frame++;
             } while (more);
         } catch (Exception e) {
             System.err.println("Error unpacking ");
@@ -78,9 +132,10 @@ public class CypherClient {
         String query = args.length>0 ? args[0] : "create n={name:{name}}";
         // query = "start n=node(0) match p=n-[r:KNOWS]->m return p,n,r,m,nodes(p) as nodes, rels(p) as rels,length(p) as length";
         int bytes=0;
-        bytes = testMulti(ROUNDS*BATCH, THREADS, new SingleCallable(client));
-        //bytes = testMulti(ROUNDS, THREADS, new TransactionCallable(client, BATCH));
-        System.out.println(ROUNDS*BATCH+" queries took "+(System.currentTimeMillis()-time)+" ms for "+bytes+" bytes.");
+        bytes = testMulti(ROUNDS*BATCH_SIZE, THREADS, new SingleCallable(client));
+        //bytes = testMulti(ROUNDS, THREADS, new TransactionCallable(client, BATCH_SIZE));
+        //bytes = testMulti(ROUNDS, THREADS, new StatementsCallable(client, BATCH_SIZE));
+        System.out.println(ROUNDS*BATCH_SIZE+" queries took "+(System.currentTimeMillis()-time)+" ms for "+bytes+" bytes.");
         client.close();
     }
 
@@ -133,4 +188,26 @@ public class CypherClient {
             return bytes;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * sends the whole transaction as one request with a list of statements, instead of a round trip per statement
+     */
+    private static class StatementsCallable implements Callable<Integer> {
+        final String query = "create n={name:{name}}";
+        private final CypherClient client;
+        private final int batch;
+
+        public StatementsCallable(CypherClient client, int batch) {
+            this.client = client;
+            this.batch = batch;
+        }
+
+        public Integer call() {
+            final List<Map<String, Object>> statements = new ArrayList<Map<String, Object>>(batch);
+            for (int round = 0; round < batch; round++) {
+                statements.add(map(QUERY, query, PARAMS, Collections.singletonMap("name", "test" + round), NO_RESULTS, true));
+            }
+            return client.query(null, null, map(STATEMENTS, statements), null);
+        }
+    }
+}
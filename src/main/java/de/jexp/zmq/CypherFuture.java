@@ -0,0 +1,108 @@
+package de.jexp.zmq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Pending result of an {@link AsyncCypherClient} request, completed by the client's I/O thread.
+ * Listeners run on the given executor once the future is done, so an application doesn't need a thread per request.
+ * They are handed to the executor from a callback thread of the client, never from its I/O thread,
+ * so a listener with a direct executor may block or send further requests.
+ * Cancelling only discards the response, the server still executes the request.
+ */
+public class CypherFuture implements Future<AsyncCypherClient.Result> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Executor callbacks;
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+    private AsyncCypherClient.Result result;
+    private Throwable error;
+    private boolean cancelled;
+    private boolean completed;
+
+    /**
+     * @param callbacks runs the listeners of a future completed by another thread
+     */
+    CypherFuture(Executor callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    boolean complete(AsyncCypherClient.Result result) {
+        return finish(result, null, false);
+    }
+
+    boolean fail(Throwable error) {
+        return finish(null, error, false);
+    }
+
+    private boolean finish(AsyncCypherClient.Result result, Throwable error, boolean cancelled) {
+        final List<Runnable> toRun;
+        synchronized (this) {
+            if (completed) return false;
+            this.result = result;
+            this.error = error;
+            this.cancelled = cancelled;
+            this.completed = true;
+            toRun = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        done.countDown();
+        for (Runnable listener : toRun) {
+            try {
+                callbacks.execute(listener);
+            } catch (RejectedExecutionException e) {
+                // the client is closed
+                listener.run();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * runs the listener on the executor when the future is done, immediately if it is done already
+     */
+    public void addListener(final Runnable listener, final Executor executor) {
+        final Runnable task = new Runnable() {
+            public void run() {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    public AsyncCypherClient.Result get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    public AsyncCypherClient.Result get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException("No response within " + timeout + " " + unit);
+        return report();
+    }
+
+    private synchronized AsyncCypherClient.Result report() throws ExecutionException {
+        if (cancelled) throw new CancellationException();
+        if (error != null) throw new ExecutionException(error);
+        return result;
+    }
+}
@@ -1,20 +1,46 @@
 package de.jexp.zmq;
 
+import de.jexp.cache.ResultCache;
+import de.jexp.cache.ResultCacheInvalidator;
+import de.jexp.cdc.ChangePublisher;
+import de.jexp.compress.FrameCompressor;
+import de.jexp.ingest.BulkIngest;
 import de.jexp.msgpack.ExecutionResultMessagePack;
+import de.jexp.serialize.DetachedRows;
+import de.jexp.serialize.PropertyProjection;
+import de.jexp.serialize.ResultOptions;
+import de.jexp.serialize.ResultSerializer;
+import de.jexp.serialize.ResultSerializerFactory;
+import de.jexp.serialize.ResultSerializers;
+import de.jexp.serialize.RowHandOff;
+import de.jexp.shm.SharedMemoryBridge;
+import de.jexp.shm.SharedMemoryFile;
+import de.jexp.stats.LatencyStats;
+import de.jexp.stats.LatencyStats.Stage;
+import de.jexp.transaction.CursorRegistry;
+import de.jexp.transaction.CursorRegistry.Cursor;
+import de.jexp.transaction.TransactionReaper;
 import de.jexp.transaction.TransactionRegistry;
+import de.jexp.transport.NioTransport;
+import de.jexp.transport.Transport;
+import de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings;
 import net.asdfa.msgpack.MsgPack;
 import org.neo4j.cypher.javacompat.ExecutionEngine;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.*;
 import org.neo4j.helpers.HostnamePort;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.impl.util.StringLogger;
 import org.neo4j.kernel.lifecycle.Lifecycle;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.zeromq.ZMQ;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQException;
+import javax.transaction.InvalidTransactionException;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.neo4j.helpers.collection.MapUtil.map;
@@ -23,8 +49,19 @@ public class CypherServer implements Lifecycle {
     public static final String SERVICE_NAME = "CYPHER_REMOTING";
     
     private static final String WORKER_ADDRESS = "inproc://workers";
+    private static final String TRANSPORT_FRONTEND = "inproc://transports";
+    // idle workers wake up to expire cursors
+    private static final int RECEIVE_TIMEOUT = 1000;
 
     private final int numThreads;
+    private final int readThreads;
+    private final boolean readPriority;
+    private final int batchRows;
+    private final int batchBytes;
+    private final int compressThreshold;
+    private final int pipelineRows;
+    private final long cursorTimeout;
+    private final long txTimeout;
 
     public final static String TX_ID = "tx_id";
     public final static String TX = "tx";
@@ -32,11 +69,37 @@ public class CypherServer implements Lifecycle {
     public final static String QUERY = "query";
     public final static String STATS = "stats";
     public final static String NO_RESULTS = "no_results";
+    public final static String DEDUP = "dedup";
+    public final static String BATCH = "batch";
+    public final static String REQUEST_ID = "request_id";
+    public final static String STATEMENTS = "statements";
+    public final static String STATEMENT = "statement";
+    public final static String PREPARE = "prepare";
+    public final static String HANDLE = "handle";
+    public final static String FETCH = "fetch";
+    public final static String CURSOR_ID = "cursor_id";
+    public final static String CLOSE = "close";
+    public final static String CACHE = "cache";
+    public final static String READ = "read";
+    public final static String SERVER_STATS = "server_stats";
+    public final static String TX_TIMEOUT = "tx_timeout";
+    public final static String COMPRESS = "compress";
+    public final static String DICTIONARY = "dictionary";
+    public final static String IDS_ONLY = "ids_only";
+    public final static String PROPS = "props";
+    public final static String NO_PATHS_BODIES = "no_paths_bodies";
     private static final byte[] EMPTY_MSG = MsgPack.pack(Collections.EMPTY_MAP);
+    private static final byte[] EMPTY_FRAME = new byte[0];
 
     private final StringLogger logger;
     private final ExecutionEngine engine;
-    private final TransactionRegistry transactionRegistry;
+    private final GraphDatabaseService db;
+    private final ResultSerializerFactory serializerFactory;
+    private final StatementHandles statementHandles;
+    private final ResultCache resultCache;
+    private final ResultCacheInvalidator cacheInvalidator;
+    private final LatencyStats latencies;
+    private final TransactionReaper reaper;
     
     private ZContext context = new ZContext();;
 
@@ -44,18 +107,79 @@ public class CypherServer implements Lifecycle {
     private final List<CypherExecutor> executors;
 
     private final String externalAddress;
+    // reach the workers through the inproc frontend
+    private final List<Transport> transports = new ArrayList<Transport>();
+    private final String ingestAddress;
+    private final String ingestProgressAddress;
+    private final int ingestBatchSize;
+    private final long ingestCommitInterval;
+    private final String cdcAddress;
+    private final int cdcBuffer;
+    private ChangePublisher changePublisher;
 
-    public CypherServer(GraphDatabaseService db, StringLogger logger, HostnamePort hostnamePort, Integer numThreads) {
+    public CypherServer(GraphDatabaseService db, StringLogger logger, Config config) {
+        this(db, logger, config, new LatencyStats());
+    }
+
+    public CypherServer(GraphDatabaseService db, StringLogger logger, Config config, LatencyStats latencies) {
         this.logger = logger;
+        this.latencies = latencies;
+        this.db = db;
+        this.serializerFactory = ResultSerializers.find(config.get(CypherRemotingSettings.cypher_remoting_serializer));
         engine = new ExecutionEngine(db);
-        transactionRegistry = new TransactionRegistry(db);
-        externalAddress = "tcp://" + hostnamePort.getHost("*")+":"+hostnamePort.getPort();
-        this.numThreads=numThreads;
-        executors = new ArrayList<CypherExecutor>(numThreads);
+        externalAddress = externalAddress(config.get(CypherRemotingSettings.cypher_remoting_address));
+        if (SharedMemoryFile.isAddress(externalAddress)) {
+            final int ringBytes = (int) Math.min(config.get(CypherRemotingSettings.cypher_remoting_shm_ring_bytes), 1 << 30);
+            transports.add(new SharedMemoryBridge(SharedMemoryFile.file(externalAddress), config.get(CypherRemotingSettings.cypher_remoting_shm_slots), ringBytes, logger));
+        }
+        final String nioAddress = config.get(CypherRemotingSettings.cypher_remoting_nio_address);
+        if (nioAddress != null) transports.add(new NioTransport(nioAddress, config.get(CypherRemotingSettings.cypher_remoting_nio_max_output), logger));
+        final String ingest = config.get(CypherRemotingSettings.cypher_remoting_ingest_address);
+        final String ingestProgress = config.get(CypherRemotingSettings.cypher_remoting_ingest_progress_address);
+        this.ingestAddress = ingest != null ? externalAddress(ingest) : null;
+        this.ingestProgressAddress = ingestProgress != null ? externalAddress(ingestProgress) : null;
+        this.ingestBatchSize=config.get(CypherRemotingSettings.cypher_remoting_ingest_batch_size);
+        this.ingestCommitInterval=config.get(CypherRemotingSettings.cypher_remoting_ingest_commit_interval);
+        final String cdc = config.get(CypherRemotingSettings.cypher_remoting_cdc_address);
+        this.cdcAddress = cdc != null ? externalAddress(cdc) : null;
+        this.cdcBuffer=config.get(CypherRemotingSettings.cypher_remoting_cdc_buffer);
+        this.numThreads=config.get(CypherRemotingSettings.cypher_remoting_threads);
+        this.readThreads=config.get(CypherRemotingSettings.cypher_remoting_read_threads);
+        this.readPriority=config.get(CypherRemotingSettings.cypher_remoting_read_priority);
+        this.batchRows=config.get(CypherRemotingSettings.cypher_remoting_batch_rows);
+        this.batchBytes=config.get(CypherRemotingSettings.cypher_remoting_batch_bytes);
+        this.compressThreshold=config.get(CypherRemotingSettings.cypher_remoting_compress_threshold);
+        final int pipelineRows = config.get(CypherRemotingSettings.cypher_remoting_pipeline_rows);
+        if (pipelineRows > 0 && !serializerFactory.supportsDetachedRows()) {
+            logger.warn("Cypher Remoting serializer " + serializerFactory.getName() + " doesn't support detached rows, the pipeline is disabled");
+        }
+        this.pipelineRows=serializerFactory.supportsDetachedRows() ? pipelineRows : 0;
+        this.cursorTimeout=config.get(CypherRemotingSettings.cypher_remoting_cursor_timeout);
+        this.txTimeout=config.get(CypherRemotingSettings.cypher_remoting_tx_timeout);
+        this.reaper=new TransactionReaper(txTimeout, logger);
+        this.statementHandles=new StatementHandles(config.get(CypherRemotingSettings.cypher_remoting_prepared_statements));
+        final int cacheEntries = config.get(CypherRemotingSettings.cypher_remoting_cache_entries);
+        if (cacheEntries > 0) {
+            this.resultCache = new ResultCache(cacheEntries, config.get(CypherRemotingSettings.cypher_remoting_cache_bytes));
+            this.cacheInvalidator = new ResultCacheInvalidator(resultCache, config.get(CypherRemotingSettings.cypher_remoting_cache_labels));
+        } else {
+            this.resultCache = null;
+            this.cacheInvalidator = null;
+        }
+        executors = new ArrayList<CypherExecutor>(workerCount());
     }
 
 
 
+    /**
+     * @return the address with its scheme, tcp:// for a plain hostname and port
+     */
+    static String externalAddress(String address) {
+        if (address.contains("://")) return address;
+        final HostnamePort hostnamePort = new HostnamePort(address);
+        return "tcp://" + hostnamePort.getHost("*") + ":" + hostnamePort.getPort();
+    }
+
     public static void main(final String[] args) throws Throwable {
         final File directory = new File(args[0]);
         boolean newDB=!directory.exists();
@@ -73,12 +197,20 @@ public class CypherServer implements Lifecycle {
         mainThread.join();
     }
 
-    private static Map<String,Object> beforeQuery(TransactionRegistry transactionRegistry, String tx, Number txId) throws Exception {
+    /**
+     * @param txTimeout idle timeout in milliseconds of a transaction to begin, overriding the default
+     */
+    private static Map<String,Object> beforeQuery(TransactionRegistry transactionRegistry, String tx, Number txId, Number txTimeout) throws Exception {
         if ("begin".equals(tx)) {
-            return map(TX_ID,transactionRegistry.createTransaction(), TX,"begin");
+            final long id = txTimeout != null ? transactionRegistry.createTransaction(txTimeout.longValue()) : transactionRegistry.createTransaction();
+            return map(TX_ID, id, TX,"begin");
         }
         if (txId != null) {
             transactionRegistry.selectCurrentTransaction(txId.longValue());
+            if ("rollback".equals(tx)) {
+                transactionRegistry.rollbackCurrentTransaction();
+                return map(TX_ID,-1, TX,"rollback");
+            }
             return map(TX_ID,txId);
         }
         if ("rollback".equals(tx)) {
@@ -98,6 +230,69 @@ public class CypherServer implements Lifecycle {
         }
     }
 
+    /**
+     * Rows of a result read in a remote transaction, which stays selected until they are pulled, as Cypher would otherwise
+     * close it with the last row. Then it is committed for {"tx":"commit"} or suspended, before the footer is written,
+     * if pulling failed it is suspended for the client to roll it back.
+     */
+    private static class RemoteTransactionRows implements Iterator<Map<String, Object>> {
+        private final Iterator<Map<String, Object>> rows;
+        private final TransactionRegistry transactionRegistry;
+        private final String tx;
+        private final Map<String, Object> info;
+        private boolean ended;
+
+        RemoteTransactionRows(Iterator<Map<String, Object>> rows, TransactionRegistry transactionRegistry, String tx, Map<String, Object> info) {
+            this.rows = rows;
+            this.transactionRegistry = transactionRegistry;
+            this.tx = tx;
+            this.info = info;
+        }
+
+        public boolean hasNext() {
+            if (ended) return false;
+            final boolean hasNext;
+            try {
+                hasNext = rows.hasNext();
+            } catch (RuntimeException e) {
+                abandon();
+                throw e;
+            }
+            if (!hasNext) end();
+            return hasNext;
+        }
+
+        public Map<String, Object> next() {
+            try {
+                return rows.next();
+            } catch (RuntimeException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void end() {
+            ended = true;
+            try {
+                info.putAll(afterQuery(transactionRegistry, tx));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void abandon() {
+            if (ended) return;
+            ended = true;
+            transactionRegistry.suspendCurrentTransaction();
+        }
+    }
+
     private static void initialize(GraphDatabaseService db) {
         Transaction tx = db.beginTx();
         final Node refNode = db.createNode();
@@ -125,39 +320,102 @@ public class CypherServer implements Lifecycle {
     public void start() throws Throwable {
         
         running.set(true);
+        if (cacheInvalidator != null) db.registerTransactionEventHandler(cacheInvalidator);
+        // the shared memory clients and the ones of other transports are bridged to an inproc frontend
+        final List<String> frontendAddresses = new ArrayList<String>(2);
+        if (!SharedMemoryFile.isAddress(externalAddress)) frontendAddresses.add(externalAddress);
+        if (!transports.isEmpty()) frontendAddresses.add(TRANSPORT_FRONTEND);
 
-        if (numThreads >1) {
+        if (workerCount() > 1) {
             
             final ZMQ.Socket router = context.createSocket((ZMQ.ROUTER));
-            router.bind(externalAddress);
+            router.setLinger(0);
+            for (String address : frontendAddresses) router.bind(address);
 
-            final ZMQ.Socket workers = context.createSocket(ZMQ.DEALER);
+            final ZMQ.Socket workers = context.createSocket(ZMQ.ROUTER);
+            workers.setLinger(0);
             workers.bind(WORKER_ADDRESS);
 
-            for (int thread=0;thread< numThreads;thread++){
-                executors.add(new CypherExecutor(WORKER_ADDRESS,true));
+            // the write pool followed by the read pool
+            for (int thread=0;thread< workerCount();thread++){
+                executors.add(new CypherExecutor(thread, true, WORKER_ADDRESS));
             }
 
+            // pins requests of a transaction to the worker thread that started it, separates reads and writes
+            final TransactionAffineDispatcher dispatcher = new TransactionAffineDispatcher(router, workers, numThreads, readThreads, readPriority, logger);
             startDaemonThread(new Runnable() {
                 public void run() {
-                    ZMQ.proxy(router, workers, null);
+                    dispatcher.run();
+                    close(router);
+                    close(workers);
                 }
             });
         } else {
-            executors.add(new CypherExecutor(externalAddress,false));
+            executors.add(new CypherExecutor(0, false, frontendAddresses.toArray(new String[frontendAddresses.size()])));
+        }
+        // the frontend is bound, inproc sockets must bind before they are connected
+        for (Transport transport : transports) {
+            transport.open(context.getContext(), TRANSPORT_FRONTEND);
+            startDaemonThread(transport);
+            logger.info("Started Cypher Remoting transport on " + transport.getAddress());
         }
+        if (ingestAddress != null) startBulkIngest();
+        if (cdcAddress != null) startChangePublisher();
         
         // socket.setReceiveTimeOut(ms);
         // socket.setSendTimeOut(ms);
         // socket.setLinger(ms);
         // high-water-mark, socket.setHWM(), socket.setSwap
-        // subscribe (byte [] topic), e.g. to differentiate between read and write queries or cypher and non-cypher
+        // subscribe (byte [] topic), e.g. to differentiate cypher and non-cypher
 
 
         for (CypherExecutor executor : executors) {
             startDaemonThread(executor);
         }
-        logger.info("Started Cypher Remoting on external address " + externalAddress + " with " + numThreads+" threads");
+        reaper.start();
+        logger.info("Started Cypher Remoting on external address " + externalAddress + " with " + numThreads+" threads, " + readThreads + " read threads and serializer " + serializerFactory.getName());
+    }
+
+    private void startBulkIngest() {
+        final ZMQ.Socket pull = context.createSocket(ZMQ.PULL);
+        pull.setLinger(0);
+        pull.bind(ingestAddress);
+        final ZMQ.Socket progress = ingestProgressAddress != null ? context.createSocket(ZMQ.PUB) : null;
+        if (progress != null) {
+            progress.setLinger(0);
+            progress.bind(ingestProgressAddress);
+        }
+        final BulkIngest ingest = new BulkIngest(db, engine, statementHandles, pull, progress, ingestBatchSize, ingestCommitInterval, logger);
+        startDaemonThread(new Runnable() {
+            public void run() {
+                ingest.run();
+                close(pull);
+                if (progress != null) close(progress);
+            }
+        });
+        logger.info("Started Cypher Remoting bulk ingest on " + ingestAddress + (progress != null ? " with progress on " + ingestProgressAddress : ""));
+    }
+
+    private void startChangePublisher() {
+        final ZMQ.Socket publisher = context.createSocket(ZMQ.PUB);
+        publisher.setLinger(0);
+        publisher.bind(cdcAddress);
+        changePublisher = new ChangePublisher(publisher, cdcBuffer, logger);
+        startDaemonThread(changePublisher);
+        db.registerTransactionEventHandler(changePublisher);
+        logger.info("Started Cypher Remoting change publisher on " + cdcAddress);
+    }
+
+    public TransactionReaper getTransactionReaper() {
+        return reaper;
+    }
+
+    public String getExternalAddress() {
+        return externalAddress;
+    }
+
+    private int workerCount() {
+        return numThreads + readThreads;
     }
 
     private void startDaemonThread(Runnable runnable) {
@@ -168,11 +426,27 @@ public class CypherServer implements Lifecycle {
 
     @Override
     public void stop() throws Throwable {
-        running.set(false);
-        for (CypherExecutor executor : executors) {
-            executor.stop();
+        if (!running.compareAndSet(true, false)) return;
+        reaper.stop();
+        if (cacheInvalidator != null) db.unregisterTransactionEventHandler(cacheInvalidator);
+        if (changePublisher != null) {
+            db.unregisterTransactionEventHandler(changePublisher);
+            changePublisher.stop();
+        }
+        for (Transport transport : transports) {
+            transport.stop();
+        }
+        // terminating the context wakes up all blocked sockets with ETERM, each thread then closes its own socket
+        context.getContext().term();
+        executors.clear();
+    }
+
+    private static void close(ZMQ.Socket socket) {
+        try {
+            socket.close();
+        } catch (ZMQException e) {
+            // already closed by context termination
         }
-        context.destroy();
     }
 
     @Override
@@ -182,46 +456,104 @@ public class CypherServer implements Lifecycle {
 
     class CypherExecutor implements Runnable {
         private ZMQ.Socket socket;
+        private final ResultSerializer serializer = serializerFactory.create();
+        private final RequestDecoder decoder = new RequestDecoder();
+        private final FrameCompressor compressor = compressThreshold > 0 ? new FrameCompressor(compressThreshold) : null;
+        private final TransactionRegistry transactionRegistry;
+        private final CursorRegistry cursors;
+        private final boolean routed;
+        // encodes and sends the rows while this thread pulls them, null without pipeline
+        private final ExecutorService encoder;
+        // routing envelope of the current request
+        private byte[][] client;
+        private byte[] requestId;
+        private boolean replyStarted;
+        // the last frame of the reply was sent, the socket expects the next request
+        private boolean replyComplete;
+        // System.nanoTime() when the dispatcher received the current request, 0 if not routed
+        private long queuedAt;
+        private long sendNanos;
+        // written by the encoder thread, read after its frames are sent
+        private long pipelineNanos;
 
-        CypherExecutor(String address, boolean connect) {
-            socket = context.createSocket(ZMQ.REP);
+        /**
+         * @param connect true if the executor is a worker behind the {@link TransactionAffineDispatcher}, false if it is bound to the external addresses
+         */
+        CypherExecutor(int index, boolean connect, String... addresses) {
+            routed = connect;
+            transactionRegistry = new TransactionRegistry(db, index, workerCount(), txTimeout);
+            reaper.add(transactionRegistry);
+            cursors = new CursorRegistry(index, workerCount(), cursorTimeout);
+            encoder = pipelineRows > 0 ? encoderThread(index) : null;
+            socket = context.createSocket(routed ? ZMQ.REQ : ZMQ.REP);
             socket.setTCPKeepAlive(1);
-            if (connect) socket.connect(address); 
-            else socket.bind(address);
+            socket.setLinger(0);
+            socket.setReceiveTimeOut(RECEIVE_TIMEOUT);
+            if (connect) socket.setIdentity(TransactionAffineDispatcher.workerId(index));
+            for (String address : addresses) {
+                if (connect) socket.connect(address);
+                else socket.bind(address);
+            }
+        }
+
+        private byte[] receive() {
+            if (routed) {
+                final byte[] first = socket.recv(0);
+                if (first == null) return null;
+                client = TransactionAffineDispatcher.readEnvelope(first, socket);
+            }
+            replyStarted = false;
+            replyComplete = false;
+            requestId = null;
+            sendNanos = 0;
+            final byte[] request = socket.recv(0);
+            queuedAt = routed && socket.hasReceiveMore() ? TransactionAffineDispatcher.readTimestamp(socket.recv(0)) : 0;
+            return request;
+        }
+
+        private void send(byte[] frame, int flags) {
+            if (routed && !replyStarted) {
+                for (byte[] envelope : client) socket.sendMore(envelope);
+                socket.sendMore(EMPTY_FRAME);
+            }
+            if (requestId != null && !replyStarted) {
+                // pipelined clients correlate the out of order responses by this frame
+                socket.sendMore(requestId);
+            }
+            replyStarted = true;
+            final long start = System.nanoTime();
+            socket.send(frame, flags);
+            sendNanos += System.nanoTime() - start;
+            if ((flags & ZMQ.SNDMORE) == 0) replyComplete = true;
         }
 
         @Override
         public void run() {
+            try {
+                if (routed) socket.send(TransactionAffineDispatcher.READY, 0);
+            } catch (ZMQException e) {
+                close(socket);
+                return;
+            }
 
             while (!Thread.currentThread().isInterrupted() && running.get()) {
 
                 try {
-                    byte[] request = socket.recv (0);
-                    final Object data = MsgPack.unpack(request, MsgPack.UNPACK_RAW_AS_STRING);
+                    byte[] request = receive();
+                    expireCursors();
+                    if (request == null) continue;
+                    final long received = System.nanoTime();
+                    if (queuedAt != 0) latencies.record(Stage.QUEUE_WAIT, received - queuedAt);
+                    final Object data = decoder.decode(request);
+                    latencies.record(Stage.UNPACK, System.nanoTime() - received);
                     if (logger.isDebugEnabled()) {
                         logger.debug("Cypher Remoting, got query " + data);
                     }
-                    boolean stats = false;
-                    ExecutionResult result = null;
-                    Map<String, Object> info = new HashMap<String, Object>();
-                    if (data instanceof String) {
-                        result = execute(Collections.singletonMap(QUERY, (String) data), info);
-                    }
-                    if (data instanceof Map) {
-                        result = execute((Map) data, info);
-                    }
-                    final ExecutionResultMessagePack messagePack = new ExecutionResultMessagePack(result, stats, info);
-                    if (!messagePack.hasNext()) {
-                        socket.send(EMPTY_MSG, 0);
-                    } else {
-                        while (messagePack.hasNext()) {
-                            byte[] next = messagePack.next();
-                            socket.send(next, messagePack.hasNext() ? ZMQ.SNDMORE : 0);
-                        }
-                    }
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Cypher Remoting, result stats " + messagePack.createResultInfo());
+                    if (data instanceof Map && ((Map) data).containsKey(REQUEST_ID)) requestId = MsgPack.pack(((Map) data).get(REQUEST_ID));
+                    if (!(data instanceof Map) || !executeSpecial((Map) data)) {
+                        executeQuery(data);
                     }
+                    latencies.record(Stage.SEND, sendNanos);
 
                 } catch (ZMQException e) {
                     if (e.getErrorCode () == ZMQ.Error.ETERM.getCode ()) {
@@ -229,37 +561,495 @@ public class CypherServer implements Lifecycle {
                     }
                 } catch (Exception e) {
                     logger.warn("Error during remote cypher execution ", e);
+                    // the client already got its reply, another one would break the request-reply sequence
+                    if (replyComplete) continue;
                     final Map<String, Object> result = map();
                     ExecutionResultMessagePack.addException(result, e);
-                    socket.send(MsgPack.pack(result), 0);
+                    send(MsgPack.pack(result), 0);
                 }
 
             }
+            if (encoder != null) encoder.shutdownNow();
+            close(socket);
+        }
+
+        /**
+         * executes a single query and records the execute, first row and serialize stages
+         */
+        private void executeQuery(Object data) throws Exception {
+            boolean stats = false;
+            final Map<String, Object> info = new HashMap<String, Object>();
+            final Map input = data instanceof Map ? (Map) data : Collections.singletonMap(QUERY, data);
+            if (data instanceof Map) {
+                // the handle of a prepared statement is returned in the footer
+                stats = Boolean.TRUE.equals(input.get(STATS)) || input.containsKey(PREPARE);
+            }
+            final long start = System.nanoTime();
+            // invalid options fail before the query runs
+            final ResultOptions options = resultOptions(data).withCompression(compressor(data));
+            Transaction tx = beginAutoCommit(input);
+            final ExecutionResult result;
+            final long executed;
+            final ExecutionResultMessagePack messagePack;
+            long packNanos = 0;
+            try {
+                result = execute(transactionRegistry, input, info);
+                executed = System.nanoTime();
+                messagePack = new ExecutionResultMessagePack(serializer, options, result, stats, info);
+                if (result != null && input.containsKey(TX_ID)) {
+                    messagePack.handOff(new RemoteTransactionRows(messagePack.handOff(null), transactionRegistry, (String) input.get(TX), info));
+                }
+                if (!messagePack.hasNext()) {
+                    tx = finish(tx, true);
+                    send(EMPTY_MSG, 0);
+                } else if (encoder != null && result != null) {
+                    final RowHandOff rows = new RowHandOff(pipelineRows);
+                    final byte[] last = pipeline(messagePack, rows, options);
+                    // the rows were fetched on this thread, so they don't count against the encoder's time waiting for them
+                    packNanos = pipelineNanos - rows.getWaitNanos() + messagePack.getFetchNanos();
+                    tx = finish(tx, !messagePack.hasFailed());
+                    send(last, 0);
+                } else {
+                    boolean more;
+                    do {
+                        final long packStart = System.nanoTime();
+                        byte[] next = messagePack.next();
+                        packNanos += System.nanoTime() - packStart;
+                        more = messagePack.hasNext();
+                        if (!more) tx = finish(tx, !messagePack.hasFailed());
+                        send(next, more ? ZMQ.SNDMORE : 0);
+                    } while (more);
+                }
+            } finally {
+                finish(tx, false);
+                // unless its rows were all pulled, a remote transaction stays with the client
+                transactionRegistry.suspendCurrentTransaction();
+            }
+            if (result != null) {
+                latencies.record(Stage.EXECUTE, executed - start + messagePack.getFetchNanos());
+                latencies.record(Stage.SERIALIZE, packNanos - messagePack.getFetchNanos());
+                if (messagePack.getFirstRowAt() != 0) latencies.record(Stage.FIRST_ROW, messagePack.getFirstRowAt() - start);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cypher Remoting, result stats " + messagePack.createResultInfo());
+            }
         }
 
-        public void stop() {
-            if (!running.get()) {
-                context.destroySocket(socket);
+        /**
+         * Pulls the rows of the result on this thread, which holds the transaction, and detaches them into the hand-off,
+         * while the encoder thread serializes, compresses and sends all frames but the last one.
+         * The socket is only used by the encoder until it returned the last frame or, if it was cancelled, until it stopped.
+         * @return the last frame, to be sent after the transaction is finished
+         */
+        private byte[] pipeline(final ExecutionResultMessagePack messagePack, final RowHandOff rows, ResultOptions options) throws Exception {
+            final Iterator<Map<String, Object>> result = messagePack.handOff(rows);
+            pipelineNanos = 0;
+            final Future<byte[]> frames = encoder.submit(new Callable<byte[]>() {
+                public byte[] call() {
+                    try {
+                        while (true) {
+                            final long packStart = System.nanoTime();
+                            final byte[] next = messagePack.next();
+                            final boolean more = messagePack.hasNext();
+                            pipelineNanos += System.nanoTime() - packStart;
+                            if (!more) return next;
+                            send(next, ZMQ.SNDMORE);
+                        }
+                    } finally {
+                        rows.close();
+                    }
+                }
+            });
+            boolean handedOff = false;
+            try {
+                final DetachedRows detached = new DetachedRows(messagePack.getColumns(), options);
+                try {
+                    while (result.hasNext()) {
+                        if (!rows.put(detached.detach(result.next()))) break;
+                    }
+                    handedOff = rows.finish() || rows.isClosed();
+                } catch (RuntimeException e) {
+                    // reported in the footer like without the pipeline
+                    handedOff = rows.fail(e) || rows.isClosed();
+                }
+            } finally {
+                // interrupted, the encoder would wait for rows forever
+                if (!handedOff) {
+                    frames.cancel(true);
+                    awaitEncoder();
+                }
+            }
+            try {
+                return frames.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw (Error) e.getCause();
             }
         }
+
+        /**
+         * waits until the encoder finished or skipped the cancelled task, its single thread runs them in order
+         */
+        private void awaitEncoder() {
+            final Future<?> idle;
+            try {
+                idle = encoder.submit(new Runnable() {
+                    public void run() {
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down with the server
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    idle.get(RECEIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    // shut down with the server, the queued task won't run
+                    if (encoder.isTerminated()) break;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Cypher closes its own transaction when the last row is pulled, before the row is serialized,
+         * so requests outside of a remote transaction run in one that spans serializing the result.
+         * @return the transaction or null if the request controls or joins a remote transaction
+         */
+        private Transaction beginAutoCommit(Map input) {
+            if (input.containsKey(TX_ID) || input.containsKey(TX) || input.containsKey(PREPARE)) return null;
+            return db.beginTx();
+        }
+
+        /**
+         * @return the compressor if the request asked for compression and it is enabled, statement lists are never compressed
+         */
+        private FrameCompressor compressor(Object request) {
+            if (compressor == null || !(request instanceof Map)) return null;
+            return Boolean.TRUE.equals(((Map) request).get(COMPRESS)) ? compressor : null;
+        }
+
+        /**
+         * finishes the auto-commit transaction (if any) before the last frame is sent, so the client can read its own writes
+         * @return null as the transaction is finished
+         */
+        private Transaction finish(Transaction tx, boolean success) {
+            if (tx == null) return null;
+            if (success) tx.success();
+            tx.finish();
+            return null;
+        }
+
+        /**
+         * @return true if the request was a server stats request, statement batch, cursor or cached query and handled
+         */
+        private boolean executeSpecial(Map data) throws Exception {
+            if (Boolean.TRUE.equals(data.get(SERVER_STATS))) {
+                final Map<String, Object> stats = latencies.snapshot();
+                stats.put("transactions", reaper.snapshot());
+                send(MsgPack.pack(stats), 0);
+            } else if (data.containsKey(STATEMENTS)) {
+                executeStatements(data);
+            } else if (data.containsKey(CURSOR_ID)) {
+                fetch(data);
+            } else if (data.get(FETCH) instanceof Number && ((Number) data.get(FETCH)).intValue() > 0) {
+                openCursor(data);
+            } else if (isCacheable(data)) {
+                executeCached(data);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Runs all statements in order in one transaction, each one streams its own section of header, rows and footer (with its index).
+         * The last frame reports the number of executed statements and if the batch was committed or rolled back.
+         * With a tx_id the statements join the remote transaction instead, a failing statement marks it rollback only.
+         */
+        private void executeStatements(Map input) throws Exception {
+            final List<Map> statements = (List<Map>) input.get(STATEMENTS);
+            final Number txId = (Number) input.get(TX_ID);
+            final String txMode = (String) input.get(TX);
+            final long start = System.currentTimeMillis();
+            final Map<String, Object> info = new HashMap<String, Object>(beforeQuery(transactionRegistry, txMode, txId, (Number) input.get(TX_TIMEOUT)));
+
+            int executed = 0;
+            final Transaction tx = db.beginTx();
+            try {
+                for (Map statement : statements) {
+                    if (!executeSection(statement, executed)) break;
+                    executed++;
+                }
+                if (executed == statements.size()) tx.success();
+                else tx.failure();
+            } finally {
+                tx.finish();
+            }
+            info.putAll(afterQuery(transactionRegistry, txMode));
+
+            if (txId == null) info.put(TX, executed == statements.size() ? "commit" : "rollback");
+            info.put(STATEMENTS, executed);
+            info.put("time", System.currentTimeMillis() - start);
+            send(MsgPack.pack(info), 0);
+        }
+
+        /**
+         * Executes the query in its own transaction (or the one of the tx_id) and sends the first page of rows,
+         * the footer holds the cursor_id and if the cursor has_more rows.
+         */
+        private void openCursor(Map input) throws Exception {
+            final Number txId = (Number) input.get(TX_ID);
+            final int fetchSize = ((Number) input.get(FETCH)).intValue();
+            final ResultOptions options = resultOptions(input).withFetchSize(fetchSize).withCompression(compressor(input));
+            // without lease, the cursor expiry rolls back its own transaction
+            final long cursorTx = txId != null ? txId.longValue() : transactionRegistry.createTransaction(0);
+            transactionRegistry.selectCurrentTransaction(cursorTx);
+            final long cursorId = cursors.nextId();
+            final Map<String, Object> info = map(CURSOR_ID, cursorId);
+            if (txId != null) info.put(TX_ID, txId);
+
+            final Cursor cursor;
+            try {
+                final ExecutionResult result = executeStatement(input);
+                // always with stats, the footer carries the cursor state
+                final ExecutionResultMessagePack messagePack = new ExecutionResultMessagePack(serializer, options, result, true, info);
+                cursor = new Cursor(cursorId, cursorTx, txId == null, messagePack, fetchSize);
+            } catch (Exception e) {
+                if (txId == null) transactionRegistry.rollbackCurrentTransaction();
+                else transactionRegistry.suspendCurrentTransaction();
+                throw e;
+            }
+            sendPage(cursor);
+        }
+
+        /**
+         * sends the next page of an open cursor or closes it with {"close": true}
+         */
+        private void fetch(Map input) throws Exception {
+            final Cursor cursor = cursors.remove(((Number) input.get(CURSOR_ID)).longValue());
+            transactionRegistry.selectCurrentTransaction(cursor.txId);
+            if (Boolean.TRUE.equals(input.get(CLOSE))) {
+                closeCursor(cursor, true);
+                send(MsgPack.pack(map(CURSOR_ID, cursor.id, CLOSE, true)), 0);
+                return;
+            }
+            final Number fetchSize = (Number) input.get(FETCH);
+            cursor.result.fetch(fetchSize != null && fetchSize.intValue() > 0 ? fetchSize.intValue() : cursor.fetchSize);
+            sendPage(cursor);
+        }
+
+        /**
+         * sends the rows up to the fetch size and the footer, the cursor is parked again if there are more rows,
+         * expects the transaction of the cursor to be selected and suspends it afterwards
+         */
+        private void sendPage(Cursor cursor) throws Exception {
+            final ExecutionResultMessagePack messagePack = cursor.result;
+            boolean sent = false;
+            try {
+                while (messagePack.hasNext()) {
+                    byte[] next = messagePack.next();
+                    send(next, messagePack.hasNext() ? ZMQ.SNDMORE : 0);
+                }
+                sent = true;
+            } finally {
+                if (sent && !messagePack.hasFailed() && !messagePack.isExhausted()) {
+                    transactionRegistry.suspendCurrentTransaction();
+                    cursors.park(cursor);
+                } else {
+                    closeCursor(cursor, sent && !messagePack.hasFailed());
+                }
+            }
+        }
+
+        /**
+         * finishes the transaction of the cursor if it owns it, otherwise only suspends it
+         */
+        private void closeCursor(Cursor cursor, boolean success) throws Exception {
+            if (!cursor.ownsTransaction) transactionRegistry.suspendCurrentTransaction();
+            else if (success) transactionRegistry.commitCurrentTransaction();
+            else transactionRegistry.rollbackCurrentTransaction();
+        }
+
+        private void expireCursors() {
+            for (Cursor cursor : cursors.expire(System.currentTimeMillis())) {
+                try {
+                    transactionRegistry.selectCurrentTransaction(cursor.txId);
+                    closeCursor(cursor, false);
+                } catch (Exception e) {
+                    logger.warn("Error closing expired cursor " + cursor.id, e);
+                }
+            }
+        }
+
+        /**
+         * Sends the cached frames of the query or executes it and caches the frames if it turned out to be read-only.
+         * The footer is always sent, it reports the cache counters.
+         */
+        private void executeCached(Map input) throws Exception {
+            final long start = System.currentTimeMillis();
+            final FrameCompressor frameCompressor = compressor(input);
+            final ResultOptions options = resultOptions(input).withCompression(frameCompressor);
+            final Object key = ResultCache.key(queryOf(input), (Map) input.get(PARAMS), input.get(DEDUP), input.get(BATCH), input.get(DICTIONARY),
+                    input.get(IDS_ONLY), input.get(PROPS), input.get(NO_PATHS_BODIES), frameCompressor != null);
+            final ResultCache.Entry entry = resultCache.get(key);
+            if (entry != null) {
+                for (byte[] frame : entry.frames) {
+                    send(frame, ZMQ.SNDMORE);
+                }
+                final Map<String, Object> info = map("time", System.currentTimeMillis() - start, "rows", entry.rows, "bytes", entry.bytes, CACHE, "hit");
+                resultCache.addStats(info);
+                final byte[] footer = MsgPack.pack(info);
+                send(frameCompressor != null ? frameCompressor.encode(footer) : footer, 0);
+                return;
+            }
+            final long generation = resultCache.generation();
+            final Map<String, Object> info = map(CACHE, "miss");
+            resultCache.addStats(info);
+            Transaction tx = beginAutoCommit(input);
+            final ExecutionResult result;
+            final ExecutionResultMessagePack messagePack;
+            final List<byte[]> frames = new ArrayList<byte[]>();
+            try {
+                result = execute(transactionRegistry, input, info);
+                messagePack = new ExecutionResultMessagePack(serializer, options, result, true, info);
+                while (messagePack.hasNext()) {
+                    byte[] next = messagePack.next();
+                    final boolean more = messagePack.hasNext();
+                    if (more) frames.add(next);
+                    else tx = finish(tx, !messagePack.hasFailed());
+                    send(next, more ? ZMQ.SNDMORE : 0);
+                }
+            } finally {
+                finish(tx, false);
+            }
+            if (result != null && !messagePack.hasFailed() && !result.getQueryStatistics().containsUpdates()) {
+                resultCache.put(key, frames, messagePack.getRows(), generation);
+            }
+        }
+
+        /**
+         * @return false if the statement failed, the error is then reported in its footer
+         */
+        private boolean executeSection(Map statement, int index) {
+            final Map<String, Object> info = map(STATEMENT, index);
+            final ResultOptions options;
+            ExecutionResult result;
+            try {
+                options = resultOptions(statement);
+                result = executeStatement(statement);
+            } catch (Exception e) {
+                ExecutionResultMessagePack.addException(info, e);
+                send(MsgPack.pack(info), ZMQ.SNDMORE);
+                return false;
+            }
+            // always with stats, the footer terminates the section
+            final ExecutionResultMessagePack messagePack = new ExecutionResultMessagePack(serializer, options, result, true, info);
+            while (messagePack.hasNext()) {
+                send(messagePack.next(), ZMQ.SNDMORE);
+            }
+            return !messagePack.hasFailed();
+        }
+    }
+
+    /**
+     * only auto-commit requests outside of transactions that opted in with {"cache": true}
+     */
+    private boolean isCacheable(Map request) {
+        return resultCache != null && Boolean.TRUE.equals(request.get(CACHE))
+                && !request.containsKey(TX_ID) && !request.containsKey(TX) && !request.containsKey(NO_RESULTS) && !request.containsKey(PREPARE);
+    }
+
+    private ExecutorService encoderThread(final int index) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Cypher Remoting Encoder " + index);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private ResultOptions resultOptions(Object request) {
+        final ResultOptions options = new ResultOptions();
+        if (!(request instanceof Map)) return options;
+        options.withDedup(Boolean.TRUE.equals(((Map) request).get(DEDUP)));
+        options.withDictionary(Boolean.TRUE.equals(((Map) request).get(DICTIONARY)));
+        options.withIdsOnly(Boolean.TRUE.equals(((Map) request).get(IDS_ONLY)));
+        options.withNoPathBodies(Boolean.TRUE.equals(((Map) request).get(NO_PATHS_BODIES)));
+        options.withProperties(PropertyProjection.of(((Map) request).get(PROPS)));
+        if (Boolean.TRUE.equals(((Map) request).get(BATCH))) options.withBatch(batchRows, batchBytes);
+        return options;
     }
 
-    private ExecutionResult execute(Map input, Map<String, Object> info) throws Exception {
-        boolean stats = Boolean.TRUE.equals(input.get(STATS));
+    /**
+     * @return the result, if it is read in a remote transaction, that one is still selected
+     */
+    private ExecutionResult execute(TransactionRegistry transactionRegistry, Map input, Map<String, Object> info) throws Exception {
         final Number txId = (Number) input.get(TX_ID);
         final String tx = (String) input.get(TX);
 
-        Map<String,Object> params = input.containsKey(PARAMS) ? (Map<String,Object>) input.get(PARAMS) : Collections.<String,Object>emptyMap();
-        final String query = (String) input.get(QUERY);
+        if (input.containsKey(PREPARE)) {
+            info.put(HANDLE, statementHandles.prepare((String) input.get(PREPARE)));
+            return null;
+        }
+
+        if (txId != null && !transactionRegistry.owns(txId.longValue())) {
+            endForeignTransaction(txId.longValue(), tx, input);
+            info.putAll(map(TX_ID, -1, TX, tx));
+            return null;
+        }
 
-        info.putAll(beforeQuery(transactionRegistry, tx, txId));
+        info.putAll(beforeQuery(transactionRegistry, tx, txId, (Number) input.get(TX_TIMEOUT)));
+
+        final ExecutionResult result;
+        try {
+            result = executeStatement(input);
+            // the rows of a result are pulled in the remote transaction, see RemoteTransactionRows
+            if (result == null || txId == null) info.putAll(afterQuery(transactionRegistry, tx));
+        } catch (Exception e) {
+            // the transaction stays with the client, the next request of this worker must not join it
+            transactionRegistry.suspendCurrentTransaction();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Commits or rolls back a transaction of another worker, the dispatcher hands over a commit or rollback without statement
+     * if the owner is busy, as the owner might be blocked on a lock of that transaction.
+     */
+    private void endForeignTransaction(long txId, String tx, Map input) throws Exception {
+        if (!("commit".equals(tx) || "rollback".equals(tx)) || queryOf(input) != null) {
+            throw new InvalidTransactionException("Transaction " + txId + " is owned by another worker.");
+        }
+        executors.get(TransactionRegistry.ownerOf(txId, workerCount())).transactionRegistry.endTransaction(txId, "commit".equals(tx));
+    }
+
+    private String queryOf(Map input) {
+        final Number handle = (Number) input.get(HANDLE);
+        return handle != null ? statementHandles.get(handle.longValue()) : (String) input.get(QUERY);
+    }
+
+    private ExecutionResult executeStatement(Map input) {
+        Map<String,Object> params = input.get(PARAMS) != null ? (Map<String,Object>) input.get(PARAMS) : Collections.<String,Object>emptyMap();
+        final String query = queryOf(input);
 
         ExecutionResult result = null;
         if (query != null) result = engine.execute(query,params);
 
-        if (input.containsKey(NO_RESULTS)) result=null;
-
-        info.putAll(afterQuery(transactionRegistry, tx));
+        if (input.containsKey(NO_RESULTS)) {
+            // results are lazy, consume them so that updates are actually executed and committed
+            if (result != null) IteratorUtil.count(result.iterator());
+            result=null;
+        }
         return result;
     }
 }
\ No newline at end of file
@@ -1,19 +1,23 @@
 package de.jexp.zmq;
 
+import de.jexp.stats.JmxRegistration;
+import de.jexp.stats.LatencyStats;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.factory.Description;
 import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.extension.KernelExtensionFactory;
 import org.neo4j.kernel.impl.util.StringLogger;
+import org.neo4j.kernel.lifecycle.LifeSupport;
 import org.neo4j.kernel.lifecycle.Lifecycle;
 
 
-import static org.neo4j.helpers.Settings.HOSTNAME_PORT;
 import static org.neo4j.helpers.Settings.INTEGER;
 import static org.neo4j.helpers.Settings.setting;
 
 import org.neo4j.graphdb.config.Setting;
-import org.neo4j.helpers.HostnamePort;
+
+import javax.management.ObjectName;
+import java.util.List;
 
 
 import static org.neo4j.helpers.Settings.*;
@@ -27,8 +31,31 @@ public class CypherServerKernelExtensionFactory extends KernelExtensionFactory<C
     @Description("Settings for the Cypher Remoting Extension")
     public static abstract class CypherRemotingSettings {
 
-        public static Setting<HostnamePort> cypher_remoting_address = setting( "cypher_remoting_address", HOSTNAME_PORT, ":5555" );
+        public static Setting<String> cypher_remoting_address = setting( "cypher_remoting_address", STRING, ":5555" );
         public static Setting<Integer> cypher_remoting_threads = setting( "cypher_remoting_threads", INTEGER, "1", illegalValueMessage("must be a thread number between 1 and 10",range(1,10)));
+        public static Setting<Integer> cypher_remoting_read_threads = setting( "cypher_remoting_read_threads", INTEGER, "0", illegalValueMessage("must be a thread number between 0 and 10",range(0,10)));
+        public static Setting<Boolean> cypher_remoting_read_priority = setting( "cypher_remoting_read_priority", BOOLEAN, FALSE );
+        public static Setting<String> cypher_remoting_serializer = setting( "cypher_remoting_serializer", STRING, "msgpack" );
+        public static Setting<Integer> cypher_remoting_batch_rows = setting( "cypher_remoting_batch_rows", INTEGER, "1000", min(1));
+        public static Setting<Integer> cypher_remoting_batch_bytes = setting( "cypher_remoting_batch_bytes", INTEGER, "65536", min(1));
+        public static Setting<Integer> cypher_remoting_compress_threshold = setting( "cypher_remoting_compress_threshold", INTEGER, "4096", min(0));
+        public static Setting<Integer> cypher_remoting_pipeline_rows = setting( "cypher_remoting_pipeline_rows", INTEGER, "0", min(0));
+        public static Setting<Long> cypher_remoting_cursor_timeout = setting( "cypher_remoting_cursor_timeout", DURATION, "60s" );
+        public static Setting<Integer> cypher_remoting_cache_entries = setting( "cypher_remoting_cache_entries", INTEGER, "0", min(0));
+        public static Setting<Long> cypher_remoting_cache_bytes = setting( "cypher_remoting_cache_bytes", BYTES, "16m" );
+        public static Setting<List<String>> cypher_remoting_cache_labels = setting( "cypher_remoting_cache_labels", list(",", STRING), NO_DEFAULT );
+        public static Setting<Long> cypher_remoting_tx_timeout = setting( "cypher_remoting_tx_timeout", DURATION, "60s" );
+        public static Setting<Integer> cypher_remoting_shm_slots = setting( "cypher_remoting_shm_slots", INTEGER, "16", illegalValueMessage("must be a slot number between 1 and 1024",range(1,1024)));
+        public static Setting<Long> cypher_remoting_shm_ring_bytes = setting( "cypher_remoting_shm_ring_bytes", BYTES, "1m" );
+        public static Setting<String> cypher_remoting_nio_address = setting( "cypher_remoting_nio_address", STRING, NO_DEFAULT );
+        public static Setting<Long> cypher_remoting_nio_max_output = setting( "cypher_remoting_nio_max_output", BYTES, "16m" );
+        public static Setting<String> cypher_remoting_ingest_address = setting( "cypher_remoting_ingest_address", STRING, NO_DEFAULT );
+        public static Setting<String> cypher_remoting_ingest_progress_address = setting( "cypher_remoting_ingest_progress_address", STRING, NO_DEFAULT );
+        public static Setting<Integer> cypher_remoting_ingest_batch_size = setting( "cypher_remoting_ingest_batch_size", INTEGER, "10000", min(1));
+        public static Setting<Long> cypher_remoting_ingest_commit_interval = setting( "cypher_remoting_ingest_commit_interval", DURATION, "1s" );
+        public static Setting<String> cypher_remoting_cdc_address = setting( "cypher_remoting_cdc_address", STRING, NO_DEFAULT );
+        public static Setting<Integer> cypher_remoting_cdc_buffer = setting( "cypher_remoting_cdc_buffer", INTEGER, "10000", min(1));
+        public static Setting<Integer> cypher_remoting_prepared_statements = setting( "cypher_remoting_prepared_statements", INTEGER, "1000", min(1));
     }
 
     public CypherServerKernelExtensionFactory() {
@@ -37,8 +64,13 @@ public class CypherServerKernelExtensionFactory extends KernelExtensionFactory<C
 
     @Override
     public Lifecycle newKernelExtension(Dependencies dependencies) throws Throwable {
-        Config config = dependencies.getConfig();
-        return new CypherServer(dependencies.getGraphDatabaseService(),dependencies.getStringLogger(), config.get(CypherRemotingSettings.cypher_remoting_address),config.get(CypherRemotingSettings.cypher_remoting_threads));
+        final LatencyStats latencies = new LatencyStats();
+        final CypherServer server = new CypherServer(dependencies.getGraphDatabaseService(), dependencies.getStringLogger(), dependencies.getConfig(), latencies);
+        final LifeSupport life = new LifeSupport(dependencies.getStringLogger());
+        life.add(server);
+        life.add(new JmxRegistration(latencies, "de.jexp:type=CypherRemoting,name=Latencies,address=" + ObjectName.quote(server.getExternalAddress()), dependencies.getStringLogger()));
+        life.add(new JmxRegistration(server.getTransactionReaper(), "de.jexp:type=CypherRemoting,name=Transactions,address=" + ObjectName.quote(server.getExternalAddress()), dependencies.getStringLogger()));
+        return life;
     }
 
     public interface Dependencies {
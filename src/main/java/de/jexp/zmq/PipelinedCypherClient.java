@@ -0,0 +1,126 @@
+package de.jexp.zmq;
+
+import de.jexp.compress.FrameCompressor;
+import net.asdfa.msgpack.MsgPack;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static de.jexp.zmq.CypherServer.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Client for the pipelined protocol, a DEALER socket can have many requests in flight, each one carries a request_id
+ * which the server sends back as first frame of the response. Responses can arrive out of order when the server runs multiple threads.
+ * Not thread safe, use one instance per thread.
+ */
+public class PipelinedCypherClient {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ZMQ.Context context;
+    private final ZMQ.Socket socket;
+    private final ZMQ.Poller poller;
+    private long requestIds = 0;
+    private int inFlight = 0;
+    // requests whose response frames are flagged and possibly compressed
+    private final Set<Long> compressed = new HashSet<Long>();
+
+    public static class Response {
+        public final long requestId;
+        public final List<Object> frames;
+        public final int bytes;
+
+        Response(long requestId, List<Object> frames, int bytes) {
+            this.requestId = requestId;
+            this.frames = frames;
+            this.bytes = bytes;
+        }
+    }
+
+    public PipelinedCypherClient(String address) {
+        context = ZMQ.context(1);
+        socket = context.socket(ZMQ.DEALER);
+        socket.setLinger(0);
+        socket.connect(address);
+        poller = new ZMQ.Poller(1);
+        poller.register(socket, ZMQ.Poller.POLLIN);
+    }
+
+    /**
+     * sends the request without waiting for the response
+     * @return the request id the response will be tagged with
+     */
+    public long send(String query, Map params, Map opts) {
+        final Map<String, Object> requestData = map(QUERY, query, STATS, false, PARAMS, params);
+        if (opts != null) requestData.putAll(opts);
+        return send(requestData);
+    }
+
+    /**
+     * sends a complete request map, e.g. a transaction control or statements request, the request_id is added to it
+     */
+    public long send(Map<String, Object> requestData) {
+        final long requestId = ++requestIds;
+        requestData.put(REQUEST_ID, requestId);
+        if (Boolean.TRUE.equals(requestData.get(COMPRESS))) compressed.add(requestId);
+        // the empty delimiter frame makes the DEALER look like a REQ socket to the server
+        socket.sendMore(EMPTY);
+        socket.send(MsgPack.pack(requestData), 0);
+        inFlight++;
+        return requestId;
+    }
+
+    /**
+     * blocks until the next response arrives, which is not necessarily the one of the oldest request
+     */
+    public Response receive() {
+        return receiveResponse();
+    }
+
+    /**
+     * waits at most the timeout for the next response
+     * @return the response or null if none arrived in time
+     */
+    public Response receive(long timeoutMillis) {
+        if (poller.poll(timeoutMillis) <= 0 || !poller.pollin(0)) return null;
+        return receiveResponse();
+    }
+
+    private Response receiveResponse() {
+        socket.recv(0);
+        final List<Object> frames = new ArrayList<Object>();
+        long requestId = -1;
+        boolean decompress = false;
+        int bytes = 0;
+        boolean first = true;
+        do {
+            final byte[] frame = socket.recv(0);
+            bytes += frame.length;
+            final Object data = MsgPack.unpack(decompress ? FrameCompressor.decode(frame) : frame, MsgPack.UNPACK_RAW_AS_STRING);
+            // errors while reading the request can't be tagged with its id
+            if (first && data instanceof Number) {
+                requestId = ((Number) data).longValue();
+                decompress = compressed.remove(requestId);
+            }
+            else frames.add(data);
+            first = false;
+        } while (socket.hasReceiveMore());
+        inFlight--;
+        return new Response(requestId, frames, bytes);
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public void close() {
+        socket.close();
+        context.term();
+    }
+}
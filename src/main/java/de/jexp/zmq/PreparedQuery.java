@@ -0,0 +1,71 @@
+package de.jexp.zmq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Reusable prepared query of a {@link CypherClient}, sends only the statement handle and params instead of the query text.
+ * If the server evicted the handle the query is prepared again and the request retried once.
+ */
+public class PreparedQuery {
+    private final CypherClient client;
+    private final String query;
+    private volatile Number handle;
+
+    PreparedQuery(CypherClient client, String query) {
+        this.client = client;
+        this.query = query;
+        prepare();
+    }
+
+    private Number prepare() {
+        final List<Object> res = new ArrayList<Object>();
+        client.request(map(PREPARE, query), res);
+        final Map footer = (Map) res.get(res.size() - 1);
+        if (footer.containsKey("error")) throw new IllegalStateException("Error preparing query " + query + ": " + footer.get("error"));
+        return handle = (Number) footer.get(HANDLE);
+    }
+
+    public int query(Map params, Map opts, List<Object> res) {
+        final Number current = handle;
+        final List<Object> result = res != null ? res : new ArrayList<Object>();
+        final int size = result.size();
+        final int bytes = client.request(request(current, params, opts), result);
+        if (!isUnknownHandle(result)) return bytes;
+        result.subList(size, result.size()).clear();
+        return bytes + client.request(request(prepareAgain(current), params, opts), result);
+    }
+
+    /**
+     * the server evicted the statement, only prepare again if no other thread did already
+     */
+    private synchronized Number prepareAgain(Number stale) {
+        return stale.equals(handle) ? prepare() : handle;
+    }
+
+    private Map<String, Object> request(Number handle, Map params, Map opts) {
+        final Map<String, Object> requestData = map(HANDLE, handle, STATS, false, PARAMS, params);
+        if (opts != null) requestData.putAll(opts);
+        return requestData;
+    }
+
+    private static boolean isUnknownHandle(List<Object> result) {
+        if (result.isEmpty() || !(result.get(result.size() - 1) instanceof Map)) return false;
+        final Object error = ((Map) result.get(result.size() - 1)).get("error");
+        return error instanceof String && ((String) error).startsWith(StatementHandles.UNKNOWN_HANDLE);
+    }
+
+    public Number getHandle() {
+        return handle;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+}
@@ -0,0 +1,21 @@
+package de.jexp.zmq;
+
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * The server reported an error in the footer of a response, the footer with the remote stack trace is kept as info.
+ */
+public class RemoteCypherException extends RuntimeException {
+    private final Map<String, Object> info;
+
+    public RemoteCypherException(Map<String, Object> info) {
+        super(String.valueOf(info.get("error")));
+        this.info = info;
+    }
+
+    public Map<String, Object> getInfo() {
+        return info;
+    }
+}
@@ -0,0 +1,182 @@
+package de.jexp.zmq;
+
+import de.jexp.msgpack.MessagePackReader;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Decodes requests straight from the received frame with a {@link MessagePackReader} instead of unpacking a generic object graph.
+ * The envelope keys are matched against the known ones without decoding them, query texts are looked up in a small cache
+ * by their bytes so repeated queries are neither decoded nor allocated again (and hit Cypher's plan cache by identity).
+ * Lists of params that only hold integers or only floats become {@code long[]} or {@code double[]}, other numbers are Long or Double.
+ * One instance per worker thread, not thread safe.
+ */
+public class RequestDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] KEYS = {QUERY, PARAMS, TX, TX_ID, STATS, NO_RESULTS, REQUEST_ID, DEDUP, BATCH, STATEMENTS, PREPARE,
+            HANDLE, FETCH, CURSOR_ID, CLOSE, CACHE, READ, SERVER_STATS, TX_TIMEOUT, COMPRESS, DICTIONARY, IDS_ONLY, PROPS, NO_PATHS_BODIES};
+    private static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+    static {
+        for (int i = 0; i < KEYS.length; i++) KEY_BYTES[i] = KEYS[i].getBytes(UTF8);
+    }
+    // power of two
+    private static final int QUERY_CACHE_SIZE = 1024;
+
+    private final MessagePackReader reader = new MessagePackReader();
+    private final byte[][] queryBytes = new byte[QUERY_CACHE_SIZE][];
+    private final String[] queries = new String[QUERY_CACHE_SIZE];
+
+    /**
+     * @return a map for a request map, the query text for a plain string request or the decoded value
+     * @throws IllegalArgumentException for malformed MessagePack
+     */
+    public Object decode(byte[] request) {
+        reader.reset(request);
+        if (reader.isMap()) return readRequest();
+        if (reader.isRaw()) return readQuery();
+        return readValue(false);
+    }
+
+    private Map<String, Object> readRequest() {
+        final int entries = count(reader.readMapHeader());
+        final Map<String, Object> request = new HashMap<String, Object>(entries * 2);
+        for (int i = 0; i < entries; i++) {
+            final String key = readKey();
+            final Object value;
+            if ((QUERY.equals(key) || PREPARE.equals(key)) && reader.isRaw()) {
+                value = readQuery();
+            } else if (PARAMS.equals(key)) {
+                value = readValue(true);
+            } else if (STATEMENTS.equals(key) && reader.isArray()) {
+                value = readStatements();
+            } else {
+                value = readValue(false);
+            }
+            request.put(key, value);
+        }
+        return request;
+    }
+
+    private List<Object> readStatements() {
+        final int size = count(reader.readArrayHeader());
+        final List<Object> statements = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+            statements.add(reader.isMap() ? readRequest() : readValue(false));
+        }
+        return statements;
+    }
+
+    private String readKey() {
+        if (!reader.isRaw()) return String.valueOf(readValue(false));
+        final int start = reader.position();
+        final int index = reader.readRawMatch(KEY_BYTES);
+        if (index >= 0) return KEYS[index];
+        reader.position(start);
+        return reader.readString();
+    }
+
+    private String readQuery() {
+        final int length = reader.readRawHeader();
+        final byte[] buffer = reader.buffer();
+        final int offset = reader.position();
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (QUERY_CACHE_SIZE - 1);
+        reader.skipBytes(length);
+        final byte[] cached = queryBytes[slot];
+        if (cached != null && equals(cached, buffer, offset, length)) return queries[slot];
+        final byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        final String query = new String(bytes, UTF8);
+        queryBytes[slot] = bytes;
+        queries[slot] = query;
+        return query;
+    }
+
+    private static boolean equals(byte[] cached, byte[] buffer, int offset, int length) {
+        if (cached.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (cached[i] != buffer[offset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param arrays true to decode homogeneous numeric lists as primitive arrays
+     */
+    private Object readValue(boolean arrays) {
+        if (reader.isNil()) {
+            reader.skipValue();
+            return null;
+        }
+        if (reader.isBoolean()) return reader.readBoolean();
+        if (reader.isInteger()) return reader.readLong();
+        if (reader.isFloat()) return reader.readDouble();
+        if (reader.isRaw()) return reader.readString();
+        if (reader.isArray()) return readList(arrays);
+        if (reader.isMap()) return readMap(arrays);
+        throw new IllegalArgumentException("Unsupported MessagePack value at " + reader.position());
+    }
+
+    private Object readList(boolean arrays) {
+        final int size = count(reader.readArrayHeader());
+        if (arrays && size > 0) {
+            final int start = reader.position();
+            final Object array = reader.isInteger() ? readLongs(size) : reader.isFloat() ? readDoubles(size) : null;
+            if (array != null) return array;
+            // mixed list, decode the elements one by one
+            reader.position(start);
+        }
+        final List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readValue(arrays));
+        }
+        return list;
+    }
+
+    /**
+     * every element takes at least one byte, larger counts are malformed and must not allocate
+     */
+    private int count(int elements) {
+        if (elements < 0 || elements > reader.remaining()) throw new IllegalArgumentException("Count of " + elements + " exceeds the MessagePack input at " + reader.position());
+        return elements;
+    }
+
+    private long[] readLongs(int size) {
+        final long[] values = new long[size];
+        for (int i = 0; i < size; i++) {
+            if (!reader.isInteger()) return null;
+            values[i] = reader.readLong();
+        }
+        return values;
+    }
+
+    private double[] readDoubles(int size) {
+        final double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            if (!reader.isFloat()) return null;
+            values[i] = reader.readDouble();
+        }
+        return values;
+    }
+
+    private Map<String, Object> readMap(boolean arrays) {
+        final int entries = count(reader.readMapHeader());
+        final Map<String, Object> map = new HashMap<String, Object>(entries * 2);
+        for (int i = 0; i < entries; i++) {
+            final String key = reader.isRaw() ? reader.readString() : String.valueOf(readValue(false));
+            map.put(key, readValue(arrays));
+        }
+        return map;
+    }
+}
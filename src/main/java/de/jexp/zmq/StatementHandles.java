@@ -0,0 +1,47 @@
+package de.jexp.zmq;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Bounded table of prepared statements shared by all worker threads, maps numeric handles to the query text.
+ * The least recently used statements are evicted, handles are never reused so a stale handle can't run the wrong query.
+ * Executing via the handle passes the same String instance to the engine each time, so its hash is cached for the plan cache lookup.
+ */
+public class StatementHandles {
+    public static final String UNKNOWN_HANDLE = "Unknown or evicted statement handle ";
+
+    private final Map<Long, String> statements;
+    private long handles = 0;
+
+    public StatementHandles(final int capacity) {
+        statements = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized long prepare(String query) {
+        if (query == null) throw new IllegalArgumentException("Can't prepare statement without query");
+        final long handle = ++handles;
+        statements.put(handle, query);
+        return handle;
+    }
+
+    /**
+     * @throws IllegalArgumentException for unknown or evicted handles, clients should prepare the query again
+     */
+    public synchronized String get(long handle) {
+        final String query = statements.get(handle);
+        if (query == null) throw new IllegalArgumentException(UNKNOWN_HANDLE + handle + ", prepare the query again");
+        return query;
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+}
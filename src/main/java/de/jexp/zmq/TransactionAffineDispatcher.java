@@ -0,0 +1,360 @@
+package de.jexp.zmq;
+
+import de.jexp.msgpack.MessagePackReader;
+import de.jexp.transaction.TransactionRegistry;
+import de.jexp.util.QueryClassifier;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import zmq.ZError;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ * Load balancing broker between the external ROUTER and the worker threads (REQ sockets with identities on a backend ROUTER).
+ * Requests with a tx_id are always handed to the worker whose {@link TransactionRegistry} owns the transaction
+ * (and queued while it is busy), fetches of a cursor_id to the worker holding the cursor (ids are striped the same way),
+ * all other requests go to the least recently used idle worker of their pool.
+ * Workers {@code 0..writeWorkers-1} form the write pool, the following ones the read pool which only takes read-only requests,
+ * classified by an explicit {@code "read"} flag or by the {@link QueryClassifier}.
+ * With read priority write workers take pending reads before pending writes (and idle write workers reads the read pool can't take).
+ * A commit or rollback without statement is the exception, if the owner is busy with a request of another transaction
+ * it is handed to another idle worker, which ends the suspended transaction through the owner's registry.
+ * Otherwise an owner blocked on a lock of its own suspended transaction (e.g. by an auto-commit write) could never take the commit
+ * that releases the lock. Statements of a transaction still wait for its owner, such a deadlock is ended by the transaction timeout.
+ * Fetches only carry the cursor_id, so the transactions cursors were opened in are remembered, while the owner serves a cursor
+ * the commit or rollback of such a transaction waits for it, as the cursor might be reading in that transaction.
+ * The routing envelope of a client is usually its identity, bridged transports add a frame with their connection,
+ * the workers return the whole envelope with the reply.
+ */
+public class TransactionAffineDispatcher implements Runnable {
+    public static final byte[] READY = "READY".getBytes();
+    private static final byte[] EMPTY = new byte[0];
+    private static final int TX_ID_KEY = 0, CURSOR_ID_KEY = 1, READ_KEY = 2, QUERY_KEY = 3, TX_KEY = 4, HANDLE_KEY = 5, STATEMENTS_KEY = 6,
+            FETCH_KEY = 7;
+    private static final byte[][] KEYS = {CypherServer.TX_ID.getBytes(), CypherServer.CURSOR_ID.getBytes(),
+            CypherServer.READ.getBytes(), CypherServer.QUERY.getBytes(), CypherServer.TX.getBytes(),
+            CypherServer.HANDLE.getBytes(), CypherServer.STATEMENTS.getBytes(), CypherServer.FETCH.getBytes()};
+    private static final int REMEMBERED_CURSOR_TRANSACTIONS = 10000;
+    private static final byte[][] END_MODES = {"commit".getBytes(), "rollback".getBytes()};
+
+    private final ZMQ.Socket frontend;
+    private final ZMQ.Socket backend;
+    private final StringLogger logger;
+    private final int workers;
+    private final int writeWorkers;
+    private final boolean readPriority;
+    private final boolean classify;
+    private final boolean[] busy;
+    private final Deque<Integer> idleWriters;
+    private final Deque<Integer> idleReaders;
+    private final Deque<Request>[] pinned;
+    private final byte[][] workerIds;
+    // tx_id and cursor_id of the request each worker is busy with, -1 for none
+    private final long[] servingTx;
+    private final long[] servingCursor;
+    // transactions cursors were opened in, until they end (or are forgotten if they were reaped)
+    private final Set<Long> cursorTransactions = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > REMEMBERED_CURSOR_TRANSACTIONS;
+        }
+    });
+    private final Deque<Request> pendingWrites = new ArrayDeque<Request>();
+    private final Deque<Request> pendingReads = new ArrayDeque<Request>();
+    private final MessagePackReader reader = new MessagePackReader();
+
+    // results of inspect()
+    private long routingId;
+    private long txId;
+    private long cursorId;
+    private boolean read;
+    private boolean end;
+    private boolean endOnly;
+    private boolean opensCursor;
+
+    private static class Request {
+        final byte[][] client;
+        final byte[] data;
+        final long txId;
+        final long cursorId;
+        final boolean end;
+        final boolean opensCursor;
+        final long received = System.nanoTime();
+
+        Request(byte[][] client, byte[] data, long txId, long cursorId, boolean end, boolean opensCursor) {
+            this.client = client;
+            this.data = data;
+            this.txId = txId;
+            this.cursorId = cursorId;
+            this.end = end;
+            this.opensCursor = opensCursor;
+        }
+    }
+
+    public TransactionAffineDispatcher(ZMQ.Socket frontend, ZMQ.Socket backend, int workers, StringLogger logger) {
+        this(frontend, backend, workers, 0, false, logger);
+    }
+
+    @SuppressWarnings("unchecked")
+    public TransactionAffineDispatcher(ZMQ.Socket frontend, ZMQ.Socket backend, int writeWorkers, int readWorkers, boolean readPriority, StringLogger logger) {
+        this.frontend = frontend;
+        this.backend = backend;
+        this.writeWorkers = writeWorkers;
+        this.workers = writeWorkers + readWorkers;
+        this.readPriority = readPriority;
+        // without read pool and priority all requests are handled alike
+        this.classify = readWorkers > 0 || readPriority;
+        this.logger = logger;
+        this.busy = new boolean[workers];
+        this.idleWriters = new ArrayDeque<Integer>(writeWorkers);
+        this.idleReaders = new ArrayDeque<Integer>(Math.max(readWorkers, 1));
+        this.pinned = new Deque[workers];
+        this.workerIds = new byte[workers][];
+        this.servingTx = new long[workers];
+        this.servingCursor = new long[workers];
+        for (int i = 0; i < workers; i++) {
+            workerIds[i] = workerId(i);
+            busy[i] = true; // until the worker reported READY
+            servingTx[i] = -1;
+            servingCursor[i] = -1;
+            pinned[i] = new ArrayDeque<Request>();
+        }
+    }
+
+    public static byte[] workerId(int worker) {
+        return new byte[]{'w', (byte) worker};
+    }
+
+    private static int workerIndex(byte[] workerId) {
+        return workerId[1];
+    }
+
+    private boolean isReader(int worker) {
+        return worker >= writeWorkers;
+    }
+
+    @Override
+    public void run() {
+        final ZMQ.Poller poller = new ZMQ.Poller(2);
+        poller.register(frontend, ZMQ.Poller.POLLIN);
+        poller.register(backend, ZMQ.Poller.POLLIN);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (poller.poll() < 0) break;
+                if (poller.pollin(1)) fromWorker();
+                if (poller.pollin(0)) fromClient();
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) logger.warn("Error in Cypher Remoting dispatcher", e);
+        } catch (ZError.CtxTerminatedException e) {
+            // shutdown
+        }
+    }
+
+    private void fromWorker() {
+        final int worker = workerIndex(backend.recv(0));
+        backend.recv(0);
+        final byte[] first = backend.recv(0);
+        if (backend.hasReceiveMore()) {
+            for (byte[] frame : readEnvelope(first, backend)) frontend.sendMore(frame);
+            frontend.sendMore(EMPTY);
+            boolean more;
+            do {
+                final byte[] frame = backend.recv(0);
+                more = backend.hasReceiveMore();
+                frontend.send(frame, more ? ZMQ.SNDMORE : 0);
+            } while (more);
+        }
+        // either a READY message or a completed reply
+        next(worker);
+    }
+
+    private void fromClient() {
+        final byte[][] client = readEnvelope(frontend.recv(0), frontend);
+        final byte[] data = frontend.recv(0);
+        while (frontend.hasReceiveMore()) frontend.recv(0);
+        inspect(data);
+        final Request request = new Request(client, data, txId, cursorId, end, opensCursor);
+
+        if (routingId >= 0) {
+            final int worker = TransactionRegistry.ownerOf(routingId, workers);
+            if (busy[worker] && endOnly && !isPinned(worker, txId)) {
+                // the owner might be blocked on a lock of this transaction, any idle worker can end it
+                if (!idleWriters.isEmpty()) send(idleWriters.poll(), request);
+                else if (!idleReaders.isEmpty()) send(idleReaders.poll(), request);
+                else pendingWrites.add(request);
+            } else if (busy[worker]) {
+                pinned[worker].add(request);
+            } else {
+                (isReader(worker) ? idleReaders : idleWriters).remove(Integer.valueOf(worker));
+                send(worker, request);
+            }
+        } else if (read) {
+            if (!idleReaders.isEmpty()) send(idleReaders.poll(), request);
+            else if (readPriority && !idleWriters.isEmpty()) send(idleWriters.poll(), request);
+            else pendingReads.add(request);
+        } else if (idleWriters.isEmpty()) {
+            pendingWrites.add(request);
+        } else {
+            send(idleWriters.poll(), request);
+        }
+    }
+
+    /**
+     * @return true if the worker is busy with or has queued requests of the transaction or (possibly) of one of its cursors
+     */
+    private boolean isPinned(int worker, long txId) {
+        final boolean hasCursors = cursorTransactions.contains(txId);
+        if (servingTx[worker] == txId || hasCursors && servingCursor[worker] >= 0) return true;
+        for (Request request : pinned[worker]) {
+            if (request.txId == txId || hasCursors && request.cursorId >= 0) return true;
+        }
+        return false;
+    }
+
+    private void next(int worker) {
+        final Deque<Request> pending = pendingFor(worker);
+        if (!pinned[worker].isEmpty()) {
+            send(worker, pinned[worker].poll());
+        } else if (pending != null) {
+            send(worker, pending.poll());
+        } else {
+            busy[worker] = false;
+            servingTx[worker] = -1;
+            servingCursor[worker] = -1;
+            (isReader(worker) ? idleReaders : idleWriters).add(worker);
+        }
+    }
+
+    /**
+     * @return the queue the worker takes its next request from or null if there is none
+     */
+    private Deque<Request> pendingFor(int worker) {
+        if (isReader(worker)) return pendingReads.isEmpty() ? null : pendingReads;
+        if (readPriority && !pendingReads.isEmpty()) return pendingReads;
+        return pendingWrites.isEmpty() ? null : pendingWrites;
+    }
+
+    private void send(int worker, Request request) {
+        busy[worker] = true;
+        servingTx[worker] = request.txId;
+        servingCursor[worker] = request.cursorId;
+        if (request.txId >= 0) {
+            if (request.end) cursorTransactions.remove(request.txId);
+            else if (request.opensCursor) cursorTransactions.add(request.txId);
+        }
+        backend.sendMore(workerIds[worker]);
+        backend.sendMore(EMPTY);
+        for (byte[] frame : request.client) backend.sendMore(frame);
+        backend.sendMore(EMPTY);
+        backend.sendMore(request.data);
+        // lets the worker measure the time the request was queued
+        backend.send(timestamp(request.received), 0);
+    }
+
+    /**
+     * reads the routing frames up to and including the empty delimiter
+     * @param first the first frame of the message
+     */
+    public static byte[][] readEnvelope(byte[] first, ZMQ.Socket socket) {
+        byte[] frame = socket.recv(0);
+        if (frame.length == 0) return new byte[][]{first};
+        final List<byte[]> envelope = new ArrayList<byte[]>(3);
+        envelope.add(first);
+        do {
+            envelope.add(frame);
+            frame = socket.recv(0);
+        } while (frame.length > 0);
+        return envelope.toArray(new byte[envelope.size()][]);
+    }
+
+    private static byte[] timestamp(long nanos) {
+        final byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) nanos;
+            nanos >>>= 8;
+        }
+        return bytes;
+    }
+
+    public static long readTimestamp(byte[] bytes) {
+        long nanos = 0;
+        for (byte b : bytes) nanos = (nanos << 8) | (b & 0xff);
+        return nanos;
+    }
+
+    /**
+     * sets the tx_id and cursor_id of the request (or -1) and the one it is routed by, if it is read-only, opens a cursor
+     * and if it (only) commits or rolls back,
+     * reads only the top level keys of the request map and scans the query bytes without decoding them
+     */
+    private void inspect(byte[] data) {
+        routingId = -1;
+        txId = -1;
+        cursorId = -1;
+        read = false;
+        end = false;
+        endOnly = false;
+        opensCursor = false;
+        try {
+            reader.reset(data);
+            if (reader.isRaw()) {
+                read = classify && isReadOnlyQuery();
+                return;
+            }
+            if (!reader.isMap()) return;
+            Boolean explicitRead = null;
+            boolean readOnlyQuery = false;
+            boolean statement = false;
+            final int entries = reader.readMapHeader();
+            for (int i = 0; i < entries; i++) {
+                final int key = reader.isRaw() ? reader.readRawMatch(KEYS) : skipKey();
+                if (key == TX_ID_KEY && reader.isInteger()) {
+                    txId = reader.readLong();
+                } else if (key == CURSOR_ID_KEY && reader.isInteger()) {
+                    cursorId = reader.readLong();
+                } else if (key == FETCH_KEY && reader.isInteger()) {
+                    opensCursor = reader.readLong() > 0;
+                } else if (key == READ_KEY && reader.isBoolean()) {
+                    explicitRead = reader.readBoolean();
+                } else if (classify && key == QUERY_KEY && reader.isRaw()) {
+                    statement = true;
+                    readOnlyQuery = isReadOnlyQuery();
+                } else if (key == TX_KEY && reader.isRaw()) {
+                    end = reader.readRawMatch(END_MODES) >= 0;
+                } else {
+                    if ((key == QUERY_KEY || key == HANDLE_KEY || key == STATEMENTS_KEY) && !reader.isNil()) statement = true;
+                    reader.skipValue();
+                }
+            }
+            // a fetch is served by the worker holding the cursor, which is the owner of the transaction it was opened in
+            routingId = cursorId >= 0 ? cursorId : txId;
+            opensCursor = opensCursor && cursorId < 0;
+            read = classify && (explicitRead != null ? explicitRead : readOnlyQuery);
+            endOnly = end && !statement;
+        } catch (IllegalArgumentException e) {
+            // malformed requests are reported by the worker
+        }
+    }
+
+    private int skipKey() {
+        reader.skipValue();
+        return -1;
+    }
+
+    private boolean isReadOnlyQuery() {
+        final int length = reader.readRawHeader();
+        final boolean readOnly = QueryClassifier.isReadOnly(reader.buffer(), reader.position(), length);
+        reader.skipBytes(length);
+        return readOnly;
+    }
+}
@@ -0,0 +1,66 @@
+package de.jexp.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class ResultCacheTest {
+
+    private static List<byte[]> frames(int... sizes) {
+        final byte[][] frames = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) frames[i] = new byte[sizes[i]];
+        return Arrays.asList(frames);
+    }
+
+    @Test
+    public void testKeyIncludesParamsAndFlags() throws Exception {
+        final ResultCache cache = new ResultCache(10, 1000);
+        cache.put(ResultCache.key("return {a}", map("a", 1), true), frames(10), 1, cache.generation());
+        assertNotNull(cache.get(ResultCache.key("return {a}", map("a", 1), true)));
+        assertNull(cache.get(ResultCache.key("return {a}", map("a", 2), true)));
+        assertNull(cache.get(ResultCache.key("return {a}", map("a", 1), false)));
+        assertNull(cache.get(ResultCache.key("return {a}", Collections.emptyMap(), true)));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByEntriesAndBytes() throws Exception {
+        final ResultCache cache = new ResultCache(2, 100);
+        cache.put("a", frames(10, 10), 1, 0);
+        cache.put("b", frames(10), 1, 0);
+        cache.get("a");
+        cache.put("c", frames(10), 1, 0);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        cache.put("d", frames(90), 1, 0);
+        assertEquals(1, cache.size());
+        assertEquals(90, cache.bytes());
+        assertFalse(cache.put("e", frames(101), 1, 0));
+
+        final Map<String, Object> info = map();
+        cache.addStats(info);
+        assertEquals(3L, info.get("cache_evictions"));
+        assertEquals(2L, info.get("cache_hits"));
+        assertEquals(1L, info.get("cache_misses"));
+    }
+
+    @Test
+    public void testResultsComputedBeforeInvalidationAreNotStored() throws Exception {
+        final ResultCache cache = new ResultCache(10, 1000);
+        final long generation = cache.generation();
+        cache.put("a", frames(10), 1, generation);
+        cache.invalidate();
+        assertNull(cache.get("a"));
+        assertFalse(cache.put("b", frames(10), 1, generation));
+        assertTrue(cache.put("b", frames(10), 1, cache.generation()));
+    }
+}
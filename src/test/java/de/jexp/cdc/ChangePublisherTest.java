@@ -0,0 +1,160 @@
+package de.jexp.cdc;
+
+import net.asdfa.msgpack.MsgPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.zeromq.ZMQ;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.cdc.TransactionChanges.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_cdc_address;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class ChangePublisherTest {
+    private GraphDatabaseService db;
+    private ExecutionEngine engine;
+    private ZMQ.Context context;
+    private ZMQ.Socket subscriber;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15564")
+                .setConfig(cypher_remoting_cdc_address, ":15563").newGraphDatabase();
+        engine = new ExecutionEngine(db);
+        context = ZMQ.context(1);
+        subscriber = context.socket(ZMQ.SUB);
+        subscriber.setLinger(0);
+        subscriber.setReceiveTimeOut(5000);
+        subscriber.subscribe(nodeTopic("Person").getBytes());
+        subscriber.subscribe(nodeTopic("").getBytes());
+        subscriber.subscribe(REL_TOPIC.getBytes());
+        subscriber.connect("tcp://localhost:15563");
+        // lets the subscriptions arrive before the first change
+        Thread.sleep(200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        subscriber.close();
+        context.term();
+        db.shutdown();
+    }
+
+    private void execute(String query) {
+        // results are lazy, the transaction commits when they are consumed
+        engine.execute(query).dumpToString();
+    }
+
+    private Map receive(String topic) {
+        return receive(subscriber, topic);
+    }
+
+    private static Map receive(ZMQ.Socket subscriber, String topic) {
+        assertEquals(topic, new String(subscriber.recv(0)));
+        return (Map) MsgPack.unpack(subscriber.recv(0), MsgPack.UNPACK_RAW_AS_STRING);
+    }
+
+    private static List changes(Map message, String kind) {
+        return (List) message.get(kind);
+    }
+
+    private static Map change(Map message, String kind, int index) {
+        return (Map) changes(message, kind).get(index);
+    }
+
+    @Test
+    public void testPublishesChangesByTopic() throws Exception {
+        execute("create (a:Person {name:'a'})-[:KNOWS {since:2020}]->(b:Person:Admin {name:'b', tags:['x','y']}), (c:Other {name:'c'})");
+        final Map people = receive("node:Person;");
+        assertEquals(2, changes(people, CREATED_NODES).size());
+        final Map a = change(people, CREATED_NODES, 0);
+        final Map b = change(people, CREATED_NODES, 1);
+        assertEquals("a", ((Map) a.get("props")).get("name"));
+        assertEquals(Arrays.asList("x", "y"), ((Map) b.get("props")).get("tags"));
+        assertEquals(Arrays.asList("Person", "Admin"), b.get("labels"));
+        final Map knows = receive("rel:KNOWS;");
+        final Map rel = change(knows, CREATED_RELS, 0);
+        assertEquals("KNOWS", rel.get("type"));
+        assertEquals(a.get("id"), rel.get("start"));
+        assertEquals(2020, ((Map) rel.get("props")).get("since"));
+        assertEquals(people.get("tx"), knows.get("tx"));
+
+        // the node:Other; and node:PersonAddress; messages were filtered by the socket
+        execute("create (:PersonAddress {city:'x'})");
+        execute("match (a:Person {name:'a'}) set a.age = 42 remove a.name");
+        final Map update = receive("node:Person;");
+        assertTrue(((Number) update.get("tx")).longValue() > ((Number) people.get("tx")).longValue() + 1);
+        final Map updated = change(update, UPDATED_NODES, 0);
+        assertEquals(a.get("id"), updated.get("id"));
+        assertEquals(42, ((Map) updated.get("set")).get("age"));
+        assertEquals(Arrays.asList("name"), updated.get("removed"));
+    }
+
+    @Test
+    public void testPublishesDeletions() throws Exception {
+        execute("create (a:Person {name:'a'})-[:KNOWS]->(b:Person {name:'b'})");
+        final Map created = receive("node:Person;");
+        receive("rel:KNOWS;");
+        execute("match (a:Person {name:'a'})-[r:KNOWS]->() delete r");
+        assertEquals(1, changes(receive("rel:KNOWS;"), DELETED_RELS).size());
+
+        // the labels of deleted nodes can't be read, they are published without
+        execute("match (b:Person {name:'b'}) delete b");
+        assertEquals(Arrays.asList(change(created, CREATED_NODES, 1).get("id")), changes(receive("node:;"), DELETED_NODES));
+    }
+
+    @Test
+    public void testPublishesDroppedTransactions() throws Exception {
+        final ZMQ.Socket pub = context.socket(ZMQ.PUB);
+        pub.bind("tcp://*:15566");
+        final ZMQ.Socket dropped = context.socket(ZMQ.SUB);
+        dropped.setLinger(0);
+        dropped.setReceiveTimeOut(5000);
+        dropped.subscribe(ChangePublisher.DROPPED);
+        dropped.subscribe(nodeTopic("").getBytes());
+        dropped.connect("tcp://localhost:15566");
+        Thread.sleep(200);
+        final ChangePublisher publisher = new ChangePublisher(pub, 1, StringLogger.DEV_NULL);
+        db.registerTransactionEventHandler(publisher);
+        // the first transaction waits in the buffer, the next two are dropped
+        for (int i = 0; i < 3; i++) execute("create ()");
+        final Thread thread = new Thread(publisher);
+        thread.start();
+        try {
+            final Map report = receive(dropped, "dropped;");
+            assertEquals(2, ((Number) report.get("dropped")).intValue());
+            assertEquals(1, ((Number) report.get("before_tx")).intValue());
+            assertEquals(1, ((Number) receive(dropped, "node:;").get("tx")).intValue());
+        } finally {
+            db.unregisterTransactionEventHandler(publisher);
+            publisher.stop();
+            thread.join(5000);
+            dropped.close();
+        }
+    }
+
+    @Test
+    public void testDropsChangesWhenBufferIsFull() throws Exception {
+        // never started, so nothing is taken from the buffer
+        final ChangePublisher publisher = new ChangePublisher(null, 1, StringLogger.DEV_NULL);
+        db.registerTransactionEventHandler(publisher);
+        execute("match (n) return count(*)");
+        for (int i = 0; i < 3; i++) execute("create ()");
+        db.unregisterTransactionEventHandler(publisher);
+        assertEquals(2, publisher.getDropped());
+    }
+}
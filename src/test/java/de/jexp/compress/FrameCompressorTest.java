@@ -0,0 +1,71 @@
+package de.jexp.compress;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class FrameCompressorTest {
+
+    private static byte[] roundTrip(Lz4Block lz4, byte[] data) {
+        final byte[] compressed = new byte[Lz4Block.maxCompressedLength(data.length)];
+        final int length = lz4.compress(data, 0, data.length, compressed, 0);
+        final byte[] result = new byte[data.length];
+        Lz4Block.decompress(compressed, 0, length, result, 0, data.length);
+        assertArrayEquals(data, result);
+        return Arrays.copyOf(compressed, length);
+    }
+
+    @Test
+    public void testLz4RoundTrip() throws Exception {
+        final Lz4Block lz4 = new Lz4Block();
+        final Random random = new Random(42);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) text.append("{\"name\":\"Person ").append(random.nextInt(100)).append("\",\"city\":\"Berlin\"}");
+        final byte[] repetitive = text.toString().getBytes("UTF-8");
+        assertTrue(roundTrip(lz4, repetitive).length < repetitive.length / 4);
+
+        final byte[] noise = new byte[100000];
+        random.nextBytes(noise);
+        assertTrue(roundTrip(lz4, noise).length <= Lz4Block.maxCompressedLength(noise.length));
+
+        // long runs need extra length bytes for literals and matches
+        final byte[] runs = new byte[70000];
+        System.arraycopy(noise, 0, runs, 0, 1000);
+        roundTrip(lz4, runs);
+        for (int length = 0; length < 40; length++) roundTrip(lz4, Arrays.copyOf(repetitive, length));
+    }
+
+    @Test
+    public void testFlaggedFrames() throws Exception {
+        final FrameCompressor compressor = new FrameCompressor(64);
+        final byte[] small = {(byte) 0x91, 1};
+        final byte[] plain = compressor.encode(small);
+        assertEquals(FrameCompressor.PLAIN, plain[0]);
+        assertArrayEquals(small, FrameCompressor.decode(plain));
+
+        final byte[] large = new byte[1000];
+        Arrays.fill(large, (byte) 0xa1);
+        final byte[] compressed = compressor.encode(large);
+        assertEquals(FrameCompressor.COMPRESSED, compressed[0]);
+        assertTrue(compressed.length < 100);
+        assertArrayEquals(large, FrameCompressor.decode(compressed));
+
+        // frames without flag, e.g. errors before the request was read
+        final byte[] map = {(byte) 0x80};
+        assertArrayEquals(map, FrameCompressor.decode(map));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedInput() throws Exception {
+        Lz4Block.decompress(new byte[]{0x0f, 1, 0}, 0, 3, new byte[100], 0, 100);
+    }
+}
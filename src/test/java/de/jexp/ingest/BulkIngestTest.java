@@ -0,0 +1,142 @@
+package de.jexp.ingest;
+
+import net.asdfa.msgpack.MsgPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class BulkIngestTest {
+    private GraphDatabaseService db;
+    private ZMQ.Context context;
+    private ZMQ.Socket push;
+    private ZMQ.Socket progress;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15562")
+                .setConfig(cypher_remoting_ingest_address, ":15560").setConfig(cypher_remoting_ingest_progress_address, ":15561")
+                .setConfig(cypher_remoting_ingest_batch_size, "1000").setConfig(cypher_remoting_ingest_commit_interval, "200ms").newGraphDatabase();
+        context = ZMQ.context(1);
+        progress = context.socket(ZMQ.SUB);
+        progress.setLinger(0);
+        progress.setReceiveTimeOut(10000);
+        progress.subscribe(new byte[0]);
+        progress.connect("tcp://localhost:15561");
+        push = context.socket(ZMQ.PUSH);
+        push.setLinger(1000);
+        push.connect("tcp://localhost:15560");
+        // lets the subscription arrive before the first report
+        Thread.sleep(200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        push.close();
+        progress.close();
+        context.term();
+        db.shutdown();
+    }
+
+    private long prepare(String query) {
+        final ZMQ.Socket req = context.socket(ZMQ.REQ);
+        req.connect("tcp://localhost:15562");
+        req.send(MsgPack.pack(map(PREPARE, query)), 0);
+        final Map footer = (Map) MsgPack.unpack(req.recv(0), MsgPack.UNPACK_RAW_AS_STRING);
+        req.close();
+        return ((Number) footer.get(HANDLE)).longValue();
+    }
+
+    private void push(Map message) {
+        push.send(MsgPack.pack(message), 0);
+    }
+
+    private long count() {
+        return IteratorUtil.<Long>single(new ExecutionEngine(db).execute("match (n) return count(*) as c").<Long>columnAs("c"));
+    }
+
+    @Test
+    public void testIngestInBatchesSkippingFailures() throws Exception {
+        final long handle = prepare("create (n:Person {name:{name}, share: 100 / {divisor}})");
+        for (int i = 0; i < 2500; i++) {
+            push(map(HANDLE, handle, PARAMS, map("name", "person " + i, "divisor", i == 1234 ? 0 : 1), BulkIngest.ID, i));
+        }
+        push(map(BulkIngest.FLUSH, true));
+
+        final List<Map> errors = new ArrayList<Map>();
+        final List<Map> reports = new ArrayList<Map>();
+        Map report;
+        do {
+            final byte[] topic = progress.recv(0);
+            report = (Map) MsgPack.unpack(progress.recv(0), MsgPack.UNPACK_RAW_AS_STRING);
+            (new String(topic).equals("error") ? errors : reports).add(report);
+        } while (!Boolean.TRUE.equals(report.get(BulkIngest.FLUSH)));
+
+        assertEquals(1, errors.size());
+        assertEquals(1235, ((Number) errors.get(0).get("row")).intValue());
+        assertEquals(1234, ((Number) errors.get(0).get(BulkIngest.ID)).intValue());
+        assertEquals(2500L, ((Number) report.get("received")).longValue());
+        assertEquals(2499L, ((Number) report.get("committed")).longValue());
+        assertEquals(1L, ((Number) report.get("failed")).longValue());
+        // committed in batches
+        assertTrue(reports.size() >= 3);
+        for (Map batch : reports) assertTrue(((Number) batch.get("batch")).intValue() <= 1000);
+        assertEquals(2499, count());
+    }
+
+    @Test
+    public void testManyFailuresInABatch() throws Exception {
+        final long handle = prepare("create (n:Person {name:{name}, share: 100 / {divisor}})");
+        // every tenth message fails, the first one in an empty batch
+        for (int i = 0; i < 2000; i++) {
+            push(map(HANDLE, handle, PARAMS, map("name", "person " + i, "divisor", i % 10 == 0 ? 0 : 1), BulkIngest.ID, i));
+        }
+        push(map(BulkIngest.FLUSH, true));
+
+        int errors = 0;
+        int checkpoints = 0;
+        Map report;
+        do {
+            final byte[] topic = progress.recv(0);
+            report = (Map) MsgPack.unpack(progress.recv(0), MsgPack.UNPACK_RAW_AS_STRING);
+            if (new String(topic).equals("error")) errors++;
+            else if (!Boolean.TRUE.equals(report.get(BulkIngest.FLUSH)) && ((Number) report.get("batch")).intValue() == 9) checkpoints++;
+        } while (!Boolean.TRUE.equals(report.get(BulkIngest.FLUSH)));
+
+        assertEquals(200, errors);
+        // the messages before each failure are committed instead of being replayed again for the next one
+        assertEquals(199, checkpoints);
+        assertEquals(1800L, ((Number) report.get("committed")).longValue());
+        assertEquals(200L, ((Number) report.get("failed")).longValue());
+        assertEquals(1800, count());
+    }
+
+    @Test
+    public void testCommitsPeriodically() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            push(map(QUERY, "create (n {name:{name}})", PARAMS, map("name", "node " + i)));
+        }
+        // far less than a batch, committed after the commit interval
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (count() < 10 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(10, count());
+    }
+}
@@ -0,0 +1,87 @@
+package de.jexp.load;
+
+import de.jexp.stats.LatencyHistogram;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class LoadGeneratorTest {
+
+    private static final List<String> WORKLOAD = Arrays.asList(
+            "# comment",
+            "{\"setup\": true, \"query\": \"foreach (i in range(0,99) | create (:Person {id:i}))\"}",
+            "{\"name\": \"lookup\", \"weight\": 3, \"query\": \"match (p:Person {id:{id}}) return p\", \"params\": {\"id\": {\"$random\": 100}}}",
+            "{\"name\": \"create\", \"weight\": 1, \"query\": \"create (:Person {id:{id}})\", \"params\": {\"id\": \"$seq\"}, \"no_results\": true}",
+            "{\"name\": \"script\", \"weight\": 1, \"script\": [{\"query\": \"create (:Person {id:-1})\"}, {\"query\": \"match (p:Person {id:-1}) return count(*)\"}]}",
+            "{\"name\": \"failing\", \"weight\": 1, \"query\": \"match (p:Person return p\"}");
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_threads, "2").newGraphDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testWeightedPickAndGeneratedValues() throws Exception {
+        final Workload workload = Workload.parse(WORKLOAD);
+        assertEquals(1, workload.getSetup().size());
+        assertEquals(4, workload.getEntries().size());
+        final Random random = new Random(1);
+        int lookups = 0;
+        for (int i = 0; i < 6000; i++) {
+            if (workload.pick(random).getName().equals("lookup")) lookups++;
+        }
+        assertTrue(String.valueOf(lookups), lookups > 2700 && lookups < 3300);
+
+        final Workload.Entry create = workload.getEntries().get(1);
+        assertEquals(1L, ((Map) workload.request(create, 0, random).get("params")).get("id"));
+        assertEquals(2L, ((Map) workload.request(create, 0, random).get("params")).get("id"));
+        final long id = (Long) ((Map) workload.request(workload.getEntries().get(0), 0, random).get("params")).get("id");
+        assertTrue(id >= 0 && id < 100);
+        assertEquals(2, workload.getEntries().get(2).getSteps());
+    }
+
+    @Test
+    public void testOpenLoopRun() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final LoadGenerator generator = new LoadGenerator("tcp://localhost:5555", Workload.parse(WORKLOAD), 200, 2000, 0, 500,
+                TimeUnit.MILLISECONDS, 42, new PrintStream(output, true));
+        generator.run();
+
+        final Map<String, LatencyHistogram> latencies = generator.getLatencies();
+        assertEquals(400, generator.getCompleted());
+        assertEquals(400, latencies.get("total").getCount());
+        assertEquals(latencies.get("failing").getCount(), generator.getErrors());
+        assertTrue(generator.getErrors() > 0);
+        assertTrue(latencies.get("script").getCount() > 0);
+        assertTrue(output.toString(), output.toString().contains("measured throughput"));
+        final Object persons = IteratorUtil.single(new ExecutionEngine(db).execute("match (p:Person) return count(*) as c").columnAs("c"));
+        assertEquals(100 + latencies.get("create").getCount() + latencies.get("script").getCount(), ((Number) persons).longValue());
+    }
+}
@@ -1,6 +1,8 @@
 package de.jexp.msgpack;
 
 import net.asdfa.msgpack.MsgPack;
+import de.jexp.serialize.PropertyProjection;
+import de.jexp.serialize.ResultOptions;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,9 +11,17 @@ import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.*;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * @author mh
  * @since 20.01.13
@@ -43,7 +53,9 @@ public class CypherResultMessagePackTest {
     public void tearDown() throws Exception {
         if (tx!=null) {
             tx.failure();
+            tx.finish();
         }
+        db.shutdown();
     }
 
     @Test
@@ -62,4 +74,209 @@ public class CypherResultMessagePackTest {
             row++;
         }
     }
+
+    @Test
+    public void testSerializeEntities() throws Exception {
+        ExecutionResult result = executionEngine.execute("start n=node(0) match p=n-[r:KNOWS]->m return n,r,p,length(p) as length limit 1");
+        final ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(result, true, null);
+        assertEquals(Arrays.asList("n", "r", "p", "length"), unpack(packedResult.next()));
+        final List<?> row = (List<?>) unpack(packedResult.next());
+        final Map<?, ?> node = (Map<?, ?>) row.get(0);
+        assertEquals(0, node.get("id"));
+        assertEquals("Name", ((Map) node.get("data")).get("name"));
+        assertEquals(Arrays.asList("foo", "bar"), ((Map) node.get("data")).get("kids"));
+        final Map<?, ?> rel = (Map<?, ?>) row.get(1);
+        assertEquals("KNOWS", rel.get("type"));
+        assertEquals(0, rel.get("start"));
+        assertEquals(1900L, ((Number) ((Map) rel.get("data")).get("since")).longValue());
+        final Map<?, ?> path = (Map<?, ?>) row.get(2);
+        assertEquals(1, path.get("length"));
+        assertEquals(2, ((List) path.get("nodes")).size());
+        assertEquals(rel, ((List) path.get("relationships")).get(0));
+        assertEquals(1, row.get(3));
+        final Map<?, ?> info = (Map<?, ?>) unpack(packedResult.next());
+        assertEquals(1, ((Number) info.get("rows")).intValue());
+        assertEquals(false, packedResult.hasNext());
+    }
+
+    @Test
+    public void testDedupEntities() throws Exception {
+        final String query = "start n=node(0) match p=n-[r:KNOWS]->m return n,p limit 3";
+        final ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(new MessagePackResultSerializer(), new ResultOptions().withDedup(true), executionEngine.execute(query), false, null);
+        packedResult.next();
+        final EntityReferences references = new EntityReferences();
+        final List<?> first = (List<?>) references.resolve(unpack(packedResult.next()));
+        final byte[] secondFrame = packedResult.next();
+        assertEquals(Collections.singletonMap("node", 0), ((List) unpack(secondFrame)).get(0));
+        final List<?> second = (List<?>) references.resolve(unpack(secondFrame));
+        assertEquals(first.get(0), second.get(0));
+        final Map<?, ?> path = (Map<?, ?>) second.get(1);
+        assertEquals(first.get(0), path.get("start"));
+        assertEquals(path.get("end"), ((List) path.get("nodes")).get(1));
+
+        final ExecutionResultMessagePack fullResult = new ExecutionResultMessagePack(executionEngine.execute(query));
+        fullResult.next();
+        fullResult.next();
+        final byte[] fullFrame = fullResult.next();
+        assertEquals(second, unpack(fullFrame));
+        assertTrue(secondFrame.length < fullFrame.length);
+    }
+
+    @Test
+    public void testKeyDictionary() throws Exception {
+        final String query = "start n=node(0) match p=n-[r:KNOWS]->m return n,r,p limit 2";
+        final ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(new MessagePackResultSerializer(), new ResultOptions().withDictionary(true), executionEngine.execute(query), false, null);
+        final ExecutionResultMessagePack fullResult = new ExecutionResultMessagePack(executionEngine.execute(query));
+        final KeyDictionary dictionary = new KeyDictionary();
+        assertEquals(unpack(fullResult.next()), dictionary.decode(unpack(packedResult.next())));
+
+        final byte[] firstFrame = packedResult.next();
+        final Map<?, ?> rel = (Map<?, ?>) ((List) unpack(firstFrame)).get(1);
+        assertEquals(Arrays.asList(8 + 5, "KNOWS"), rel.get(3));
+        final byte[] fullFirstFrame = fullResult.next();
+        assertEquals(unpack(fullFirstFrame), dictionary.decode(unpack(firstFrame)));
+        assertTrue(firstFrame.length < fullFirstFrame.length);
+
+        final byte[] secondFrame = packedResult.next();
+        assertEquals(8 + 5, ((Map) ((List) unpack(secondFrame)).get(1)).get(3));
+        assertEquals(unpack(fullResult.next()), dictionary.decode(unpack(secondFrame)));
+        assertEquals(unpack(fullResult.next()), dictionary.decode(unpack(packedResult.next())));
+    }
+
+    @Test
+    public void testEntityProjections() throws Exception {
+        db.getNodeById(0).addLabel(DynamicLabel.label("Person"));
+        final String query = "start n=node(0) match p=n-[r:KNOWS]->m return n,r,p limit 1";
+
+        List<?> row = firstRow(new ResultOptions().withIdsOnly(true).withNoPathBodies(true), query);
+        assertEquals(Collections.singletonMap("id", 0), row.get(0));
+        assertEquals(4, ((Map) row.get(1)).size());
+        assertEquals("KNOWS", ((Map) row.get(1)).get("type"));
+        final Map<?, ?> path = (Map<?, ?>) row.get(2);
+        assertEquals(3, path.size());
+        assertEquals(row.get(0), path.get("start"));
+
+        row = firstRow(new ResultOptions().withProperties(PropertyProjection.of(Arrays.asList("name", "since", "missing"))), query);
+        assertEquals(Collections.singletonMap("name", "Name"), ((Map) row.get(0)).get("data"));
+        assertEquals(Collections.singletonMap("since", 1900), ((Map) ((Map) row.get(1)).get("data")));
+        assertEquals(1, ((Map) ((Map) row.get(2)).get("end")).size());
+
+        final Map<String, Object> byName = new HashMap<String, Object>();
+        byName.put("Person", Arrays.asList("age"));
+        byName.put("KNOWS", Arrays.asList("weight"));
+        row = firstRow(new ResultOptions().withProperties(PropertyProjection.of(byName)), query);
+        assertEquals(Collections.singletonMap("age", 42), ((Map) row.get(0)).get("data"));
+        assertEquals(Collections.singletonMap("weight", 42D), ((Map) row.get(1)).get("data"));
+
+        byName.put(PropertyProjection.ANY, Collections.emptyList());
+        byName.remove("KNOWS");
+        row = firstRow(new ResultOptions().withProperties(PropertyProjection.of(byName)).withDictionary(true), query);
+        final KeyDictionary dictionary = new KeyDictionary();
+        row = (List<?>) dictionary.decode(row);
+        assertEquals(Collections.singletonMap("age", 42), ((Map) row.get(0)).get("data"));
+        assertEquals(false, ((Map) row.get(1)).containsKey("data"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProjection() throws Exception {
+        PropertyProjection.of(Collections.singletonMap("Person", "name"));
+    }
+
+    private List<?> firstRow(ResultOptions options, String query) {
+        final ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(new MessagePackResultSerializer(), options, executionEngine.execute(query), false, null);
+        packedResult.next();
+        return (List<?>) unpack(packedResult.next());
+    }
+
+    @Test
+    public void testBatchFrames() throws Exception {
+        final String query = "start n=node(0) match n-[r:KNOWS]->m return m";
+        ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(new MessagePackResultSerializer(), new ResultOptions().withBatch(300, 65536), executionEngine.execute(query), true, null);
+        assertEquals(Arrays.asList("m"), unpack(packedResult.next()));
+        for (int rows : new int[]{300, 300, 300, 100}) {
+            final List<?> batch = (List<?>) unpack(packedResult.next());
+            assertEquals(rows, batch.size());
+            assertTrue(((List) batch.get(0)).get(0) instanceof Map);
+        }
+        assertEquals(1000, ((Map) unpack(packedResult.next())).get("rows"));
+        assertEquals(false, packedResult.hasNext());
+
+        packedResult = new ExecutionResultMessagePack(new MessagePackResultSerializer(), new ResultOptions().withBatch(1000, 100), executionEngine.execute(query), false, null);
+        packedResult.next();
+        int rows = 0;
+        while (packedResult.hasNext()) {
+            final byte[] frame = packedResult.next();
+            final int count = ((List) unpack(frame)).size();
+            assertTrue(count < 1000);
+            assertTrue(frame.length < 100 + 20);
+            rows += count;
+        }
+        assertEquals(1000, rows);
+    }
+
+    @Test
+    public void testBatchFramesOfOneRow() throws Exception {
+        final String query = "start n=node(0) match n-[r:KNOWS]->m return m.name as name limit 3";
+        final ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(new MessagePackResultSerializer(), new ResultOptions().withBatch(1, 65536), executionEngine.execute(query), false, null);
+        packedResult.next();
+        int frames = 0;
+        while (packedResult.hasNext()) {
+            // still an array of rows, as the client asked for batches
+            assertEquals(1, ((List) unpack(packedResult.next())).size());
+            frames++;
+        }
+        assertEquals(3, frames);
+    }
+
+    @Test
+    public void testPrimitiveArrays() throws Exception {
+        final Node node = db.createNode();
+        node.setProperty("booleans", new boolean[]{true, false});
+        node.setProperty("shorts", new short[]{1, -300});
+        node.setProperty("ints", new int[]{1, -70000, Integer.MAX_VALUE});
+        node.setProperty("longs", new long[]{0, 1L << 40, Long.MIN_VALUE});
+        node.setProperty("floats", new float[]{1.5F, -0.25F});
+        node.setProperty("doubles", new double[]{Math.PI, -1E100});
+        node.setProperty("chars", new char[]{'a', '\u00e4'});
+        node.setProperty("strings", new String[]{"foo", "bar"});
+        node.setProperty("empty", new long[0]);
+        final byte[] bytes = {(byte) 0xde, (byte) 0xad, (byte) 0xbe, (byte) 0xef};
+        node.setProperty("bytes", bytes);
+
+        final ExecutionResultMessagePack packedResult = new ExecutionResultMessagePack(executionEngine.execute("start n=node({id}) return n", Collections.<String, Object>singletonMap("id", node.getId())));
+        packedResult.next();
+        final byte[] frame = packedResult.next();
+        final Map<?, ?> data = (Map<?, ?>) ((Map) ((List) unpack(frame)).get(0)).get("data");
+        assertEquals(Arrays.asList(true, false), data.get("booleans"));
+        assertEquals(Arrays.asList(1, -300), data.get("shorts"));
+        assertEquals(Arrays.asList(1, -70000, Integer.MAX_VALUE), data.get("ints"));
+        assertEquals(Arrays.asList(0L, 1L << 40, Long.MIN_VALUE), longs((List<?>) data.get("longs")));
+        assertEquals(Arrays.asList(1.5F, -0.25F), data.get("floats"));
+        assertEquals(Arrays.asList(Math.PI, -1E100), data.get("doubles"));
+        assertEquals(Arrays.asList("a", "\u00e4"), data.get("chars"));
+        assertEquals(Arrays.asList("foo", "bar"), data.get("strings"));
+        assertEquals(Collections.emptyList(), data.get("empty"));
+
+        final Map<?, ?> rawNode = (Map<?, ?>) ((List) MsgPack.unpack(frame, 0)).get(0);
+        assertArrayEquals(bytes, (byte[]) rawGet((Map<?, ?>) rawGet(rawNode, "data"), "bytes"));
+    }
+
+    private Object rawGet(Map<?, ?> map, String key) {
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (Arrays.equals(key.getBytes(), (byte[]) entry.getKey())) return entry.getValue();
+        }
+        return null;
+    }
+
+    private List<Long> longs(List<?> values) {
+        final List<Long> result = new ArrayList<Long>(values.size());
+        for (Object value : values) {
+            result.add(((Number) value).longValue());
+        }
+        return result;
+    }
+
+    private Object unpack(byte[] frame) {
+        return MsgPack.unpack(frame, MsgPack.UNPACK_RAW_AS_STRING);
+    }
 }
@@ -46,6 +46,55 @@ public class SimpleMessagePackTest {
         assertEquals(objects, unpacked);
     }
 
+    @Test
+    public void testWriterIsReadableByMsgPack() throws Exception {
+        final MessagePackWriter writer = new MessagePackWriter(16);
+        writer.writeArrayHeader(6);
+        writer.writeString("potatoes");
+        writer.writeBoolean(false);
+        writer.writeLong(0);
+        writer.writeLong(11);
+        writer.writeNil();
+        final int mark = writer.beginContainer();
+        writer.writeString("foo");
+        writer.writeString("bar");
+        writer.endMap(mark, 1);
+        assertEquals(objects, MsgPack.unpack(writer.toByteArray(), MsgPack.UNPACK_RAW_AS_STRING));
+
+        writer.reset();
+        final List<Object> values = Arrays.<Object>asList(-1, -33, 200, -200, 70000, -70000, 1L << 40, -(1L << 40), "\u00e4\u20ac\ud83d\ude00", 1.5D);
+        final int arrayMark = writer.beginContainer();
+        for (Object value : values) {
+            if (value instanceof Number && !(value instanceof Double)) writer.writeLong(((Number) value).longValue());
+            else if (value instanceof Double) writer.writeDouble((Double) value);
+            else writer.writeString((String) value);
+        }
+        writer.endArray(arrayMark, values.size());
+        final List<?> unpacked = (List<?>) MsgPack.unpack(writer.toByteArray(), MsgPack.UNPACK_RAW_AS_STRING);
+        assertEquals(values.size(), unpacked.size());
+        for (int i = 0; i < values.size(); i++) {
+            final Object value = values.get(i);
+            if (value instanceof String) assertEquals(value, unpacked.get(i));
+            else if (value instanceof Double) assertEquals((Double) value, ((Number) unpacked.get(i)).doubleValue(), 0);
+            else assertEquals(((Number) value).longValue(), ((Number) unpacked.get(i)).longValue());
+        }
+    }
+
+    @Test
+    public void testReaderSkipsLongRaws() throws Exception {
+        final char[] chars = new char[70000];
+        Arrays.fill(chars, 'x');
+        // raw 16 and raw 32 headers
+        final byte[] data = MsgPack.pack(Arrays.asList(new String(chars, 0, 40), new String(chars, 0, 300), new String(chars), 7));
+        assertEquals(0xdb, data[1 + 3 + 40 + 3 + 300] & 0xff);
+        final MessagePackReader reader = new MessagePackReader().reset(data);
+        assertEquals(4, reader.readArrayHeader());
+        reader.skipValue();
+        reader.skipValue();
+        reader.skipValue();
+        assertEquals(7, reader.readLong());
+    }
+
     /*
     read from ruby
 
@@ -0,0 +1,154 @@
+package de.jexp.shm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_shm_ring_bytes;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_shm_slots;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class SharedMemoryTransportTest {
+    private static final int SLOTS = 4;
+
+    private String address;
+    private GraphDatabaseService db;
+    private SharedMemoryClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        final File file = File.createTempFile("cypher", ".shm");
+        address = "shm://" + file.getPath();
+        // small rings so results wrap around and are split into chunks
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, address)
+                .setConfig(cypher_remoting_threads, "2").setConfig(cypher_remoting_shm_slots, String.valueOf(SLOTS))
+                .setConfig(cypher_remoting_shm_ring_bytes, "4k").newGraphDatabase();
+        client = new SharedMemoryClient(address, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        if (db != null) db.shutdown();
+    }
+
+    private Map footer(List<Object> res) {
+        return (Map) res.get(res.size() - 1);
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        final List<Object> res = client.query("return {i} as i", map("i", 42), null);
+        assertEquals(Arrays.asList("i"), res.get(0));
+        assertEquals(Arrays.asList(42), res.get(1));
+    }
+
+    @Test
+    public void testLargeResults() throws Exception {
+        client.query("foreach (i in range(1,2000) | create ({name:'a rather long name of node ' + str(i)}))", null, null);
+        // one frame larger than the ring and the same result in batch frames
+        List<Object> res = client.query("match (n) return collect(n.name) as names", null, null);
+        assertEquals(2000, ((List) ((List) res.get(1)).get(0)).size());
+        res = client.query("match (n) return n.name", null, map(BATCH, true));
+        int rows = 0;
+        for (Object frame : res.subList(1, res.size())) rows += ((List) frame).size();
+        assertEquals(2000, rows);
+        // a frame per row, many more than the bridge queues at once
+        res = client.query("match (n) return n.name", null, null);
+        assertEquals(2001, res.size());
+    }
+
+    @Test
+    public void testTransaction() throws Exception {
+        final Number txId = (Number) footer(client.query(null, null, map(TX, "begin", STATS, true))).get(TX_ID);
+        assertEquals(null, footer(client.query("create ({name:'in a transaction of the shared memory transport'})", null, map(TX_ID, txId, STATS, true))).get("error"));
+        final Map footer = footer(client.query(null, null, map(TX, "commit", TX_ID, txId, STATS, true)));
+        assertEquals("commit", footer.get(TX));
+        assertEquals(Arrays.asList(1), client.query("match (n) return count(*)", null, null).get(1));
+    }
+
+    @Test
+    public void testConcurrentClientsAndSlotReuse() throws Exception {
+        client.close();
+        final ExecutorService pool = Executors.newFixedThreadPool(SLOTS);
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int thread = 0; thread < SLOTS * 3; thread++) {
+            futures.add(pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    final SharedMemoryClient client = connect();
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            assertEquals(Arrays.asList(i), client.query("return {i} as i", map("i", i), null).get(1));
+                        }
+                        return client.getSlot();
+                    } finally {
+                        client.close();
+                    }
+                }
+            }));
+        }
+        for (Future<Integer> future : futures) {
+            assertTrue(future.get(30, TimeUnit.SECONDS) < SLOTS);
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * waits until the server freed a closed slot
+     */
+    private SharedMemoryClient connect() throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return new SharedMemoryClient(address, 10000);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void testServerStop() throws Exception {
+        db.shutdown();
+        db = null;
+        try {
+            client.query("return 1", null, null);
+            fail("expected stopped server");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("stopped"));
+        }
+        assertFalse(new File(address.substring("shm://".length())).exists());
+        try {
+            new SharedMemoryClient(address);
+            fail("expected no server");
+        } catch (IOException e) {
+            // no file
+        }
+    }
+}
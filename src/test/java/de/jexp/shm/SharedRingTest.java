@@ -0,0 +1,142 @@
+package de.jexp.shm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class SharedRingTest {
+    private File file;
+    private SharedMemoryFile shared;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("ring", ".shm");
+        shared = SharedMemoryFile.create(file, 2, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testFramesWrapAroundAndAreJoinedFromChunks() throws Exception {
+        assertEquals(1024, shared.capacity());
+        // producer and consumer have their own view of the ring, like two processes
+        final SharedRing producer = shared.requests(0);
+        final SharedRing consumer = shared.requests(0);
+        final Random random = new Random(42);
+        final byte[][] frames = new byte[500][];
+        for (int i = 0; i < frames.length; i++) {
+            // empty frames, small ones, frames split into chunks and frames larger than the ring
+            frames[i] = new byte[i % 50 == 0 ? 0 : i % 7 == 0 ? 300 + random.nextInt(5000) : random.nextInt(200)];
+            random.nextBytes(frames[i]);
+        }
+        final Thread writer = new Thread() {
+            public void run() {
+                final IdleStrategy idle = new IdleStrategy();
+                final SharedRing.Liveness alive = new SharedRing.Liveness() {
+                    public void check() {
+                    }
+                };
+                for (int i = 0; i < frames.length; i++) {
+                    producer.write(frames[i], i % 3 == 0 ? 0 : SharedRing.MORE, idle, alive);
+                }
+            }
+        };
+        writer.start();
+        final IdleStrategy idle = new IdleStrategy();
+        for (int i = 0; i < frames.length; i++) {
+            byte[] frame;
+            while ((frame = consumer.poll()) == null) idle.idle();
+            assertArrayEquals("frame " + i, frames[i], frame);
+            assertEquals(i % 3 != 0, consumer.hasMore());
+        }
+        writer.join(10000);
+        assertNull(consumer.poll());
+    }
+
+    @Test
+    public void testOfferWhenFull() throws Exception {
+        final SharedRing producer = shared.responses(1);
+        final SharedRing consumer = shared.responses(1);
+        final byte[] frame = new byte[100];
+        int frames = 0;
+        while (producer.offer(frame, 0, 0) == frame.length) frames++;
+        assertEquals(8, frames);
+        assertEquals(-1, producer.offer(frame, 0, 0));
+        assertEquals(frame.length, consumer.poll().length);
+        assertEquals(frame.length, producer.offer(frame, 0, 0));
+        final byte[] large = new byte[1000];
+        Arrays.fill(large, (byte) 7);
+        for (int i = 0; i < frames; i++) consumer.poll();
+        // a large frame is written in part until the consumer released space
+        final int written = producer.offer(large, 0, 0);
+        assertTrue(written > 0 && written < large.length);
+        assertNull(consumer.poll());
+        assertEquals(large.length, producer.offer(large, written, 0));
+        assertArrayEquals(large, consumer.poll());
+        assertFalse(consumer.hasMore());
+    }
+
+    @Test
+    public void testSlots() throws Exception {
+        final SharedMemoryFile client = SharedMemoryFile.open(file);
+        assertEquals(2, client.slots());
+        assertTrue(client.claim(0));
+        assertFalse(client.claim(0));
+        assertEquals(SharedMemoryFile.CONNECTED, shared.state(0));
+        client.responses(0).offer(new byte[10], 0, 0);
+        client.close(0);
+        assertEquals(SharedMemoryFile.CLOSED, shared.state(0));
+        shared.free(0);
+        assertTrue(client.claim(0));
+        // the rings of a freed slot are empty
+        assertNull(client.responses(0).poll());
+
+        client.release();
+
+        shared.stop();
+        try {
+            SharedMemoryFile.open(file);
+            fail("expected stopped server");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("stopped"));
+        }
+    }
+
+    @Test
+    public void testSlotOfACrashedClientIsReclaimed() throws Exception {
+        final SharedMemoryFile crashed = SharedMemoryFile.open(file);
+        assertTrue(crashed.claim(0));
+        final SharedMemoryFile client = SharedMemoryFile.open(file);
+        // held while its client lives
+        assertFalse(client.claim(0));
+        assertEquals(SharedMemoryFile.CONNECTED, shared.state(0));
+
+        // the process ends without closing the slot, its lock goes with the file
+        crashed.release();
+        assertEquals(SharedMemoryFile.CONNECTED, shared.state(0));
+        assertFalse(client.claim(0));
+        assertEquals(SharedMemoryFile.CLOSED, shared.state(0));
+        shared.free(0);
+        assertTrue(client.claim(0));
+        client.release();
+    }
+}
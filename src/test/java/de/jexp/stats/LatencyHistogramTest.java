@@ -0,0 +1,43 @@
+package de.jexp.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsAreContiguous() throws Exception {
+        for (long value = 0; value < 1 << 20; value++) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.highestValue(index));
+            if (index > 0) assertTrue(value > LatencyHistogram.highestValue(index - 1));
+        }
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) histogram.record(i * 1000);
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000L, histogram.getMax());
+        assertWithin(50000000L, histogram.percentile(0.5));
+        assertWithin(99000000L, histogram.percentile(0.99));
+        assertWithin(99900000L, histogram.percentile(0.999));
+        assertEquals(50000500L, histogram.getMean());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " <= " + actual, actual >= expected);
+        assertTrue(actual + " within 6.25% of " + expected, actual <= expected * 1.0625);
+    }
+}
@@ -0,0 +1,49 @@
+package de.jexp.transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class TransactionRegistryTest {
+    private GraphDatabaseService db;
+    private TransactionRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        registry = new TransactionRegistry(db);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testTransactionStaysRegisteredIfItCantBeResumedToEndIt() throws Exception {
+        final long txId = registry.createTransaction();
+        // a thread with a transaction of its own can't resume another one
+        final Transaction own = db.beginTx();
+        try {
+            registry.endTransaction(txId, true);
+            fail("resumed while the thread has a transaction");
+        } catch (IllegalStateException expected) {
+            // still open
+        } finally {
+            own.finish();
+        }
+        assertEquals(1, registry.getOpenCount());
+        registry.endTransaction(txId, false);
+        assertEquals(0, registry.getOpenCount());
+    }
+}
@@ -0,0 +1,175 @@
+package de.jexp.transport;
+
+import net.asdfa.msgpack.MsgPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.zeromq.ZMQ;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_nio_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_nio_max_output;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class NioTransportTest {
+    private static final int PORT = 15557;
+    private static final int BUFFER = 8192;
+
+    private GraphDatabaseService db;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15558")
+                .setConfig(cypher_remoting_nio_address, ":" + PORT).setConfig(cypher_remoting_nio_max_output, "4m")
+                .setConfig(cypher_remoting_threads, "2").newGraphDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket socket : sockets) socket.close();
+        db.shutdown();
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket("localhost", PORT);
+        sockets.add(socket);
+        return socket;
+    }
+
+    private static void send(Socket socket, Map request) throws IOException {
+        final byte[] data = MsgPack.pack(request);
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    private static List<Object> receive(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final List<Object> frames = new ArrayList<Object>();
+        boolean more;
+        do {
+            final int length = in.readInt();
+            more = (length & NioTransport.MORE) != 0;
+            final byte[] frame = new byte[length & ~NioTransport.MORE];
+            in.readFully(frame);
+            frames.add(MsgPack.unpack(frame, MsgPack.UNPACK_RAW_AS_STRING));
+        } while (more);
+        return frames;
+    }
+
+    private static List<Object> query(Socket socket, Map request) throws IOException {
+        send(socket, request);
+        return receive(socket);
+    }
+
+    private static Map footer(List<Object> res) {
+        return (Map) res.get(res.size() - 1);
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        final List<Object> res = query(connect(), map(QUERY, "return {i} as i", PARAMS, map("i", 42)));
+        assertEquals(Arrays.asList("i"), res.get(0));
+        assertEquals(Arrays.asList(42), res.get(1));
+    }
+
+    @Test
+    public void testTransactionAcrossTransports() throws Exception {
+        final Socket socket = connect();
+        final Number txId = (Number) footer(query(socket, map(TX, "begin", STATS, true))).get(TX_ID);
+        assertEquals(null, footer(query(socket, map(QUERY, "create ({name:'created over nio'})", TX_ID, txId, STATS, true))).get("error"));
+        // the ZMQ clients reach the same workers and transactions
+        final ZMQ.Context context = ZMQ.context(1);
+        final ZMQ.Socket req = context.socket(ZMQ.REQ);
+        req.connect("tcp://localhost:15558");
+        req.send(MsgPack.pack(map(TX, "commit", TX_ID, txId, STATS, true)), 0);
+        assertEquals("commit", ((Map) MsgPack.unpack(req.recv(0), MsgPack.UNPACK_RAW_AS_STRING)).get(TX));
+        req.close();
+        context.term();
+        assertEquals(Arrays.asList(1), query(socket, map(QUERY, "match (n) return count(*)")).get(1));
+    }
+
+    @Test
+    public void testManyConnections() throws Exception {
+        final List<Socket> clients = new ArrayList<Socket>();
+        for (int i = 0; i < 1000; i++) {
+            final Socket socket = connect();
+            send(socket, map(QUERY, "return {i} as i", PARAMS, map("i", i)));
+            clients.add(socket);
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals(Arrays.asList(i), receive(clients.get(i)).get(1));
+        }
+    }
+
+    @Test
+    public void testPipelinedRequestsWithLargeResults() throws Exception {
+        final Socket socket = connect();
+        // results of several write buffers
+        for (int i = 0; i < 3; i++) {
+            send(socket, map(QUERY, "return range(1,{count}) as r", PARAMS, map("count", 100000 * i + 1), REQUEST_ID, i));
+        }
+        final Map<Object, List<Object>> responses = new HashMap<Object, List<Object>>();
+        for (int i = 0; i < 3; i++) {
+            final List<Object> frames = receive(socket);
+            responses.put(frames.get(0), frames);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(100000 * i + 1, ((List) ((List) responses.get(i).get(2)).get(0)).size());
+        }
+    }
+
+    @Test
+    public void testLargeRequest() throws Exception {
+        // read in many chunks into a growing buffer
+        final char[] text = new char[1 << 20];
+        Arrays.fill(text, 'x');
+        final List<Object> res = query(connect(), map(QUERY, "return length({text}) as l", PARAMS, map("text", new String(text))));
+        assertEquals(Arrays.asList(text.length), res.get(1));
+    }
+
+    @Test
+    public void testConnectionExceedingMaxOutputIsClosed() throws Exception {
+        final Socket socket = connect();
+        // a row of about 10MB while the connection may only have 4MB unsent
+        send(socket, map(QUERY, "return range(1,{count}) as r", PARAMS, map("count", 2000000)));
+        final InputStream in = socket.getInputStream();
+        final byte[] buffer = new byte[BUFFER];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) total += read;
+        assertTrue(total < 4 << 20);
+        assertTrue(query(connect(), map(QUERY, "return 1")).size() > 1);
+    }
+
+    @Test
+    public void testInvalidLengthClosesConnection() throws Exception {
+        final Socket socket = connect();
+        new DataOutputStream(socket.getOutputStream()).writeInt(-1);
+        assertEquals(-1, socket.getInputStream().read());
+        assertTrue(query(connect(), map(QUERY, "return 1")).size() > 1);
+    }
+}
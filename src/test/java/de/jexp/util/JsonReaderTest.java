@@ -0,0 +1,32 @@
+package de.jexp.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class JsonReaderTest {
+    @Test
+    public void testParse() throws Exception {
+        final Map map = (Map) JsonReader.parse(" {\"a\": [1, -2.5, true, false, null], \"b\": {\"c\": \"x\\\"y\\u00e4\\n\"}, \"d\": 1e3} ");
+        assertEquals(Arrays.asList(1L, -2.5, true, false, null), map.get("a"));
+        assertEquals("x\"y\u00e4\n", ((Map) map.get("b")).get("c"));
+        assertEquals(1000.0, map.get("d"));
+        assertEquals(Arrays.asList("a", "b", "d"), Arrays.asList(map.keySet().toArray()));
+        assertEquals(0, ((List) JsonReader.parse("[]")).size());
+        assertNull(JsonReader.parse("null"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingContent() throws Exception {
+        JsonReader.parse("{\"a\": 1} x");
+    }
+}
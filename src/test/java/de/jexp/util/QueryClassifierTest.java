@@ -0,0 +1,34 @@
+package de.jexp.util;
+
+import org.junit.Test;
+
+import static de.jexp.util.QueryClassifier.isReadOnly;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class QueryClassifierTest {
+
+    @Test
+    public void testReadQueries() throws Exception {
+        assertTrue(isReadOnly("match (n {name:{name}}) return count(*) as c"));
+        assertTrue(isReadOnly("start n=node(0) match p=n-[r:KNOWS]->m return p,n,r,m"));
+        assertTrue(isReadOnly("match (n) where n.name = 'create' return n.created, n.settings"));
+        assertTrue(isReadOnly("match (n:`DELETE`) return n"));
+        assertTrue(isReadOnly("return \"it's set\" as s"));
+    }
+
+    @Test
+    public void testWriteQueries() throws Exception {
+        assertFalse(isReadOnly("create (n {name:{name}})"));
+        assertFalse(isReadOnly("MATCH (n) SET n.name = 'foo'"));
+        assertFalse(isReadOnly("match (n) where n.name = 'x\\'' delete n"));
+        assertFalse(isReadOnly("merge (n:Person {name:'foo'})"));
+        assertFalse(isReadOnly("match (n) remove n:Person"));
+        assertFalse(isReadOnly("foreach (i in range(1,10) | create ())"));
+        assertFalse(isReadOnly("drop index on :Person(name)"));
+    }
+}
@@ -0,0 +1,178 @@
+package de.jexp.zmq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class AsyncCypherClientTest {
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private GraphDatabaseService db;
+    private GraphDatabaseService other;
+    private AsyncCypherClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_threads, "4").newGraphDatabase();
+        other = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":5556").newGraphDatabase();
+        client = new AsyncCypherClient(Arrays.asList("tcp://localhost:5555", "tcp://localhost:5556"), 2, 100, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        db.shutdown();
+        other.shutdown();
+    }
+
+    @Test
+    public void testManyQueriesInFlightFromOneThread() throws Exception {
+        final List<CypherFuture> futures = new ArrayList<CypherFuture>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(client.queryAsync("return {i} as i", map("i", i), null));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final AsyncCypherClient.Result result = futures.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("i"), result.getColumns());
+            assertEquals(Arrays.<Object>asList(i), result.getRows().get(0));
+        }
+        assertEquals(0, client.getInFlight());
+    }
+
+    @Test
+    public void testStreamedRowsAndListener() throws Exception {
+        final AtomicInteger rows = new AtomicInteger();
+        final CountDownLatch listened = new CountDownLatch(1);
+        final CypherFuture future = client.queryAsync("foreach (i in range(1,10) | create ({i:i})) with 1 as x match (n) return n.i order by n.i", null,
+                map(BATCH, true), new AsyncCypherClient.RowHandler() {
+                    public void onColumns(List<String> columns) {
+                        assertEquals(Arrays.asList("n.i"), columns);
+                    }
+
+                    public void onRow(List<Object> row) {
+                        assertEquals(rows.incrementAndGet(), ((Number) row.get(0)).intValue());
+                    }
+                });
+        future.addListener(new Runnable() {
+            public void run() {
+                listened.countDown();
+            }
+        }, DIRECT);
+        assertTrue(future.get(10, TimeUnit.SECONDS).getRows().isEmpty());
+        assertEquals(10, rows.get());
+        assertTrue(listened.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCallbacksMayBlockOnFurtherRequests() throws Exception {
+        // a single permit, each callback waits for a request that needs it
+        final AsyncCypherClient single = new AsyncCypherClient(Arrays.asList("tcp://localhost:5555"), 1, 1, 10000);
+        try {
+            final List<Object> chained = Collections.synchronizedList(new ArrayList<Object>());
+            final CountDownLatch listened = new CountDownLatch(1);
+            single.queryAsync("return 1 as i", null, null).addListener(new Runnable() {
+                public void run() {
+                    chained.add(value(single.queryAsync("return 2 as i", null, null)));
+                    listened.countDown();
+                }
+            }, DIRECT);
+            assertTrue(listened.await(10, TimeUnit.SECONDS));
+
+            single.queryAsync("return 3 as i", null, null, new AsyncCypherClient.RowHandler() {
+                public void onColumns(List<String> columns) {
+                }
+
+                public void onRow(List<Object> row) {
+                    chained.add(value(single.queryAsync("return 4 as i", null, null)));
+                }
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(Arrays.<Object>asList(2, 4), chained);
+            assertEquals(0, single.getInFlight());
+        } finally {
+            single.close();
+        }
+    }
+
+    private static Object value(CypherFuture future) {
+        try {
+            return future.get(5, TimeUnit.SECONDS).getRows().get(0).get(0);
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    @Test
+    public void testTransactionsStayOnTheirEndpoint() throws Exception {
+        // the tx ids of the two servers can collide, the client ids encode the endpoint
+        final Number first = (Number) client.requestAsync(map(TX, "begin", STATS, true), null).get().getInfo().get(TX_ID);
+        Number second = first;
+        while (second.longValue() % 2 == first.longValue() % 2) {
+            second = (Number) client.requestAsync(map(TX, "begin", STATS, true), null).get().getInfo().get(TX_ID);
+        }
+        client.queryAsync("create ({name:'first'})", null, map(TX_ID, first)).get();
+        client.queryAsync("create ({name:'second'})", null, map(TX_ID, second)).get();
+        client.requestAsync(map(TX, "commit", TX_ID, first), null).get();
+        client.requestAsync(map(TX, "rollback", TX_ID, second), null).get();
+        final Set<Object> names = new HashSet<Object>();
+        for (int i = 0; i < 10; i++) {
+            for (List<Object> row : client.queryAsync("match (n) where has(n.name) return n.name", null, null).get().getRows()) {
+                names.add(row.get(0));
+            }
+        }
+        assertEquals(Collections.<Object>singleton("first"), names);
+    }
+
+    @Test
+    public void testErrorsFailTheFuture() throws Exception {
+        try {
+            client.queryAsync("this is no cypher", null, null).get();
+            fail("expected error");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RemoteCypherException);
+            assertTrue(((RemoteCypherException) e.getCause()).getInfo().containsKey("exception"));
+        }
+    }
+
+    @Test
+    public void testCloseFailsPendingRequests() throws Exception {
+        final CypherFuture future = client.queryAsync("foreach (i in range(1,20000) | create ({i:i}))", null, null);
+        client.close();
+        try {
+            future.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(future.isDone());
+        try {
+            client.queryAsync("return 1", null, null);
+            fail("expected closed client");
+        } catch (IllegalStateException e) {
+            // closed
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.jexp.zmq;
+
+import net.asdfa.msgpack.MsgPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class AutoCommitTest {
+    private GraphDatabaseService db;
+    private ZMQ.Context context;
+    private ZMQ.Socket socket;
+    private final AtomicInteger commits = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15574").newGraphDatabase();
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public void afterCommit(TransactionData data, Object state) {
+                if (data.createdNodes().iterator().hasNext()) commits.incrementAndGet();
+            }
+        });
+        context = ZMQ.context(1);
+        socket = context.socket(ZMQ.REQ);
+        socket.setLinger(0);
+        socket.setReceiveTimeOut(10000);
+        socket.connect("tcp://localhost:15574");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        context.term();
+        db.shutdown();
+    }
+
+    private List<Object> request(Map<String, Object> request) {
+        socket.send(MsgPack.pack(request), 0);
+        final List<Object> frames = new ArrayList<Object>();
+        do {
+            final byte[] frame = socket.recv(0);
+            assertNotNull("timeout", frame);
+            frames.add(MsgPack.unpack(frame, MsgPack.UNPACK_RAW_AS_STRING));
+        } while (socket.hasReceiveMore());
+        return frames;
+    }
+
+    private Map footer(Map<String, Object> request) {
+        final List<Object> frames = request(request);
+        return (Map) frames.get(frames.size() - 1);
+    }
+
+    private Object count() {
+        return request(map(QUERY, "match (n:Item) return count(*)")).get(1);
+    }
+
+    @Test
+    public void testCommittedBeforeTheLastFrame() throws Exception {
+        for (int i = 1; i <= 20; i++) {
+            final Map footer = footer(map(QUERY, "create (n:Item {i:{i}}) return n", PARAMS, map("i", i), STATS, true));
+            assertEquals(1, footer.get("nodes_created"));
+            // the commit happened before the footer was sent, not after
+            assertEquals(i, commits.get());
+        }
+        assertEquals(Arrays.asList(20), count());
+    }
+
+    @Test
+    public void testRolledBackIfTheResultFails() throws Exception {
+        final Map footer = footer(map(QUERY, "foreach (i in range(0,4) | create (:Item {i: i})) with 1 as one match (n:Item) return 10 / n.i", STATS, true));
+        assertTrue(String.valueOf(footer), footer.containsKey("error"));
+        assertEquals(0, commits.get());
+        assertEquals(Arrays.asList(0), count());
+    }
+}
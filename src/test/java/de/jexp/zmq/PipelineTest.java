@@ -0,0 +1,167 @@
+package de.jexp.zmq;
+
+import de.jexp.msgpack.ExecutionResultMessagePack;
+import de.jexp.msgpack.MessagePackResultSerializer;
+import de.jexp.msgpack.MessagePackResultSerializerFactory;
+import de.jexp.serialize.PropertyProjection;
+import de.jexp.serialize.ResultOptions;
+import de.jexp.serialize.ResultSerializer;
+import de.jexp.serialize.ResultSerializerFactory;
+import net.asdfa.msgpack.MsgPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.cypher.javacompat.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.zeromq.ZMQ;
+
+import java.util.*;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_pipeline_rows;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_serializer;
+import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class PipelineTest {
+    /**
+     * a serializer that may read more of the entities than the detached rows keep, registered for the tests
+     */
+    public static class AttachedSerializerFactory implements ResultSerializerFactory {
+        public String getName() {
+            return "attached";
+        }
+
+        public ResultSerializer create() {
+            return new MessagePackResultSerializer();
+        }
+
+        public boolean supportsDetachedRows() {
+            return false;
+        }
+    }
+
+    private GraphDatabaseService db;
+    private ExecutionEngine engine;
+    private ZMQ.Context context;
+    private ZMQ.Socket socket;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15573")
+                .setConfig(cypher_remoting_pipeline_rows, "4").newGraphDatabase();
+        engine = new ExecutionEngine(db);
+        engine.execute("foreach (i in range(1,50) | create (:Person {name:'person '+i, age:i, tags:['a','b']})-[:KNOWS {since:i}]->(:Company {name:'company '+i, size:i}))").dumpToString();
+        context = ZMQ.context(1);
+        socket = context.socket(ZMQ.REQ);
+        socket.setLinger(0);
+        socket.setReceiveTimeOut(10000);
+        socket.connect("tcp://localhost:15573");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        context.term();
+        db.shutdown();
+    }
+
+    private List<byte[]> request(Map<String, Object> request) {
+        socket.send(MsgPack.pack(request), 0);
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        do {
+            final byte[] frame = socket.recv(0);
+            assertNotNull("timeout", frame);
+            frames.add(frame);
+        } while (socket.hasReceiveMore());
+        return frames;
+    }
+
+    /**
+     * header and rows serialized on one thread in the transaction
+     */
+    private List<byte[]> expected(String query, ResultOptions options) {
+        final Transaction tx = db.beginTx();
+        try {
+            final ExecutionResultMessagePack messagePack = new ExecutionResultMessagePack(new MessagePackResultSerializer(), options, engine.execute(query), false, null);
+            final List<byte[]> frames = new ArrayList<byte[]>();
+            while (messagePack.hasNext()) frames.add(messagePack.next());
+            return frames;
+        } finally {
+            tx.finish();
+        }
+    }
+
+    private void assertSameRows(String query, Map<String, Object> opts, ResultOptions options) {
+        final Map<String, Object> request = map(QUERY, query);
+        request.putAll(opts);
+        final List<byte[]> frames = request(request);
+        final List<byte[]> expected = expected(query, options);
+        assertEquals(query + " " + opts, expected.size(), frames.size());
+        // the footer reports the time
+        for (int i = 0; i < expected.size() - 1; i++) {
+            assertArrayEquals(query + " " + opts + " frame " + i, expected.get(i), frames.get(i));
+        }
+    }
+
+    @Test
+    public void testSameFramesAsWithoutPipeline() throws Exception {
+        final String entities = "match p=(a:Person)-[r:KNOWS]->(c) return a, r, c, p, [a, c] as both, {person: a} as map order by a.age";
+        assertSameRows(entities, map(), new ResultOptions());
+        assertSameRows(entities, map(DEDUP, true), new ResultOptions().withDedup(true));
+        assertSameRows(entities, map(IDS_ONLY, true, NO_PATHS_BODIES, true), new ResultOptions().withIdsOnly(true).withNoPathBodies(true));
+        final Map<String, Object> props = map("Person", Arrays.asList("name"), "KNOWS", Arrays.asList("since"), "*", Arrays.asList("size"));
+        assertSameRows(entities, map(PROPS, props, DEDUP, true, DICTIONARY, true),
+                new ResultOptions().withProperties(PropertyProjection.of(props)).withDedup(true).withDictionary(true));
+        assertSameRows("match (a:Person) return a.name, a.age, a.tags order by a.age", map(BATCH, true), new ResultOptions().withBatch(1000, 65536));
+    }
+
+    @Test
+    public void testFailureInTheMiddleOfTheResult() throws Exception {
+        final List<byte[]> frames = request(map(QUERY, "match (a:Person) return a.name as name, 10 / (25 - a.age) as x", STATS, true));
+        final Map footer = (Map) MsgPack.unpack(frames.get(frames.size() - 1), MsgPack.UNPACK_RAW_AS_STRING);
+        assertTrue(String.valueOf(footer), footer.containsKey("error"));
+        assertEquals(24, ((Number) footer.get("rows")).intValue());
+        // header, rows and footer
+        assertEquals(26, frames.size());
+    }
+
+    @Test
+    public void testCommitsBeforeTheLastFrame() throws Exception {
+        final List<byte[]> frames = request(map(QUERY, "match (a:Person) create (a)-[:OWNS]->(:Car {owner: a.name}) return a.name", STATS, true));
+        final Map footer = (Map) MsgPack.unpack(frames.get(frames.size() - 1), MsgPack.UNPACK_RAW_AS_STRING);
+        assertEquals(50, footer.get("nodes_created"));
+        final List<byte[]> count = request(map(QUERY, "match (c:Car) return count(*)"));
+        assertEquals(Arrays.asList(50), MsgPack.unpack(count.get(1), MsgPack.UNPACK_RAW_AS_STRING));
+    }
+
+    @Test
+    public void testNoPipelineForSerializersWithoutDetachedRows() throws Exception {
+        final GraphDatabaseService attached = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15576")
+                .setConfig(cypher_remoting_pipeline_rows, "4").setConfig(cypher_remoting_serializer, "attached").newGraphDatabase();
+        final ZMQ.Socket other = context.socket(ZMQ.REQ);
+        try {
+            other.setLinger(0);
+            other.setReceiveTimeOut(10000);
+            other.connect("tcp://localhost:15576");
+            other.send(MsgPack.pack(map(QUERY, "return range(1,10) as r")), 0);
+            assertNotNull(other.recv(0));
+            while (other.hasReceiveMore()) other.recv(0);
+            // the encoder threads are only started by pipelined requests
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName(), thread.getName().startsWith("Cypher Remoting Encoder"));
+            }
+        } finally {
+            other.close();
+            attached.shutdown();
+        }
+        assertTrue(new MessagePackResultSerializerFactory().supportsDetachedRows());
+    }
+}
@@ -0,0 +1,71 @@
+package de.jexp.zmq;
+
+import net.asdfa.msgpack.MsgPack;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static de.jexp.zmq.CypherServer.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class RequestDecoderTest {
+    private final RequestDecoder decoder = new RequestDecoder();
+
+    @Test
+    public void testDecodeEnvelope() throws Exception {
+        final byte[] request = MsgPack.pack(map(QUERY, "match (n) where id(n) in {ids} return n", TX_ID, 3, STATS, true, "unknown", "value",
+                PARAMS, map("ids", Arrays.asList(1, 2, 300000, 5000000000L), "weights", Arrays.asList(0.5, 1.5), "mixed", Arrays.asList(1, "a"),
+                        "nested", map("list", Arrays.asList(7, 8)), "name", "\u00e4")));
+        final Map<?, ?> decoded = (Map<?, ?>) decoder.decode(request);
+        assertEquals("match (n) where id(n) in {ids} return n", decoded.get(QUERY));
+        assertEquals(3L, decoded.get(TX_ID));
+        assertEquals(true, decoded.get(STATS));
+        assertEquals("value", decoded.get("unknown"));
+        final Map<?, ?> params = (Map<?, ?>) decoded.get(PARAMS);
+        assertArrayEquals(new long[]{1, 2, 300000, 5000000000L}, (long[]) params.get("ids"));
+        assertArrayEquals(new double[]{0.5, 1.5}, (double[]) params.get("weights"), 0);
+        assertEquals(Arrays.<Object>asList(1L, "a"), params.get("mixed"));
+        assertArrayEquals(new long[]{7, 8}, (long[]) ((Map) params.get("nested")).get("list"));
+        assertEquals("\u00e4", params.get("name"));
+
+        // the same query text is decoded only once
+        assertSame(decoded.get(QUERY), ((Map) decoder.decode(request)).get(QUERY));
+        assertSame(decoded.get(QUERY), decoder.decode(MsgPack.pack("match (n) where id(n) in {ids} return n")));
+    }
+
+    @Test
+    public void testDecodeStatements() throws Exception {
+        final byte[] request = MsgPack.pack(map(STATEMENTS, Arrays.asList(map(QUERY, "create (n {ids:{ids}})", PARAMS, map("ids", Arrays.asList(1, 2))))));
+        final List<?> statements = (List<?>) ((Map) decoder.decode(request)).get(STATEMENTS);
+        assertArrayEquals(new long[]{1, 2}, (long[]) ((Map) ((Map) statements.get(0)).get(PARAMS)).get("ids"));
+    }
+
+    @Test
+    public void testMalformedRequests() throws Exception {
+        // map of 15 entries with a single key
+        assertMalformed(new byte[]{(byte) 0x8f, (byte) 0xa1, 'a'});
+        // array announcing 2^31-1 elements
+        assertMalformed(new byte[]{(byte) 0x81, (byte) 0xa1, 'a', (byte) 0xdd, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        // raw longer than the input
+        assertMalformed(new byte[]{(byte) 0xda, 0x10, 0x00, 'a'});
+    }
+
+    private void assertMalformed(byte[] request) {
+        try {
+            decoder.decode(request);
+            throw new AssertionError("expected malformed request");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("MessagePack"));
+        }
+    }
+}
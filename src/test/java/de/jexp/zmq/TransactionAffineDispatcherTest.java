@@ -0,0 +1,228 @@
+package de.jexp.zmq;
+
+import net.asdfa.msgpack.MsgPack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_address;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_read_threads;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 18.10.26
+ */
+public class TransactionAffineDispatcherTest {
+    private static final String ADDRESS = "tcp://localhost:15575";
+
+    private GraphDatabaseService db;
+    private ZMQ.Context context;
+    private ZMQ.Socket socket;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        // a single write worker owns all transactions, the read worker is idle
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_address, ":15575")
+                .setConfig(cypher_remoting_threads, "1").setConfig(cypher_remoting_read_threads, "1").newGraphDatabase();
+        context = ZMQ.context(1);
+        socket = socket();
+        pool = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        socket.close();
+        context.term();
+        db.shutdown();
+    }
+
+    private ZMQ.Socket socket() {
+        final ZMQ.Socket socket = context.socket(ZMQ.REQ);
+        socket.setLinger(0);
+        socket.setReceiveTimeOut(10000);
+        socket.connect(ADDRESS);
+        return socket;
+    }
+
+    private static List<Object> request(ZMQ.Socket socket, Map<String, Object> request) {
+        socket.send(MsgPack.pack(request), 0);
+        final List<Object> frames = new ArrayList<Object>();
+        do {
+            final byte[] frame = socket.recv(0);
+            assertNotNull("timeout", frame);
+            frames.add(MsgPack.unpack(frame, MsgPack.UNPACK_RAW_AS_STRING));
+        } while (socket.hasReceiveMore());
+        return frames;
+    }
+
+    private Map footer(Map<String, Object> request) {
+        final List<Object> frames = request(socket, request);
+        return (Map) frames.get(frames.size() - 1);
+    }
+
+    private Number lockInTransaction() {
+        request(socket, map(QUERY, "create (n:Locked {value:0})", NO_RESULTS, true));
+        final Number txId = (Number) footer(map(TX, "begin", STATS, true)).get(TX_ID);
+        assertNull(footer(map(QUERY, "match (n:Locked) set n.value = 1", TX_ID, txId, STATS, true)).get("error"));
+        return txId;
+    }
+
+    /**
+     * an auto-commit write that blocks the owner of the transaction on its lock
+     */
+    private Future<Map> blockOwner() throws InterruptedException {
+        final Future<Map> write = pool.submit(new Callable<Map>() {
+            public Map call() throws Exception {
+                final ZMQ.Socket other = socket();
+                try {
+                    final List<Object> frames = request(other, map(QUERY, "match (n:Locked) set n.value = 2", STATS, true));
+                    return (Map) frames.get(frames.size() - 1);
+                } finally {
+                    other.close();
+                }
+            }
+        });
+        Thread.sleep(500);
+        assertFalse(write.isDone());
+        return write;
+    }
+
+    @Test
+    public void testCommitWhileOwnerIsBlockedOnTheTransaction() throws Exception {
+        final Number txId = lockInTransaction();
+        final Future<Map> write = blockOwner();
+
+        // taken by the read worker, the owner is still waiting for the lock
+        final long start = System.currentTimeMillis();
+        final Map footer = footer(map(TX, "commit", TX_ID, txId, STATS, true));
+        assertNull(String.valueOf(footer), footer.get("error"));
+        assertEquals("commit", footer.get(TX));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        assertNull(write.get(5, TimeUnit.SECONDS).get("error"));
+        assertEquals(Arrays.asList(2), request(socket, map(QUERY, "match (n:Locked) return n.value")).get(1));
+        assertTrue(String.valueOf(footer(map(QUERY, "return 1", TX_ID, txId, STATS, true)).get("error")).contains("No transaction"));
+    }
+
+    @Test
+    public void testRollbackWhileOwnerIsBlockedOnTheTransaction() throws Exception {
+        final Number txId = lockInTransaction();
+        final Future<Map> write = blockOwner();
+
+        final Map footer = footer(map(TX, "rollback", TX_ID, txId, STATS, true));
+        assertNull(String.valueOf(footer), footer.get("error"));
+        assertEquals("rollback", footer.get(TX));
+
+        assertNull(write.get(5, TimeUnit.SECONDS).get("error"));
+        assertEquals(Arrays.asList(2), request(socket, map(QUERY, "match (n:Locked) return n.value")).get(1));
+        final Map transactions = (Map) footer(map(SERVER_STATS, true)).get("transactions");
+        assertEquals(0, ((Number) transactions.get("open")).intValue());
+    }
+
+    /**
+     * a worker that answers only when told to, so the dispatcher sees it busy
+     */
+    private static ZMQ.Socket worker(ZMQ.Context context, int index) {
+        final ZMQ.Socket worker = context.socket(ZMQ.REQ);
+        worker.setLinger(0);
+        worker.setReceiveTimeOut(500);
+        worker.setIdentity(TransactionAffineDispatcher.workerId(index));
+        worker.connect("inproc://workers");
+        worker.send(TransactionAffineDispatcher.READY, 0);
+        return worker;
+    }
+
+    /**
+     * @return the request and its client envelope or null if none arrived
+     */
+    private static byte[][] take(ZMQ.Socket worker) {
+        final byte[] client = worker.recv(0);
+        if (client == null) return null;
+        worker.recv(0);
+        final byte[] request = worker.recv(0);
+        // the timestamp
+        worker.recv(0);
+        return new byte[][]{client, request};
+    }
+
+    private static void reply(ZMQ.Socket worker, byte[][] request) {
+        worker.sendMore(request[0]);
+        worker.sendMore(new byte[0]);
+        worker.send(MsgPack.pack(map()), 0);
+    }
+
+    private static ZMQ.Socket client(ZMQ.Context context, Map<String, Object> request) {
+        final ZMQ.Socket client = context.socket(ZMQ.REQ);
+        client.setLinger(0);
+        client.connect("inproc://clients");
+        client.send(MsgPack.pack(request), 0);
+        return client;
+    }
+
+    @Test
+    public void testEndWaitsForTheOwnerServingACursorOfTheTransaction() throws Exception {
+        final ZMQ.Socket frontend = context.socket(ZMQ.ROUTER);
+        frontend.bind("inproc://clients");
+        final ZMQ.Socket backend = context.socket(ZMQ.ROUTER);
+        backend.bind("inproc://workers");
+        // worker 0 owns the even transaction and cursor ids, worker 1 is an idle reader
+        final TransactionAffineDispatcher dispatcher = new TransactionAffineDispatcher(frontend, backend, 1, 1, false, StringLogger.DEV_NULL);
+        // stops when the context is terminated
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                dispatcher.run();
+                frontend.close();
+                backend.close();
+            }
+        });
+        thread.start();
+        final ZMQ.Socket owner = worker(context, 0);
+        final ZMQ.Socket reader = worker(context, 1);
+        final List<ZMQ.Socket> clients = new ArrayList<ZMQ.Socket>();
+        try {
+            final long txId = 4, otherTxId = 8, cursorId = 6;
+            clients.add(client(context, map(QUERY, "match (n) return n", TX_ID, txId, FETCH, 1)));
+            reply(owner, take(owner));
+            clients.add(client(context, map(CURSOR_ID, cursorId, FETCH, 1)));
+            final byte[][] fetch = take(owner);
+            assertNotNull(fetch);
+
+            // the cursor might read in the transaction, its commit waits for the owner
+            clients.add(client(context, map(TX, "commit", TX_ID, txId)));
+            assertNull(take(reader));
+            // no cursor was opened in the other transaction, any idle worker can end it
+            clients.add(client(context, map(TX, "rollback", TX_ID, otherTxId)));
+            final byte[][] rollback = take(reader);
+            assertEquals(otherTxId, ((Number) ((Map) MsgPack.unpack(rollback[1], MsgPack.UNPACK_RAW_AS_STRING)).get(TX_ID)).longValue());
+            reply(reader, rollback);
+
+            reply(owner, fetch);
+            final byte[][] commit = take(owner);
+            assertEquals("commit", ((Map) MsgPack.unpack(commit[1], MsgPack.UNPACK_RAW_AS_STRING)).get(TX));
+        } finally {
+            for (ZMQ.Socket client : clients) client.close();
+            owner.close();
+            reader.close();
+        }
+    }
+}
@@ -1,9 +1,427 @@
 package de.jexp.zmq;
 
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static de.jexp.zmq.CypherServer.*;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_cache_entries;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_cursor_timeout;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_pipeline_rows;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_prepared_statements;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_read_priority;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_read_threads;
+import static de.jexp.zmq.CypherServerKernelExtensionFactory.CypherRemotingSettings.cypher_remoting_threads;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
 /**
  * @author mh
  * @since 19.01.13
  */
 public class TransferTest {
 
+    private GraphDatabaseService db;
+    private CypherClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_threads, "4")
+                .setConfig(cypher_remoting_read_threads, "2").setConfig(cypher_remoting_read_priority, "true")
+                .setConfig(cypher_remoting_prepared_statements, "2")
+                .setConfig(cypher_remoting_cursor_timeout, "2s")
+                .setConfig(cypher_remoting_cache_entries, "10").newGraphDatabase();
+        client = new CypherClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        db.shutdown();
+    }
+
+    private Map footer(List<Object> res) {
+        return (Map) res.get(res.size() - 1);
+    }
+
+    private Number begin() {
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, null, map(TX, "begin", STATS, true), res);
+        return (Number) footer(res).get(TX_ID);
+    }
+
+    private long count(String name) {
+        final List<Object> res = new ArrayList<Object>();
+        client.query("match (n {name:{name}}) return count(*) as c", map("name", name), map(), res);
+        return ((Number) ((List) res.get(1)).get(0)).longValue();
+    }
+
+    @Test
+    public void testTransactionsWithMultipleThreads() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        final List<Future<Number>> futures = new ArrayList<Future<Number>>();
+        for (int i = 0; i < 8; i++) {
+            final boolean commit = i % 2 == 0;
+            futures.add(pool.submit(new Callable<Number>() {
+                public Number call() throws Exception {
+                    final Number txId = begin();
+                    for (int round = 0; round < 20; round++) {
+                        final List<Object> res = new ArrayList<Object>();
+                        client.query("create (n {name:{name}})", map("name", commit ? "commit" : "rollback"), map(TX_ID, txId, STATS, true), res);
+                        assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+                        client.query("create (n {name:'auto'})", null, map(NO_RESULTS, true), null);
+                    }
+                    final List<Object> res = new ArrayList<Object>();
+                    client.query(null, null, map(TX, commit ? "commit" : "rollback", TX_ID, txId, STATS, true), res);
+                    assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+                    return txId;
+                }
+            }));
+        }
+        final Set<Number> txIds = new HashSet<Number>();
+        for (Future<Number> future : futures) {
+            txIds.add(future.get(60, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+        assertEquals(8, txIds.size());
+        assertEquals(4 * 20, count("commit"));
+        assertEquals(0, count("rollback"));
+        assertEquals(8 * 20, count("auto"));
+        // the rolled back transactions are gone as well
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, null, map(SERVER_STATS, true), res);
+        assertEquals(0, ((Number) ((Map) footer(res).get("transactions")).get("open")).intValue());
+    }
+
+    @Test
+    public void testReadsInTransaction() throws Exception {
+        assertReadsInTransaction();
+    }
+
+    @Test
+    public void testReadsInTransactionWithSingleThreadAndPipeline() throws Exception {
+        client.close();
+        db.shutdown();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(cypher_remoting_pipeline_rows, "4").newGraphDatabase();
+        client = new CypherClient();
+        assertReadsInTransaction();
+    }
+
+    @Test
+    public void testFailingQueryLeavesTransactionSuspended() throws Exception {
+        // one worker, which serves the auto-commit request after the failed one
+        client.close();
+        db.shutdown();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        client = new CypherClient();
+        final Number txId = begin();
+        final List<Object> res = new ArrayList<Object>();
+        client.query("return unknown", null, map(TX_ID, txId, STATS, true), res);
+        assertTrue(String.valueOf(res), footer(res).containsKey("error"));
+        client.query("create (n {name:'leak'})", null, map(NO_RESULTS, true), null);
+        res.clear();
+        client.query(null, null, map(TX, "rollback", TX_ID, txId, STATS, true), res);
+        assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+        assertEquals(1, count("leak"));
+    }
+
+    /**
+     * the remote transaction stays selected until the lazy result is serialized, the last row closes it otherwise
+     */
+    private void assertReadsInTransaction() {
+        final Number txId = begin();
+        final List<Object> res = new ArrayList<Object>();
+        client.query("create (n {name:'mine'}) return n.name as name", null, map(TX_ID, txId, STATS, true), res);
+        assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+        assertEquals(Arrays.asList("mine"), res.get(1));
+        res.clear();
+        client.query("match (n {name:'mine'}) return n, n.name as name", null, map(TX_ID, txId, STATS, true), res);
+        assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+        assertEquals(Arrays.asList("n", "name"), res.get(0));
+        assertEquals(map("name", "mine"), ((Map) ((List) res.get(1)).get(0)).get("data"));
+        assertEquals("mine", ((List) res.get(1)).get(1));
+        assertEquals(3, res.size());
+        assertEquals(0, count("mine"));
+
+        res.clear();
+        client.query("match (n {name:'mine'}) return count(*) as c", null, map(TX_ID, txId, TX, "commit", STATS, true), res);
+        assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+        assertEquals(1, ((Number) ((List) res.get(1)).get(0)).intValue());
+        assertEquals("commit", footer(res).get(TX));
+        assertEquals(1, count("mine"));
+        res.clear();
+        client.query(null, null, map(SERVER_STATS, true), res);
+        assertEquals(0, ((Number) ((Map) footer(res).get("transactions")).get("open")).intValue());
+    }
+
+    @Test
+    public void testStatementsInOneTransaction() throws Exception {
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, null, map(STATEMENTS, Arrays.asList(
+                map(QUERY, "create (n {name:{name}})", PARAMS, map("name", "batch"), NO_RESULTS, true),
+                map(QUERY, "create (n {name:{name}}) return n.name as name", PARAMS, map("name", "batch")),
+                map(QUERY, "match (n {name:'batch'}) return count(*) as c"))), res);
+        // sections of header, rows, footer per statement (no_results only the footer) and the batch footer
+        assertEquals(0, ((Map) res.get(0)).get(STATEMENT));
+        assertEquals(Arrays.asList("name"), res.get(1));
+        assertEquals(Arrays.asList("batch"), res.get(2));
+        assertEquals(1, ((Map) res.get(3)).get(STATEMENT));
+        assertEquals(Arrays.asList("c"), res.get(4));
+        assertEquals(2, ((Number) ((List) res.get(5)).get(0)).intValue());
+        assertEquals(2, ((Map) res.get(6)).get(STATEMENT));
+        assertEquals(8, res.size());
+        assertEquals(3, footer(res).get(STATEMENTS));
+        assertEquals("commit", footer(res).get(TX));
+        assertEquals(2, count("batch"));
+    }
+
+    @Test
+    public void testFailingStatementRollsBackBatch() throws Exception {
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, null, map(STATEMENTS, Arrays.asList(
+                map(QUERY, "create (n {name:'failed'})", NO_RESULTS, true),
+                map(QUERY, "return 1/0 as fail"),
+                map(QUERY, "create (n {name:'failed'})", NO_RESULTS, true))), res);
+        assertTrue(String.valueOf(res), ((Map) res.get(res.size() - 2)).containsKey("error"));
+        assertEquals(1, footer(res).get(STATEMENTS));
+        assertEquals("rollback", footer(res).get(TX));
+        assertEquals(0, count("failed"));
+    }
+
+    @Test
+    public void testPreparedQueries() throws Exception {
+        final PreparedQuery first = client.prepare("return {i} as i");
+        for (int i = 0; i < 3; i++) {
+            final List<Object> res = new ArrayList<Object>();
+            first.query(map("i", i), null, res);
+            assertEquals(Arrays.asList(i), res.get(1));
+        }
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, map("i", 1), map(HANDLE, -1), res);
+        assertTrue(String.valueOf(res), ((String) footer(res).get("error")).startsWith(StatementHandles.UNKNOWN_HANDLE));
+
+        // evicts the first statement, which is then prepared again
+        final Number handle = first.getHandle();
+        client.prepare("return 2");
+        client.prepare("return 3");
+        res.clear();
+        first.query(map("i", 42), null, res);
+        assertEquals(Arrays.asList(42), res.get(1));
+        assertTrue(first.getHandle().longValue() > handle.longValue());
+    }
+
+    @Test
+    public void testCursorPages() throws Exception {
+        final String query = "match (n) where n.name = 'cursor' return n.i as i order by i";
+        client.query("foreach (i in range(1,25) | create (n {name:'cursor', i:i}))", null, map(NO_RESULTS, true), null);
+        final List<Object> res = new ArrayList<Object>();
+        client.query(query, null, map(FETCH, 10), res);
+        // header, 10 rows, footer
+        assertEquals(12, res.size());
+        assertEquals(Arrays.asList("i"), res.get(0));
+        assertEquals(true, footer(res).get("has_more"));
+        final Number cursorId = (Number) footer(res).get(CURSOR_ID);
+        res.clear();
+        client.fetch(cursorId, 0, res);
+        assertEquals(11, res.size());
+        assertEquals(Arrays.asList(11), res.get(0));
+        assertEquals(true, footer(res).get("has_more"));
+        res.clear();
+        client.fetch(cursorId, 10, res);
+        assertEquals(6, res.size());
+        assertEquals(Arrays.asList(25), res.get(4));
+        assertEquals(false, footer(res).get("has_more"));
+        res.clear();
+        client.fetch(cursorId, 10, res);
+        assertTrue(String.valueOf(res), footer(res).containsKey("error"));
+
+        // stop early
+        res.clear();
+        client.query(query, null, map(FETCH, 5), res);
+        client.closeCursor((Number) footer(res).get(CURSOR_ID));
+    }
+
+    @Test
+    public void testBatchedResult() throws Exception {
+        client.query("foreach (i in range(1,2500) | create (n {name:'batched', i:i}))", null, map(NO_RESULTS, true), null);
+        final List<Object> res = new ArrayList<Object>();
+        client.query("match (n) where n.name = 'batched' return n.i as i order by i", null, map(BATCH, true, STATS, true), res);
+        // header, the rows of the batch frames flattened by the client, footer
+        assertEquals(2502, res.size());
+        assertEquals(Arrays.asList("i"), res.get(0));
+        assertEquals(Arrays.asList(1), res.get(1));
+        assertEquals(Arrays.asList(2500), res.get(2500));
+        assertEquals(2500, footer(res).get("rows"));
+    }
+
+    @Test
+    public void testKeyDictionaryWithCursor() throws Exception {
+        client.query("foreach (i in range(1,4) | create (:Person {name:'dict', i:i})-[:KNOWS {since:i}]->())", null, map(NO_RESULTS, true), null);
+        final String query = "match (n:Person)-[r:KNOWS]->() where n.name = 'dict' return n, r order by n.i";
+        final List<Object> plain = new ArrayList<Object>();
+        client.query(query, null, map(STATS, true), plain);
+
+        final Map opts = map(DICTIONARY, true, COMPRESS, true, FETCH, 2);
+        final List<Object> res = new ArrayList<Object>();
+        client.query(query, null, opts, res);
+        final Number cursorId = (Number) footer(res).get(CURSOR_ID);
+        res.remove(res.size() - 1);
+        client.fetch(cursorId, 0, opts, res);
+        assertEquals(plain.subList(0, plain.size() - 1), res.subList(0, res.size() - 1));
+        assertEquals(false, footer(res).get("has_more"));
+    }
+
+    @Test
+    public void testPropertyProjection() throws Exception {
+        final List<Object> res = new ArrayList<Object>();
+        client.query("create (n {name:'projected', i:1}) return n", null, map(STATS, true, PROPS, "name"), res);
+        assertTrue(String.valueOf(res), String.valueOf(footer(res).get("error")).contains("props"));
+        // invalid options fail before the query runs
+        assertEquals(0, count("projected"));
+
+        res.clear();
+        client.query("create (n {name:'projected', i:1}) return n", null, map(STATS, true, PROPS, Arrays.asList("name")), res);
+        assertEquals(Collections.singletonMap("name", "projected"), ((Map) ((List) res.get(1)).get(0)).get("data"));
+        res.clear();
+        client.query("match (n {name:'projected'}) return n", null, map(IDS_ONLY, true), res);
+        assertEquals(1, ((Map) ((List) res.get(1)).get(0)).size());
+    }
+
+    @Test
+    public void testCursorExpires() throws Exception {
+        final List<Object> res = new ArrayList<Object>();
+        client.query("create (a {name:'expired'}), (b {name:'expired'}) with a match (m) return m", null, map(FETCH, 1), res);
+        final Number cursorId = (Number) footer(res).get(CURSOR_ID);
+        assertEquals(true, footer(res).get("has_more"));
+        Thread.sleep(4000);
+        res.clear();
+        client.fetch(cursorId, 1, res);
+        assertTrue(String.valueOf(res), String.valueOf(footer(res).get("error")).contains("expired"));
+        // the transaction of the expired cursor was rolled back
+        assertEquals(0, count("expired"));
+    }
+
+    @Test
+    public void testCachedReadsAreInvalidatedByWrites() throws Exception {
+        final String query = "match (n {name:{name}}) return count(*) as c";
+        final List<Object> res = new ArrayList<Object>();
+        client.query(query, map("name", "cached"), map(CACHE, true), res);
+        assertEquals("miss", footer(res).get(CACHE));
+        res.clear();
+        client.query(query, map("name", "cached"), map(CACHE, true), res);
+        assertEquals("hit", footer(res).get(CACHE));
+        assertEquals(Arrays.asList(0), res.get(1));
+        assertEquals(1L, ((Number) footer(res).get("cache_hits")).longValue());
+
+        client.query("create (n {name:'cached'})", null, map(NO_RESULTS, true), null);
+        res.clear();
+        client.query(query, map("name", "cached"), map(CACHE, true), res);
+        assertEquals("miss", footer(res).get(CACHE));
+        assertEquals(Arrays.asList(1), res.get(1));
+    }
+
+    @Test
+    public void testNumericListParams() throws Exception {
+        client.query("foreach (i in range(1,5) | create ({name:'listed', i:i, w:i * 0.5}))", null, map(NO_RESULTS, true), null);
+        final String query = "match (n {name:'listed'}) where n.i in {ids} or n.w in {weights} return n.i order by n.i";
+        final Map params = map("ids", Arrays.asList(1, 3), "weights", Arrays.asList(2.5));
+        final List<Object> res = new ArrayList<Object>();
+        client.query(query, params, map(CACHE, true, STATS, true), res);
+        assertEquals(Arrays.asList(Arrays.asList(1), Arrays.asList(3), Arrays.asList(5)), res.subList(1, res.size() - 1));
+        res.clear();
+        // decoded as primitive arrays, still equal keys of the result cache
+        client.query(query, params, map(CACHE, true, STATS, true), res);
+        assertEquals("hit", footer(res).get(CACHE));
+    }
+
+    @Test
+    public void testServerStats() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            client.query("return {i} as i", map("i", i), map(), null);
+        }
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, null, map(SERVER_STATS, true), res);
+        final Map stats = footer(res);
+        for (String stage : Arrays.asList("queue_wait", "unpack", "execute", "first_row", "serialize", "send")) {
+            final Map values = (Map) stats.get(stage);
+            assertTrue(stage + " " + values, ((Number) values.get("count")).longValue() >= 10);
+            assertTrue(stage + " " + values, ((Number) values.get("p999")).longValue() >= ((Number) values.get("p50")).longValue());
+        }
+    }
+
+    @Test
+    public void testIdleTransactionIsReapedAndReleasesLocks() throws Exception {
+        client.query("create (n {name:'locked', value:0})", null, map(NO_RESULTS, true), null);
+        final List<Object> res = new ArrayList<Object>();
+        client.query(null, null, map(TX, "begin", TX_TIMEOUT, 500, STATS, true), res);
+        final Number txId = (Number) footer(res).get(TX_ID);
+        res.clear();
+        client.query("match (n {name:'locked'}) set n.value = 1", null, map(TX_ID, txId, STATS, true), res);
+        assertNull(String.valueOf(footer(res)), footer(res).get("error"));
+
+        // blocks on the lock of the abandoned transaction until it is rolled back
+        final long start = System.currentTimeMillis();
+        client.query("match (n {name:'locked'}) set n.value = 2", null, map(NO_RESULTS, true), null);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        res.clear();
+        client.query("match (n {name:'locked'}) return n.value", null, map(TX_ID, txId, STATS, true), res);
+        assertTrue(String.valueOf(footer(res)), String.valueOf(footer(res).get("error")).contains("idle longer than its timeout"));
+        res.clear();
+        client.query("match (n {name:'locked'}) return n.value", null, map(), res);
+        assertEquals(2, ((Number) ((List) res.get(1)).get(0)).intValue());
+
+        res.clear();
+        client.query(null, null, map(SERVER_STATS, true), res);
+        final Map transactions = (Map) footer(res).get("transactions");
+        assertEquals(1, ((Number) transactions.get("reaped")).intValue());
+        assertEquals(1, ((Number) transactions.get("timed_out")).intValue());
+        assertEquals(0, ((Number) transactions.get("open")).intValue());
+    }
+
+    @Test
+    public void testCompressedResults() throws Exception {
+        client.query("foreach (i in range(1,200) | create (:Text {i:i, text:'a long repetitive string property of row ' + (i % 10)}))", null, map(NO_RESULTS, true), null);
+        final String query = "match (n:Text) return n.i, n.text order by n.i";
+        final List<Object> plain = new ArrayList<Object>();
+        client.query(query, null, map(STATS, true), plain);
+        final List<Object> compressed = new ArrayList<Object>();
+        client.query(query, null, map(STATS, true, COMPRESS, true), compressed);
+
+        assertEquals(plain.subList(0, plain.size() - 1), compressed.subList(0, compressed.size() - 1));
+        final Number rawBytes = (Number) footer(compressed).get("raw_bytes");
+        assertEquals(((Number) footer(plain).get("bytes")).longValue(), rawBytes.longValue());
+        // every frame carries a flag, the rows are too small to compress
+        assertEquals(rawBytes.longValue() + 201, ((Number) footer(compressed).get("bytes")).longValue());
+
+        final List<Object> batched = new ArrayList<Object>();
+        client.query(query, null, map(STATS, true, COMPRESS, true, BATCH, true), batched);
+        assertEquals(plain.subList(1, plain.size() - 1), batched.subList(1, batched.size() - 1));
+        assertTrue(String.valueOf(footer(batched)), ((Number) footer(batched).get("bytes")).longValue() * 3 < ((Number) footer(batched).get("raw_bytes")).longValue());
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final PipelinedCypherClient pipelined = new PipelinedCypherClient("tcp://localhost:5555");
+        final Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i = 0; i < 50; i++) {
+            expected.put(pipelined.send("return {i} as i", map("i", i), null), i);
+        }
+        assertEquals(50, pipelined.getInFlight());
+        for (int i = 0; i < 50; i++) {
+            final PipelinedCypherClient.Response response = pipelined.receive();
+            assertEquals(Arrays.asList("i"), response.frames.get(0));
+            assertEquals(Arrays.asList(expected.remove(response.requestId)), response.frames.get(1));
+        }
+        assertEquals(0, pipelined.getInFlight());
+        assertTrue(expected.isEmpty());
+        pipelined.close();
+    }
 }